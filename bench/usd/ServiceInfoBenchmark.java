@@ -0,0 +1,87 @@
+/**
+ * 
+ */
+package usd;
+
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Benchmarks the comparison and hashing of {@link ServiceInfo}, as done for
+ * every lookup and announcement of a known service. Run with <tt>-prof gc</tt>
+ * to see the allocation rate per operation.
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 2 )
+@State( Scope.Thread )
+public class ServiceInfoBenchmark
+{
+  @Param( { "0", "5", "250" } )
+  public int properties;
+
+  private ServiceInfo m_info;
+  private ServiceInfo m_equal;
+  private ServiceInfo m_different;
+  private Map<String, String> m_props;
+
+  @Setup
+  public void setUp()
+  {
+    m_props = new HashMap<String, String>();
+    for ( int i = 0; i < properties; i++ )
+    {
+      m_props.put( String.format( "service.property.%03d", Integer.valueOf( i ) ), "value-" + i );
+    }
+    URI uri = URI.create( "http://10.0.0.1:8080/serv1" );
+
+    m_info = new ServiceInfo( "id1", "Service1", uri, m_props );
+    // Equal, but not identical, as received from the network...
+    m_equal = new ServiceInfo( new String( "id1" ), new String( "Service1" ), URI.create( uri.toString() ),
+        new HashMap<String, String>( m_props ) );
+    // Differs only in its URI...
+    m_different = new ServiceInfo( "id1", "Service1", URI.create( "http://10.0.0.1:8080/serv2" ), m_props );
+  }
+
+  @Benchmark
+  public ServiceInfo create()
+  {
+    return new ServiceInfo( "id1", "Service1", m_info.getURI(), m_props );
+  }
+
+  @Benchmark
+  public boolean equalsDifferent()
+  {
+    return m_info.equals( m_different );
+  }
+
+  @Benchmark
+  public boolean equalsEqual()
+  {
+    return m_info.equals( m_equal );
+  }
+
+  @Benchmark
+  public int hashCodeOf()
+  {
+    return m_info.hashCode();
+  }
+}
@@ -0,0 +1,336 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import static usd.Constants.USD_DEFAULT_GROUP_IP;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import usd.ServiceInfo;
+import usd.ServiceListener;
+
+
+/**
+ * Repeatable end-to-end benchmark of a group of announcers on the loopback
+ * multicast group.
+ * <p>
+ * The harness runs in three phases:
+ * </p>
+ * <ol>
+ * <li>announce: each announcer adds its share of the services, after which
+ * the harness waits until all announcers know all services;</li>
+ * <li>churn: services are removed and added again at the given rate;</li>
+ * <li>convergence: a new announcer is started, and the harness waits until it
+ * learned all services through its state request.</li>
+ * </ol>
+ * <p>
+ * It reports the announcement rate, the notification latency from adding a
+ * service until the listeners of the other announcers are told about it, the
+ * time it takes a new announcer to converge and to report itself ready, and
+ * the number of packets it needed to do so. All announcers run in the same
+ * process, so the latencies are measured with a single clock. Usage:
+ * </p>
+ *
+ * <pre>
+ * AnnouncerHarness [-nodes N] [-services N] [-churn OPS_PER_SEC] [-duration SECONDS] [-port PORT] [-payload small|typical|large]
+ * </pre>
+ */
+public final class AnnouncerHarness
+{
+  /**
+   * Measures the time from a service being added or removed until each other
+   * announcer reports it.
+   */
+  final class LatencyListener implements ServiceListener
+  {
+    private final MulticastServiceAnnouncer m_owner;
+
+    LatencyListener( MulticastServiceAnnouncer owner )
+    {
+      m_owner = owner;
+    }
+
+    @Override
+    public void serviceAdded( ServiceInfo info )
+    {
+      record( info );
+    }
+
+    @Override
+    public void serviceRemoved( ServiceInfo info )
+    {
+      record( info );
+    }
+
+    private void record( ServiceInfo info )
+    {
+      Long start = m_changed.get( info.getId() );
+      if ( start != null && m_owners.get( info.getId() ) != m_owner )
+      {
+        m_latency.record( System.nanoTime() - start.longValue() );
+      }
+    }
+  }
+
+  private final int m_nodes;
+  private final int m_services;
+  private final int m_churnRate;
+  private final int m_duration;
+  private final int m_port;
+  private final String m_payload;
+
+  private final List<MulticastServiceAnnouncer> m_announcers;
+  private final ConcurrentMap<String, Long> m_changed;
+  private final ConcurrentMap<String, MulticastServiceAnnouncer> m_owners;
+
+  private volatile Histogram m_latency;
+
+  AnnouncerHarness( int nodes, int services, int churnRate, int duration, int port, String payload )
+  {
+    m_nodes = nodes;
+    m_services = services;
+    m_churnRate = churnRate;
+    m_duration = duration;
+    m_port = port;
+    m_payload = payload;
+
+    m_announcers = new ArrayList<MulticastServiceAnnouncer>();
+    m_changed = new ConcurrentHashMap<String, Long>();
+    m_owners = new ConcurrentHashMap<String, MulticastServiceAnnouncer>();
+    m_latency = new Histogram();
+  }
+
+  public static void main( String[] args ) throws Exception
+  {
+    int nodes = 4;
+    int services = 100;
+    int churnRate = 50;
+    int duration = 10;
+    int port = 51000;
+    String payload = "typical";
+
+    for ( int i = 0; i < args.length - 1; i += 2 )
+    {
+      String name = args[i];
+      String value = args[i + 1];
+      if ( "-nodes".equals( name ) )
+      {
+        nodes = Integer.parseInt( value );
+      }
+      else if ( "-services".equals( name ) )
+      {
+        services = Integer.parseInt( value );
+      }
+      else if ( "-churn".equals( name ) )
+      {
+        churnRate = Integer.parseInt( value );
+      }
+      else if ( "-duration".equals( name ) )
+      {
+        duration = Integer.parseInt( value );
+      }
+      else if ( "-port".equals( name ) )
+      {
+        port = Integer.parseInt( value );
+      }
+      else if ( "-payload".equals( name ) )
+      {
+        payload = value;
+      }
+      else
+      {
+        System.err.println( "Unknown option: " + name );
+        System.exit( 1 );
+      }
+    }
+
+    new AnnouncerHarness( nodes, services, churnRate, duration, port, payload ).run();
+  }
+
+  private static String formatMillis( long nanos )
+  {
+    return String.format( "%.2f ms", Double.valueOf( nanos / 1e6 ) );
+  }
+
+  void run() throws Exception
+  {
+    InetAddress group = InetAddress.getByName( USD_DEFAULT_GROUP_IP );
+    try
+    {
+      for ( int i = 0; i < m_nodes; i++ )
+      {
+        MulticastServiceAnnouncer announcer = new MulticastServiceAnnouncer();
+        announcer.addServiceListener( new LatencyListener( announcer ) );
+        announcer.start( group, m_port );
+        m_announcers.add( announcer );
+      }
+
+      List<ServiceInfo> services = announce();
+      churn( services );
+      converge( group );
+    }
+    finally
+    {
+      for ( MulticastServiceAnnouncer announcer : m_announcers )
+      {
+        announcer.stop();
+      }
+    }
+  }
+
+  private List<ServiceInfo> announce() throws InterruptedException
+  {
+    List<ServiceInfo> result = new ArrayList<ServiceInfo>();
+    long start = System.nanoTime();
+    for ( int i = 0; i < m_services; i++ )
+    {
+      ServiceInfo info = Payloads.create( m_payload, i );
+      MulticastServiceAnnouncer owner = m_announcers.get( i % m_nodes );
+      m_owners.put( info.getId(), owner );
+      m_changed.put( info.getId(), Long.valueOf( System.nanoTime() ) );
+      owner.addService( info );
+      result.add( info );
+    }
+
+    for ( MulticastServiceAnnouncer announcer : m_announcers )
+    {
+      awaitServices( announcer, m_services, TimeUnit.SECONDS.toNanos( 60 ) );
+    }
+    long time = System.nanoTime() - start;
+
+    System.out.printf( "Announce: %d services on %d nodes converged in %s (%.0f services/s)%n",
+        Integer.valueOf( m_services ), Integer.valueOf( m_nodes ), formatMillis( time ),
+        Double.valueOf( m_services * 1e9 / time ) );
+    printLatency();
+    return result;
+  }
+
+  private void awaitServices( MulticastServiceAnnouncer announcer, int count, long timeout )
+      throws InterruptedException
+  {
+    long end = System.nanoTime() + timeout;
+    while ( announcer.getMetrics().getServiceCount() < count )
+    {
+      if ( System.nanoTime() > end )
+      {
+        throw new IllegalStateException( "Announcers did not converge; lost packets?" );
+      }
+      TimeUnit.MILLISECONDS.sleep( 1 );
+    }
+  }
+
+  private void churn( List<ServiceInfo> services ) throws InterruptedException
+  {
+    if ( m_churnRate <= 0 || m_duration <= 0 || services.isEmpty() )
+    {
+      return;
+    }
+
+    m_latency = new Histogram();
+    Random rnd = new Random( 55799L );
+    long sentBefore = getSentAnnouncements();
+    long start = System.nanoTime();
+    long end = start + TimeUnit.SECONDS.toNanos( m_duration );
+    long interval = TimeUnit.SECONDS.toNanos( 1 ) / m_churnRate;
+    long next = start;
+    int changes = 0;
+
+    while ( next < end )
+    {
+      long delay = next - System.nanoTime();
+      if ( delay > 0L )
+      {
+        TimeUnit.NANOSECONDS.sleep( delay );
+      }
+
+      ServiceInfo info = services.get( rnd.nextInt( services.size() ) );
+      MulticastServiceAnnouncer owner = m_owners.get( info.getId() );
+      m_changed.put( info.getId(), Long.valueOf( System.nanoTime() ) );
+      if ( isKnown( owner, info ) )
+      {
+        owner.removeService( info );
+      }
+      else
+      {
+        owner.addService( info );
+      }
+      changes++;
+      next += interval;
+    }
+
+    long time = System.nanoTime() - start;
+    System.out.printf( "Churn: %d changes in %s (%.0f changes/s, %.0f announcements/s)%n", Integer.valueOf( changes ),
+        formatMillis( time ), Double.valueOf( changes * 1e9 / time ),
+        Double.valueOf( ( getSentAnnouncements() - sentBefore ) * 1e9 / time ) );
+    printLatency();
+
+    // Restore all services for the convergence phase...
+    for ( ServiceInfo info : services )
+    {
+      MulticastServiceAnnouncer owner = m_owners.get( info.getId() );
+      if ( !isKnown( owner, info ) )
+      {
+        owner.addService( info );
+      }
+    }
+    for ( MulticastServiceAnnouncer announcer : m_announcers )
+    {
+      awaitServices( announcer, m_services, TimeUnit.SECONDS.toNanos( 60 ) );
+    }
+  }
+
+  private void converge( InetAddress group ) throws Exception
+  {
+    MulticastServiceAnnouncer announcer = new MulticastServiceAnnouncer();
+    m_announcers.add( announcer );
+
+    long start = System.nanoTime();
+    // Requests the state of all other announcers...
+    CompletableFuture<Void> ready = announcer.start( group, m_port );
+    awaitServices( announcer, m_services, TimeUnit.SECONDS.toNanos( 60 ) );
+    long time = System.nanoTime() - start;
+
+    ready.get( 60, TimeUnit.SECONDS );
+    long readyTime = System.nanoTime() - start;
+
+    long packets = announcer.getMetrics().getPacketsReceived();
+    System.out.printf( "Convergence: new node learned %d services in %s, using %d packets (%.2f packets/service)%n",
+        Integer.valueOf( m_services ), formatMillis( time ), Long.valueOf( packets ),
+        Double.valueOf( ( double )packets / Math.max( 1, m_services ) ) );
+    System.out.printf( "  reported ready after %s, using %d state requests%n", formatMillis( readyTime ),
+        Long.valueOf( announcer.getMetrics().getSentBroadcastStateMessages() ) );
+  }
+
+  private long getSentAnnouncements()
+  {
+    long result = 0L;
+    for ( MulticastServiceAnnouncer announcer : m_announcers )
+    {
+      AnnouncerMetrics metrics = announcer.getMetrics();
+      result += metrics.getSentServiceAddedMessages() + metrics.getSentServiceRemovedMessages();
+    }
+    return result;
+  }
+
+  private boolean isKnown( MulticastServiceAnnouncer announcer, ServiceInfo info )
+  {
+    return announcer.getKnownServices().contains( info );
+  }
+
+  private void printLatency()
+  {
+    System.out.printf( "  notification latency: p50=%s, p90=%s, p99=%s, max=%s (%d notifications)%n",
+        formatMillis( m_latency.getPercentile( 50.0 ) ), formatMillis( m_latency.getPercentile( 90.0 ) ),
+        formatMillis( m_latency.getPercentile( 99.0 ) ), formatMillis( m_latency.getMax() ),
+        Long.valueOf( m_latency.getCount() ) );
+  }
+}
@@ -0,0 +1,176 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import usd.ServiceInfo;
+
+
+/**
+ * Benchmarks the encoding and decoding of messages by {@link CborCodec}.
+ * Run with <tt>-prof gc</tt> to see the allocation rate per operation.
+ */
+@BenchmarkMode( Mode.Throughput )
+@OutputTimeUnit( TimeUnit.MICROSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 2 )
+@State( Scope.Thread )
+public class CborCodecBenchmark
+{
+  @Param( { "small", "typical", "large" } )
+  public String payload;
+
+  private MulticastMessage m_message;
+  private byte[] m_encoded;
+  private byte[] m_encodedV2;
+  private byte[] m_compressed;
+
+  @Setup
+  public void setUp() throws IOException
+  {
+    ServiceInfo info = Payloads.create( payload, 1 );
+    m_message = MulticastMessage.createServiceAddedMessage( info );
+    m_encoded = CborCodec.encode( m_message );
+    m_encodedV2 = CborCodec.encode( m_message, WireDictionary.DEFAULT );
+    m_compressed = CborCodec.compress( m_encoded );
+  }
+
+  @Benchmark
+  public byte[] compress() throws IOException
+  {
+    return CborCodec.compress( m_encoded );
+  }
+
+  /**
+   * Decodes the header and service identifier only, as done for announcements
+   * of already known services.
+   */
+  @Benchmark
+  public String decodeHeader() throws IOException
+  {
+    return CborCodec.decode( m_encoded ).getServiceId();
+  }
+
+  @Benchmark
+  public ServiceInfo decode() throws IOException
+  {
+    return CborCodec.decode( m_encoded ).getServiceInfo();
+  }
+
+  @Benchmark
+  public ServiceInfo decodeCompressed() throws IOException
+  {
+    return CborCodec.decode( m_compressed ).getServiceInfo();
+  }
+
+  @Benchmark
+  public ServiceInfo decodeV2() throws IOException
+  {
+    return CborCodec.decode( m_encodedV2, 0, m_encodedV2.length, WireDictionary.DEFAULT ).getServiceInfo();
+  }
+
+  @Benchmark
+  public long digest()
+  {
+    return CborCodec.digest( m_encoded, 0, m_encoded.length );
+  }
+
+  @Benchmark
+  public byte[] encode() throws IOException
+  {
+    return CborCodec.encode( m_message );
+  }
+
+  @Benchmark
+  public byte[] encodeV2() throws IOException
+  {
+    return CborCodec.encode( m_message, WireDictionary.DEFAULT );
+  }
+
+  /**
+   * Benchmarks the primitives the codec is built upon.
+   */
+  @BenchmarkMode( Mode.Throughput )
+  @OutputTimeUnit( TimeUnit.MICROSECONDS )
+  @State( Scope.Thread )
+  public static class Primitives
+  {
+    private static final long[] INTS = { 0L, 23L, 24L, 255L, 256L, 65535L, 65536L, 0xffffffffL, 0x100000000L };
+    private static final String STRING = "service.property.value";
+
+    private byte[] m_encodedInts;
+    private byte[] m_encodedString;
+
+    @Setup
+    public void setUp() throws IOException
+    {
+      m_encodedInts = createInts();
+      m_encodedString = createString();
+    }
+
+    private static byte[] createInts() throws IOException
+    {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream( 64 );
+      for ( long value : INTS )
+      {
+        CborCodec.encodeInt( baos, CborCodec.MT_UNSIGNED_INT, value );
+      }
+      return baos.toByteArray();
+    }
+
+    private static byte[] createString() throws IOException
+    {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream( 64 );
+      CborCodec.encodeString( baos, STRING );
+      return baos.toByteArray();
+    }
+
+    @Benchmark
+    public long decodeInts() throws IOException
+    {
+      CborCodec.CborInputStream is = new CborCodec.CborInputStream( m_encodedInts );
+      long result = 0L;
+      for ( int i = 0; i < INTS.length; i++ )
+      {
+        result += CborCodec.decodeInt( is, CborCodec.MT_UNSIGNED_INT );
+      }
+      return result;
+    }
+
+    @Benchmark
+    public String decodeString() throws IOException
+    {
+      return CborCodec.decodeString( new CborCodec.CborInputStream( m_encodedString ) );
+    }
+
+    @Benchmark
+    public byte[] encodeInts() throws IOException
+    {
+      return createInts();
+    }
+
+    @Benchmark
+    public byte[] encodeString() throws IOException
+    {
+      return createString();
+    }
+  }
+}
@@ -0,0 +1,324 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import usd.ServiceInfo;
+
+
+/**
+ * Deterministic discrete-event simulation of a large group of
+ * {@link MulticastServiceAnnouncer}s on a {@link VirtualNetwork}.
+ * <p>
+ * The announcers are the real ones, but run their tasks on virtual time and
+ * exchange their packets through the virtual network, so thousands of them
+ * fit in a single process and a run with the same seed always has the same
+ * outcome. The simulation runs in the following phases:
+ * </p>
+ * <ol>
+ * <li>startup: all nodes start at a random time within the start window, and
+ * add their share of the services right away. The simulator measures the
+ * virtual time until every node knows every service;</li>
+ * <li>partition (optional): the network is split in two, after which a number
+ * of services is removed. The network is healed after the partition time, and
+ * the simulator reports how many nodes converged again.</li>
+ * </ol>
+ * <p>
+ * Wall-clock time is still used by the announcers for rate limiting and
+ * fragment reassembly timeouts, which should be left disabled or generous.
+ * Usage:
+ * </p>
+ *
+ * <pre>
+ * DiscoverySimulator [-nodes N] [-services N] [-latency MS] [-jitter MS] [-loss P] [-duplication P]
+ *                    [-start-window MS] [-partition MS] [-partition-removals N] [-payload small|typical|large]
+ *                    [-horizon MS] [-seed N]
+ * </pre>
+ */
+public final class DiscoverySimulator
+{
+  private static final long SAMPLE_INTERVAL = TimeUnit.MILLISECONDS.toNanos( 10 );
+
+  private final VirtualScheduler m_scheduler;
+  private final VirtualNetwork m_network;
+  private final Random m_random;
+  private final int m_services;
+  private final long m_startWindow;
+  private final long m_partitionTime;
+  private final int m_partitionRemovals;
+  private final String m_payload;
+  private final long m_horizon;
+
+  private final List<ServiceInfo> m_live;
+  private final List<VirtualNetwork.Node> m_owners;
+
+  DiscoverySimulator( int nodes, int services, long latency, long jitter, double loss, double duplication,
+      long startWindow, long partitionTime, int partitionRemovals, String payload, long horizon, long seed )
+      throws Exception
+  {
+    m_random = new Random( seed );
+    m_scheduler = new VirtualScheduler();
+    m_network = new VirtualNetwork( m_scheduler, new Random( seed + 1 ), latency, jitter, loss, duplication );
+    m_services = services;
+    m_startWindow = startWindow;
+    m_partitionTime = partitionTime;
+    m_partitionRemovals = partitionRemovals;
+    m_payload = payload;
+    m_horizon = horizon;
+
+    m_live = new ArrayList<ServiceInfo>();
+    m_owners = new ArrayList<VirtualNetwork.Node>();
+
+    for ( int i = 0; i < nodes; i++ )
+    {
+      m_network.addNode( new MulticastConfig() );
+    }
+  }
+
+  public static void main( String[] args ) throws Exception
+  {
+    int nodes = 200;
+    int services = 10000;
+    long latency = 1;
+    long jitter = 4;
+    double loss = 0.0;
+    double duplication = 0.0;
+    long startWindow = 1000;
+    long partition = 0;
+    int partitionRemovals = 10;
+    String payload = "typical";
+    long horizon = 60000;
+    long seed = 55799L;
+
+    for ( int i = 0; i < args.length - 1; i += 2 )
+    {
+      String name = args[i];
+      String value = args[i + 1];
+      if ( "-nodes".equals( name ) )
+      {
+        nodes = Integer.parseInt( value );
+      }
+      else if ( "-services".equals( name ) )
+      {
+        services = Integer.parseInt( value );
+      }
+      else if ( "-latency".equals( name ) )
+      {
+        latency = Long.parseLong( value );
+      }
+      else if ( "-jitter".equals( name ) )
+      {
+        jitter = Long.parseLong( value );
+      }
+      else if ( "-loss".equals( name ) )
+      {
+        loss = Double.parseDouble( value );
+      }
+      else if ( "-duplication".equals( name ) )
+      {
+        duplication = Double.parseDouble( value );
+      }
+      else if ( "-start-window".equals( name ) )
+      {
+        startWindow = Long.parseLong( value );
+      }
+      else if ( "-partition".equals( name ) )
+      {
+        partition = Long.parseLong( value );
+      }
+      else if ( "-partition-removals".equals( name ) )
+      {
+        partitionRemovals = Integer.parseInt( value );
+      }
+      else if ( "-payload".equals( name ) )
+      {
+        payload = value;
+      }
+      else if ( "-horizon".equals( name ) )
+      {
+        horizon = Long.parseLong( value );
+      }
+      else if ( "-seed".equals( name ) )
+      {
+        seed = Long.parseLong( value );
+      }
+      else
+      {
+        System.err.println( "Unknown option: " + name );
+        System.exit( 1 );
+      }
+    }
+
+    TimeUnit ms = TimeUnit.MILLISECONDS;
+    new DiscoverySimulator( nodes, services, ms.toNanos( latency ), ms.toNanos( jitter ), loss, duplication,
+        ms.toNanos( startWindow ), ms.toNanos( partition ), partitionRemovals, payload, ms.toNanos( horizon ), seed )
+        .run();
+  }
+
+  private static String formatMillis( long nanos )
+  {
+    return String.format( "%.1f ms", Double.valueOf( nanos / 1e6 ) );
+  }
+
+  void run() throws Exception
+  {
+    long wallStart = System.nanoTime();
+    try
+    {
+      startUp();
+      if ( m_partitionTime > 0L )
+      {
+        partition();
+      }
+    }
+    finally
+    {
+      for ( VirtualNetwork.Node node : m_network.getNodes() )
+      {
+        node.m_announcer.stop();
+      }
+    }
+
+    printTraffic();
+    System.out.printf( "Simulated %s in %s wall-clock time%n", formatMillis( m_scheduler.now() ),
+        formatMillis( System.nanoTime() - wallStart ) );
+    if ( !m_scheduler.getFailures().isEmpty() )
+    {
+      System.out.printf( "%d tasks failed, first: %s%n", Integer.valueOf( m_scheduler.getFailures().size() ),
+          m_scheduler.getFailures().get( 0 ) );
+    }
+  }
+
+  /**
+   * Runs the simulation until all nodes know exactly the live services, or
+   * the horizon is reached.
+   *
+   * @return the number of converged nodes.
+   */
+  private int awaitConvergence( long start )
+  {
+    int converged = 0;
+    long end = start + m_horizon;
+    while ( m_scheduler.now() < end )
+    {
+      m_scheduler.runUntil( m_scheduler.now() + SAMPLE_INTERVAL );
+
+      converged = countConverged();
+      if ( converged == m_network.getNodes().size() )
+      {
+        break;
+      }
+    }
+    return converged;
+  }
+
+  private int countConverged()
+  {
+    int result = 0;
+    for ( VirtualNetwork.Node node : m_network.getNodes() )
+    {
+      if ( node.m_started && node.m_announcer.getServiceCount() == m_live.size() )
+      {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  private void partition()
+  {
+    long start = m_scheduler.now();
+    m_network.partition( 2 );
+
+    // Removed services are only seen by the partition of their owner...
+    int removals = Math.min( m_partitionRemovals, m_live.size() );
+    for ( int i = 0; i < removals; i++ )
+    {
+      int index = m_random.nextInt( m_live.size() );
+      ServiceInfo info = m_live.remove( index );
+      m_owners.remove( index ).m_announcer.removeService( info );
+    }
+
+    m_scheduler.runUntil( start + m_partitionTime );
+    m_network.partition( 1 );
+
+    long healed = m_scheduler.now();
+    int converged = awaitConvergence( healed );
+    System.out.printf( "Partition: %d services removed during a %s partition; %d of %d nodes converged %s%n",
+        Integer.valueOf( removals ), formatMillis( m_partitionTime ), Integer.valueOf( converged ),
+        Integer.valueOf( m_network.getNodes().size() ),
+        ( converged == m_network.getNodes().size() ) ? "after " + formatMillis( m_scheduler.now() - healed )
+            : "within the horizon" );
+  }
+
+  private void printTraffic()
+  {
+    long sentAdded = 0L;
+    long sentRemoved = 0L;
+    long sentState = 0L;
+    for ( VirtualNetwork.Node node : m_network.getNodes() )
+    {
+      AnnouncerMetrics metrics = node.m_announcer.getMetrics();
+      sentAdded += metrics.getSentServiceAddedMessages();
+      sentRemoved += metrics.getSentServiceRemovedMessages();
+      sentState += metrics.getSentBroadcastStateMessages();
+    }
+
+    double seconds = Math.max( 1L, m_scheduler.now() ) / 1e9;
+    System.out.printf( "Messages sent: %d added, %d removed, %d state requests%n", Long.valueOf( sentAdded ),
+        Long.valueOf( sentRemoved ), Long.valueOf( sentState ) );
+    System.out.printf( "Packets: %d sent (%d bytes), %d delivered (%d bytes, %.0f bytes/s per node)%n",
+        Long.valueOf( m_network.m_packetsSent ), Long.valueOf( m_network.m_bytesSent ),
+        Long.valueOf( m_network.m_deliveries ), Long.valueOf( m_network.m_bytesDelivered ),
+        Double.valueOf( m_network.m_bytesDelivered / seconds / m_network.getNodes().size() ) );
+    System.out.printf( "Deliveries: %d lost, %d duplicated, %d blocked by partitions%n",
+        Long.valueOf( m_network.m_lost ), Long.valueOf( m_network.m_duplicated ),
+        Long.valueOf( m_network.m_partitioned ) );
+  }
+
+  private void startUp() throws Exception
+  {
+    final List<VirtualNetwork.Node> nodes = m_network.getNodes();
+    for ( int i = 0; i < m_services; i++ )
+    {
+      m_live.add( Payloads.create( m_payload, i ) );
+      m_owners.add( nodes.get( i % nodes.size() ) );
+    }
+
+    for ( final VirtualNetwork.Node node : nodes )
+    {
+      long delay = ( m_startWindow > 0L ) ? ( long )( m_random.nextDouble() * m_startWindow ) : 0L;
+      m_scheduler.schedule( new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          try
+          {
+            node.start();
+          }
+          catch ( Exception e )
+          {
+            throw new RuntimeException( e );
+          }
+          for ( int i = node.m_index; i < m_live.size(); i += nodes.size() )
+          {
+            node.m_announcer.addService( m_live.get( i ) );
+          }
+        }
+      }, delay, null );
+    }
+
+    m_scheduler.runUntil( m_startWindow );
+    int converged = awaitConvergence( 0L );
+    System.out.printf( "Startup: %d nodes with %d services; %d nodes converged %s%n",
+        Integer.valueOf( nodes.size() ), Integer.valueOf( m_services ), Integer.valueOf( converged ),
+        ( converged == nodes.size() ) ? "after " + formatMillis( m_scheduler.now() ) : "within the horizon" );
+  }
+}
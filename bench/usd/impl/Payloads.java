@@ -0,0 +1,55 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import usd.ServiceInfo;
+
+
+/**
+ * Service information of representative sizes, shared by all benchmarks.
+ */
+final class Payloads
+{
+  private Payloads()
+  {
+    // Not used.
+  }
+
+  /**
+   * @param kind
+   *          the kind of payload: "small" (no properties), "typical" (a
+   *          handful of properties) or "large" (hundreds of properties).
+   */
+  static ServiceInfo create( String kind, int id )
+  {
+    Map<String, String> props = new HashMap<String, String>();
+    if ( "typical".equals( kind ) )
+    {
+      props.put( "version", "1.2.3" );
+      props.put( "weight", "10" );
+      props.put( "region", "eu-west-1" );
+      props.put( "zone", "eu-west-1a" );
+      props.put( "protocol", "http/1.1" );
+    }
+    else if ( "large".equals( kind ) )
+    {
+      for ( int i = 0; i < 250; i++ )
+      {
+        props.put( String.format( "service.property.%03d", Integer.valueOf( i ) ), "value-" + i );
+      }
+    }
+    else if ( !"small".equals( kind ) )
+    {
+      throw new IllegalArgumentException( "Unknown payload: " + kind );
+    }
+
+    return new ServiceInfo( "id" + id, "Service" + id, URI.create( "http://10.0.0." + ( id % 256 ) + ":8080/serv" + id ),
+        props );
+  }
+}
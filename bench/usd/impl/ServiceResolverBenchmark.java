@@ -0,0 +1,109 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.net.URI;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import usd.ServiceAnnouncer;
+import usd.ServiceInfo;
+import usd.ServiceListener;
+
+
+/**
+ * Benchmarks the endpoint selection of {@link ServiceResolver}, as done on the
+ * request path of its clients, from several threads at once.
+ */
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.NANOSECONDS )
+@Warmup( iterations = 5, time = 1 )
+@Measurement( iterations = 5, time = 1 )
+@Fork( 2 )
+@Threads( 4 )
+@State( Scope.Benchmark )
+public class ServiceResolverBenchmark
+{
+  @Param( { "1", "10", "100" } )
+  public int endpoints;
+
+  private ServiceResolver m_resolver;
+
+  @Setup
+  public void setUp()
+  {
+    final ServiceListener[] listener = new ServiceListener[1];
+    m_resolver = new ServiceResolver( new ServiceAnnouncer()
+    {
+      @Override
+      public void addService( ServiceInfo info )
+      {
+        listener[0].serviceAdded( info );
+      }
+
+      @Override
+      public void addServiceListener( ServiceListener l )
+      {
+        listener[0] = l;
+      }
+
+      @Override
+      public Collection<ServiceInfo> getKnownServices()
+      {
+        return Collections.emptyList();
+      }
+
+      @Override
+      public void removeService( ServiceInfo info )
+      {
+        listener[0].serviceRemoved( info );
+      }
+
+      @Override
+      public void removeServiceListener( ServiceListener l )
+      {
+        listener[0] = null;
+      }
+    } );
+
+    for ( int i = 0; i < endpoints; i++ )
+    {
+      listener[0].serviceAdded( new ServiceInfo( "id" + i, "Service", URI.create( "http://10.0.0." + i + ":8080/" ),
+          Collections.singletonMap( ServiceResolver.DEFAULT_WEIGHT_PROPERTY, Integer.toString( 1 + i % 10 ) ) ) );
+    }
+  }
+
+  @Benchmark
+  public URI selectRandom()
+  {
+    return m_resolver.selectRandom( "Service" );
+  }
+
+  @Benchmark
+  public URI selectRoundRobin()
+  {
+    return m_resolver.selectRoundRobin( "Service" );
+  }
+
+  @Benchmark
+  public URI selectWeighted()
+  {
+    return m_resolver.selectWeighted( "Service" );
+  }
+}
@@ -0,0 +1,182 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import usd.impl.MulticastServiceAnnouncer.PacketTransport;
+
+
+/**
+ * Simulated multicast network connecting announcers running on a
+ * {@link VirtualScheduler}.
+ * <p>
+ * Every packet sent is delivered to all nodes in the same partition, the
+ * sender included, after a latency uniformly distributed between the base
+ * latency and the base latency plus the jitter. Each delivery is lost or
+ * duplicated independently with the configured probabilities.
+ * </p>
+ */
+final class VirtualNetwork
+{
+  /**
+   * A single node on the network.
+   */
+  final class Node implements PacketTransport
+  {
+    final int m_index;
+    final InetSocketAddress m_address;
+    final VirtualScheduler.NodeExecutor m_executor;
+    final MulticastServiceAnnouncer m_announcer;
+
+    int m_partition;
+    boolean m_started;
+
+    Node( int index, MulticastConfig config ) throws IOException
+    {
+      m_index = index;
+      byte[] addr = { 10, ( byte )( index >>> 16 ), ( byte )( index >>> 8 ), ( byte )index };
+      m_address = new InetSocketAddress( InetAddress.getByAddress( addr ), 5001 );
+      m_executor = m_scheduler.createExecutor();
+      m_announcer = new MulticastServiceAnnouncer( config, m_executor );
+    }
+
+    @Override
+    public void send( byte[] data )
+    {
+      multicast( this, data );
+    }
+
+    /**
+     * Starts the announcer of this node, which requests the state of all
+     * other nodes.
+     */
+    void start() throws IOException
+    {
+      m_started = true;
+      m_announcer.start( this );
+    }
+  }
+
+  private final VirtualScheduler m_scheduler;
+  private final Random m_random;
+  private final long m_latency;
+  private final long m_jitter;
+  private final double m_loss;
+  private final double m_duplication;
+  private final List<Node> m_nodes;
+
+  long m_packetsSent;
+  long m_bytesSent;
+  long m_deliveries;
+  long m_bytesDelivered;
+  long m_lost;
+  long m_duplicated;
+  long m_partitioned;
+
+  /**
+   * Creates a new {@link VirtualNetwork} instance.
+   *
+   * @param latency
+   *          the minimal latency of a delivery, in nanoseconds;
+   * @param jitter
+   *          the maximal additional latency of a delivery, in nanoseconds;
+   * @param loss
+   *          the probability, between 0 and 1, of a delivery being lost;
+   * @param duplication
+   *          the probability, between 0 and 1, of a delivery being duplicated.
+   */
+  VirtualNetwork( VirtualScheduler scheduler, Random random, long latency, long jitter, double loss,
+      double duplication )
+  {
+    m_scheduler = scheduler;
+    m_random = random;
+    m_latency = latency;
+    m_jitter = jitter;
+    m_loss = loss;
+    m_duplication = duplication;
+    m_nodes = new ArrayList<Node>();
+  }
+
+  /**
+   * Adds a new, not yet started, node to this network.
+   */
+  Node addNode( MulticastConfig config ) throws IOException
+  {
+    Node node = new Node( m_nodes.size(), config );
+    m_nodes.add( node );
+    return node;
+  }
+
+  List<Node> getNodes()
+  {
+    return m_nodes;
+  }
+
+  /**
+   * Splits the network in the given number of partitions, assigning the nodes
+   * round-robin; a single partition heals the network.
+   */
+  void partition( int count )
+  {
+    for ( Node node : m_nodes )
+    {
+      node.m_partition = node.m_index % count;
+    }
+  }
+
+  private void deliver( final Node from, final Node to, final byte[] data )
+  {
+    long delay = m_latency + ( ( m_jitter > 0L ) ? ( long )( m_random.nextDouble() * m_jitter ) : 0L );
+    m_scheduler.schedule( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        m_deliveries++;
+        m_bytesDelivered += data.length;
+        to.m_announcer.receive( new DatagramPacket( data, data.length, from.m_address ) );
+      }
+    }, delay, to.m_executor );
+  }
+
+  private void multicast( Node from, byte[] data )
+  {
+    m_packetsSent++;
+    m_bytesSent += data.length;
+
+    for ( Node to : m_nodes )
+    {
+      if ( !to.m_started || to.m_executor.isShutdown() )
+      {
+        // Not listening...
+        continue;
+      }
+      if ( to.m_partition != from.m_partition )
+      {
+        m_partitioned++;
+        continue;
+      }
+      if ( m_loss > 0.0 && m_random.nextDouble() < m_loss )
+      {
+        m_lost++;
+        continue;
+      }
+
+      deliver( from, to, data );
+      if ( m_duplication > 0.0 && m_random.nextDouble() < m_duplication )
+      {
+        m_duplicated++;
+        deliver( from, to, data );
+      }
+    }
+  }
+}
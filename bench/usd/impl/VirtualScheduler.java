@@ -0,0 +1,288 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Single-threaded discrete-event scheduler running on virtual time.
+ * <p>
+ * Events are executed in order of their virtual time, and in order of
+ * scheduling for events at the same time, so a simulation run is fully
+ * deterministic. Each simulated announcer gets its own executor view on this
+ * scheduler through {@link #createExecutor()}, so stopping one announcer does
+ * not affect the others.
+ * </p>
+ */
+final class VirtualScheduler
+{
+  /**
+   * A single scheduled event.
+   */
+  final class Event<V> extends FutureTask<V> implements ScheduledFuture<V>
+  {
+    private final NodeExecutor m_owner;
+    private final long m_sequence;
+    private final long m_period;
+    private long m_time;
+
+    Event( NodeExecutor owner, Callable<V> task, long time, long period )
+    {
+      super( task );
+      m_owner = owner;
+      m_sequence = m_sequences++;
+      m_time = time;
+      m_period = period;
+    }
+
+    Event( NodeExecutor owner, Runnable task, long time, long period )
+    {
+      super( task, null );
+      m_owner = owner;
+      m_sequence = m_sequences++;
+      m_time = time;
+      m_period = period;
+    }
+
+    @Override
+    public int compareTo( Delayed other )
+    {
+      Event<?> event = ( Event<?> )other;
+      if ( m_time != event.m_time )
+      {
+        return ( m_time < event.m_time ) ? -1 : 1;
+      }
+      return ( m_sequence < event.m_sequence ) ? -1 : ( ( m_sequence == event.m_sequence ) ? 0 : 1 );
+    }
+
+    @Override
+    public long getDelay( TimeUnit unit )
+    {
+      return unit.convert( m_time - m_now, TimeUnit.NANOSECONDS );
+    }
+
+    @Override
+    public void run()
+    {
+      if ( m_period == 0L )
+      {
+        super.run();
+      }
+      else if ( runAndReset() && ( m_owner == null || !m_owner.isShutdown() ) )
+      {
+        // Fixed delay, as tasks take no virtual time...
+        m_time = m_now + m_period;
+        m_queue.add( this );
+      }
+    }
+  }
+
+  /**
+   * Executor view on this scheduler for a single simulated announcer.
+   */
+  final class NodeExecutor extends AbstractExecutorService implements ScheduledExecutorService
+  {
+    private boolean m_shutdown;
+
+    @Override
+    public boolean awaitTermination( long timeout, TimeUnit unit )
+    {
+      return true;
+    }
+
+    @Override
+    public void execute( Runnable command )
+    {
+      if ( command instanceof Event )
+      {
+        // Submitted task, see newTaskFor()...
+        add( ( Event<?> )command );
+      }
+      else
+      {
+        schedule( command, 0L, TimeUnit.NANOSECONDS );
+      }
+    }
+
+    @Override
+    public boolean isShutdown()
+    {
+      return m_shutdown;
+    }
+
+    @Override
+    public boolean isTerminated()
+    {
+      return m_shutdown;
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule( Runnable command, long delay, TimeUnit unit )
+    {
+      return add( new Event<Object>( this, command, m_now + unit.toNanos( delay ), 0L ) );
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule( Callable<V> callable, long delay, TimeUnit unit )
+    {
+      return add( new Event<V>( this, callable, m_now + unit.toNanos( delay ), 0L ) );
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate( Runnable command, long initialDelay, long period, TimeUnit unit )
+    {
+      return scheduleWithFixedDelay( command, initialDelay, period, unit );
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay( Runnable command, long initialDelay, long delay, TimeUnit unit )
+    {
+      return add( new Event<Object>( this, command, m_now + unit.toNanos( initialDelay ), unit.toNanos( delay ) ) );
+    }
+
+    @Override
+    public void shutdown()
+    {
+      m_shutdown = true;
+    }
+
+    @Override
+    public List<Runnable> shutdownNow()
+    {
+      m_shutdown = true;
+      return Collections.emptyList();
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor( Callable<T> callable )
+    {
+      return new Event<T>( this, callable, m_now, 0L );
+    }
+
+    @Override
+    protected <T> RunnableFuture<T> newTaskFor( Runnable runnable, T value )
+    {
+      return new Event<T>( this, Executors.callable( runnable, value ), m_now, 0L );
+    }
+
+    private <V> Event<V> add( Event<V> event )
+    {
+      if ( !m_shutdown )
+      {
+        m_queue.add( event );
+      }
+      return event;
+    }
+  }
+
+  private final PriorityQueue<Event<?>> m_queue;
+  private final List<Throwable> m_failures;
+
+  private long m_now;
+  private long m_sequences;
+
+  VirtualScheduler()
+  {
+    m_queue = new PriorityQueue<Event<?>>();
+    m_failures = new ArrayList<Throwable>();
+  }
+
+  /**
+   * @return a new executor view on this scheduler.
+   */
+  NodeExecutor createExecutor()
+  {
+    return new NodeExecutor();
+  }
+
+  /**
+   * @return the failures of all tasks run so far, never <code>null</code>.
+   */
+  List<Throwable> getFailures()
+  {
+    return m_failures;
+  }
+
+  /**
+   * @return the current virtual time, in nanoseconds since the start of the
+   *         simulation.
+   */
+  long now()
+  {
+    return m_now;
+  }
+
+  /**
+   * Runs all events up to and including the given virtual time, after which
+   * the virtual time equals the given time.
+   *
+   * @return the number of events run.
+   */
+  long runUntil( long time )
+  {
+    long count = 0L;
+    Event<?> event;
+    while ( ( event = m_queue.peek() ) != null && event.m_time <= time )
+    {
+      m_queue.poll();
+      if ( event.isCancelled() || ( event.m_owner != null && event.m_owner.isShutdown() ) )
+      {
+        continue;
+      }
+      m_now = event.m_time;
+      event.run();
+      if ( event.m_period == 0L && event.isDone() )
+      {
+        collectFailure( event );
+      }
+      count++;
+    }
+    m_now = Math.max( m_now, time );
+    return count;
+  }
+
+  /**
+   * Schedules a simulation event, which is dropped when the given executor is
+   * shut down.
+   *
+   * @param owner
+   *          the executor of the announcer the event is for, or
+   *          <code>null</code> if it is not for a particular announcer.
+   */
+  void schedule( Runnable task, long delay, NodeExecutor owner )
+  {
+    m_queue.add( new Event<Object>( owner, task, m_now + delay, 0L ) );
+  }
+
+  private void collectFailure( Event<?> event )
+  {
+    try
+    {
+      event.get();
+    }
+    catch ( ExecutionException e )
+    {
+      m_failures.add( e.getCause() );
+    }
+    catch ( InterruptedException e )
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
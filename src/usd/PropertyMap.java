@@ -0,0 +1,228 @@
+/**
+ * 
+ */
+package usd;
+
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+/**
+ * Compact, immutable, map of service properties.
+ * <p>
+ * Keys and values are stored in a single flat array, sorted on their keys,
+ * avoiding the entry objects and table overhead of a {@link java.util.HashMap}.
+ * The hash code is calculated once, and maps with the same contents are
+ * shared between service information instances as much as possible.
+ * </p>
+ */
+final class PropertyMap extends AbstractMap<String, String>
+{
+  static final PropertyMap EMPTY = new PropertyMap( new String[0] );
+
+  /** Recently created maps, used to share maps with the same contents. */
+  private static final PropertyMap[] SHARED = new PropertyMap[4096];
+
+  /** Sorted keys and their values: k0, v0, k1, v1, ... */
+  private final String[] m_entries;
+  private final int m_hash;
+
+  private PropertyMap( String[] entries )
+  {
+    m_entries = entries;
+
+    int hash = 0;
+    for ( int i = 0; i < entries.length; i += 2 )
+    {
+      // As mandated by Map#hashCode()...
+      hash += entries[i].hashCode() ^ entries[i + 1].hashCode();
+    }
+    m_hash = hash;
+  }
+
+  /**
+   * Returns a {@link PropertyMap} with the same contents as the given map.
+   *
+   * @param properties
+   *          the properties to copy, cannot be <code>null</code> nor contain
+   *          <code>null</code> keys or values.
+   * @return a {@link PropertyMap}, never <code>null</code>.
+   */
+  static PropertyMap valueOf( Map<String, String> properties )
+  {
+    if ( properties instanceof PropertyMap )
+    {
+      return ( PropertyMap )properties;
+    }
+    if ( properties.isEmpty() )
+    {
+      return EMPTY;
+    }
+
+    String[] keys = properties.keySet().toArray( new String[properties.size()] );
+    Arrays.sort( keys );
+
+    String[] entries = new String[keys.length * 2];
+    for ( int i = 0; i < keys.length; i++ )
+    {
+      String value = properties.get( keys[i] );
+      if ( value == null )
+      {
+        throw new IllegalArgumentException( "Property values cannot be null!" );
+      }
+      entries[2 * i] = keys[i];
+      entries[2 * i + 1] = value;
+    }
+
+    PropertyMap result = new PropertyMap( entries );
+
+    // Races are harmless here: at worst we end up not sharing a map...
+    int idx = ( result.m_hash ^ ( result.m_hash >>> 16 ) ) & ( SHARED.length - 1 );
+    PropertyMap shared = SHARED[idx];
+    if ( result.equals( shared ) )
+    {
+      return shared;
+    }
+    SHARED[idx] = result;
+    return result;
+  }
+
+  @Override
+  public boolean containsKey( Object key )
+  {
+    return indexOf( key ) >= 0;
+  }
+
+  @Override
+  public Set<Map.Entry<String, String>> entrySet()
+  {
+    return new AbstractSet<Map.Entry<String, String>>()
+    {
+      @Override
+      public Iterator<Map.Entry<String, String>> iterator()
+      {
+        return new Iterator<Map.Entry<String, String>>()
+        {
+          private int m_idx = 0;
+
+          @Override
+          public boolean hasNext()
+          {
+            return m_idx < m_entries.length;
+          }
+
+          @Override
+          public Map.Entry<String, String> next()
+          {
+            if ( !hasNext() )
+            {
+              throw new NoSuchElementException();
+            }
+            Map.Entry<String, String> entry = new SimpleImmutableEntry<String, String>( m_entries[m_idx],
+                m_entries[m_idx + 1] );
+            m_idx += 2;
+            return entry;
+          }
+
+          @Override
+          public void remove()
+          {
+            throw new UnsupportedOperationException();
+          }
+        };
+      }
+
+      @Override
+      public int size()
+      {
+        return m_entries.length / 2;
+      }
+    };
+  }
+
+  @Override
+  public boolean equals( Object obj )
+  {
+    if ( this == obj )
+    {
+      return true;
+    }
+    if ( obj instanceof PropertyMap )
+    {
+      PropertyMap other = ( PropertyMap )obj;
+      return m_hash == other.m_hash && Arrays.equals( m_entries, other.m_entries );
+    }
+    return super.equals( obj );
+  }
+
+  @Override
+  public String get( Object key )
+  {
+    int idx = indexOf( key );
+    return ( idx < 0 ) ? null : m_entries[idx + 1];
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return m_hash;
+  }
+
+  @Override
+  public boolean isEmpty()
+  {
+    return m_entries.length == 0;
+  }
+
+  @Override
+  public int size()
+  {
+    return m_entries.length / 2;
+  }
+
+  /**
+   * Adds the contents of this map to the given digest.
+   */
+  long digest( long hash )
+  {
+    for ( String entry : m_entries )
+    {
+      hash = ServiceInfo.digest( hash, entry );
+    }
+    return hash;
+  }
+
+  private int indexOf( Object key )
+  {
+    if ( !( key instanceof String ) )
+    {
+      return -1;
+    }
+    int lo = 0;
+    int hi = ( m_entries.length / 2 ) - 1;
+    while ( lo <= hi )
+    {
+      int mid = ( lo + hi ) >>> 1;
+      int cmp = m_entries[2 * mid].compareTo( ( String )key );
+      if ( cmp < 0 )
+      {
+        lo = mid + 1;
+      }
+      else if ( cmp > 0 )
+      {
+        hi = mid - 1;
+      }
+      else
+      {
+        return 2 * mid;
+      }
+    }
+    return -1;
+  }
+}
@@ -6,7 +6,6 @@ package usd;
 
 import java.net.URI;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 
 
@@ -18,7 +17,10 @@ public final class ServiceInfo
   private final String m_id;
   private final String m_name;
   private final URI m_uri;
-  private final Map<String, String> m_properties;
+  private final PropertyMap m_properties;
+  private final int m_hash;
+
+  private volatile long m_digest;
 
   /**
    * Creates a new {@link ServiceInfo} instance.
@@ -36,7 +38,15 @@ public final class ServiceInfo
     m_id = id;
     m_name = name;
     m_uri = uri;
-    m_properties = Collections.unmodifiableMap( new HashMap<String, String>( properties ) );
+    m_properties = PropertyMap.valueOf( properties );
+
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + ( ( m_id == null ) ? 0 : m_id.hashCode() );
+    result = prime * result + ( ( m_name == null ) ? 0 : m_name.hashCode() );
+    result = prime * result + m_properties.hashCode();
+    result = prime * result + ( ( m_uri == null ) ? 0 : m_uri.hashCode() );
+    m_hash = result;
   }
 
   @Override
@@ -52,6 +62,10 @@ public final class ServiceInfo
     }
 
     ServiceInfo other = ( ServiceInfo )obj;
+    if ( m_hash != other.m_hash )
+    {
+      return false;
+    }
     if ( m_id == null )
     {
       if ( other.m_id != null )
@@ -76,14 +90,7 @@ public final class ServiceInfo
       return false;
     }
 
-    if ( m_properties == null )
-    {
-      if ( other.m_properties != null )
-      {
-        return false;
-      }
-    }
-    else if ( !m_properties.equals( other.m_properties ) )
+    if ( !m_properties.equals( other.m_properties ) )
     {
       return false;
     }
@@ -103,6 +110,28 @@ public final class ServiceInfo
     return true;
   }
 
+  /**
+   * Returns a 64-bit digest of the contents of this service information. Two
+   * service information instances with a different digest are guaranteed to
+   * be different; the reverse holds with a very high probability.
+   * 
+   * @return the content digest.
+   */
+  public long getDigest()
+  {
+    long result = m_digest;
+    if ( result == 0L )
+    {
+      result = 0xcbf29ce484222325L;
+      result = digest( result, m_id );
+      result = digest( result, m_name );
+      result = digest( result, ( m_uri == null ) ? null : m_uri.toString() );
+      result = m_properties.digest( result );
+      m_digest = result;
+    }
+    return result;
+  }
+
   /**
    * @return the service identifier, never <code>null</code>.
    */
@@ -120,7 +149,8 @@ public final class ServiceInfo
   }
 
   /**
-   * @return an optional set of additional service properties.
+   * @return an optional set of additional service properties, as unmodifiable
+   *         map.
    */
   public Map<String, String> getProperties()
   {
@@ -138,12 +168,22 @@ public final class ServiceInfo
   @Override
   public int hashCode()
   {
-    final int prime = 31;
-    int result = 1;
-    result = prime * result + ( ( m_id == null ) ? 0 : m_id.hashCode() );
-    result = prime * result + ( ( m_name == null ) ? 0 : m_name.hashCode() );
-    result = prime * result + ( ( m_properties == null ) ? 0 : m_properties.hashCode() );
-    result = prime * result + ( ( m_uri == null ) ? 0 : m_uri.hashCode() );
-    return result;
+    return m_hash;
+  }
+
+  static long digest( long hash, String str )
+  {
+    if ( str == null )
+    {
+      return hash * 0x100000001b3L;
+    }
+    for ( int i = 0, len = str.length(); i < len; i++ )
+    {
+      hash ^= str.charAt( i );
+      hash *= 0x100000001b3L;
+    }
+    // Separate consecutive strings...
+    hash ^= 0xff;
+    return hash * 0x100000001b3L;
   }
 }
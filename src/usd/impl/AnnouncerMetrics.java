@@ -0,0 +1,375 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+
+/**
+ * Metrics of a single {@link MulticastServiceAnnouncer}.
+ * <p>
+ * Counters are striped {@link LongAdder}s, so updating them from the listener,
+ * sender and dispatcher threads at once does not contend. Reading them is
+ * more expensive, and not atomic across counters, which is fine for
+ * monitoring purposes. The metrics can be read directly, or exported via JMX
+ * by setting {@link MulticastConfig#setMBeanName(String)}.
+ * </p>
+ */
+public final class AnnouncerMetrics implements AnnouncerMetricsMXBean
+{
+  private final MulticastServiceAnnouncer m_announcer;
+
+  final LongAdder m_packetsSent;
+  final LongAdder m_bytesSent;
+  final LongAdder m_packetsReceived;
+  final LongAdder m_bytesReceived;
+  final LongAdder m_decodeFailures;
+  final LongAdder m_droppedPackets;
+  final LongAdder m_skippedDecodes;
+  final LongAdder m_evictions;
+  final LongAdder m_compressionSavings;
+  final LongAdder m_sendQueueDepth;
+  final LongAdder[] m_received;
+  final LongAdder[] m_sent;
+  final Histogram m_receivedPacketSize;
+  final Histogram m_listenerCallbackTime;
+  final Histogram m_traceNetworkTime;
+  final Histogram m_traceDecodeTime;
+  final Histogram m_traceDispatchTime;
+  final Histogram m_traceEndToEndTime;
+
+  volatile long m_startupTime;
+
+  AnnouncerMetrics( MulticastServiceAnnouncer announcer )
+  {
+    m_announcer = announcer;
+    m_packetsSent = new LongAdder();
+    m_bytesSent = new LongAdder();
+    m_packetsReceived = new LongAdder();
+    m_bytesReceived = new LongAdder();
+    m_decodeFailures = new LongAdder();
+    m_droppedPackets = new LongAdder();
+    m_skippedDecodes = new LongAdder();
+    m_evictions = new LongAdder();
+    m_compressionSavings = new LongAdder();
+    m_sendQueueDepth = new LongAdder();
+    m_received = new LongAdder[] { new LongAdder(), new LongAdder(), new LongAdder() };
+    m_sent = new LongAdder[] { new LongAdder(), new LongAdder(), new LongAdder() };
+    m_receivedPacketSize = new Histogram();
+    m_listenerCallbackTime = new Histogram();
+    m_traceNetworkTime = new Histogram();
+    m_traceDecodeTime = new Histogram();
+    m_traceDispatchTime = new Histogram();
+    m_traceEndToEndTime = new Histogram();
+    m_startupTime = -1L;
+  }
+
+  private static int typeOf( MulticastMessage msg )
+  {
+    if ( msg.isServiceAdded() )
+    {
+      return 1;
+    }
+    return msg.isServiceRemoved() ? 2 : 0;
+  }
+
+  @Override
+  public long getBytesReceived()
+  {
+    return m_bytesReceived.sum();
+  }
+
+  @Override
+  public long getBytesSent()
+  {
+    return m_bytesSent.sum();
+  }
+
+  @Override
+  public long getCompressionSavings()
+  {
+    return m_compressionSavings.sum();
+  }
+
+  /**
+   * @return the number of received packets or messages that could not be
+   *         decoded, or held invalid service information.
+   */
+  @Override
+  public long getDecodeFailures()
+  {
+    return m_decodeFailures.sum();
+  }
+
+  /**
+   * @return the number of events not yet reported to the slowest service
+   *         listener.
+   */
+  @Override
+  public long getDispatchQueueDepth()
+  {
+    return m_announcer.getDispatchBacklog();
+  }
+
+  @Override
+  public long getDroppedPackets()
+  {
+    return m_droppedPackets.sum();
+  }
+
+  @Override
+  public long getEvictions()
+  {
+    return m_evictions.sum();
+  }
+
+  /**
+   * @return the time, in nanoseconds, spent in service listener callbacks.
+   *         Callbacks are timed per dispatched batch, and each callback of a
+   *         batch is attributed the average time of that batch.
+   */
+  public Histogram getListenerCallbackTime()
+  {
+    return m_listenerCallbackTime;
+  }
+
+  @Override
+  public long getListenerCallbackTimeMax()
+  {
+    return TimeUnit.NANOSECONDS.toMicros( m_listenerCallbackTime.getMax() );
+  }
+
+  @Override
+  public double getListenerCallbackTimeMean()
+  {
+    return m_listenerCallbackTime.getMean() / 1000.0;
+  }
+
+  @Override
+  public long getListenerCallbackTimeP50()
+  {
+    return TimeUnit.NANOSECONDS.toMicros( m_listenerCallbackTime.getPercentile( 50.0 ) );
+  }
+
+  @Override
+  public long getListenerCallbackTimeP99()
+  {
+    return TimeUnit.NANOSECONDS.toMicros( m_listenerCallbackTime.getPercentile( 99.0 ) );
+  }
+
+  @Override
+  public long getPacketsReceived()
+  {
+    return m_packetsReceived.sum();
+  }
+
+  @Override
+  public long getPacketsSent()
+  {
+    return m_packetsSent.sum();
+  }
+
+  @Override
+  public long getReceivedBroadcastStateMessages()
+  {
+    return m_received[0].sum();
+  }
+
+  /**
+   * @return the sizes, in bytes, of all received packets.
+   */
+  public Histogram getReceivedPacketSize()
+  {
+    return m_receivedPacketSize;
+  }
+
+  @Override
+  public long getReceivedPacketSizeMax()
+  {
+    return m_receivedPacketSize.getMax();
+  }
+
+  @Override
+  public long getReceivedPacketSizeP50()
+  {
+    return m_receivedPacketSize.getPercentile( 50.0 );
+  }
+
+  @Override
+  public long getReceivedPacketSizeP99()
+  {
+    return m_receivedPacketSize.getPercentile( 99.0 );
+  }
+
+  @Override
+  public long getReceivedServiceAddedMessages()
+  {
+    return m_received[1].sum();
+  }
+
+  @Override
+  public long getReceivedServiceRemovedMessages()
+  {
+    return m_received[2].sum();
+  }
+
+  /**
+   * @return the number of send tasks waiting for or being executed.
+   */
+  @Override
+  public long getSendQueueDepth()
+  {
+    return m_sendQueueDepth.sum();
+  }
+
+  @Override
+  public long getSentBroadcastStateMessages()
+  {
+    return m_sent[0].sum();
+  }
+
+  @Override
+  public long getSentServiceAddedMessages()
+  {
+    return m_sent[1].sum();
+  }
+
+  @Override
+  public long getSentServiceRemovedMessages()
+  {
+    return m_sent[2].sum();
+  }
+
+  /**
+   * @return the number of known local and remote services.
+   */
+  @Override
+  public long getServiceCount()
+  {
+    return m_announcer.getServiceCount();
+  }
+
+  @Override
+  public long getSkippedDecodes()
+  {
+    return m_skippedDecodes.sum();
+  }
+
+  /**
+   * @return the time, in milliseconds, it took the announcer to learn the
+   *         state of its peers upon start, or -1 if it did not yet.
+   * @see MulticastServiceAnnouncer#start()
+   */
+  @Override
+  public long getStartupTime()
+  {
+    long time = m_startupTime;
+    return ( time < 0L ) ? -1L : TimeUnit.NANOSECONDS.toMillis( time );
+  }
+
+  /**
+   * @return the time, in nanoseconds, traced announcements took from being
+   *         received until being decoded.
+   * @see MulticastConfig#getTraceSampleRate()
+   */
+  public Histogram getTraceDecodeTime()
+  {
+    return m_traceDecodeTime;
+  }
+
+  @Override
+  public long getTraceDecodeTimeP99()
+  {
+    return TimeUnit.NANOSECONDS.toMicros( m_traceDecodeTime.getPercentile( 99.0 ) );
+  }
+
+  /**
+   * @return the time, in nanoseconds, traced announcements took from being
+   *         decoded until a service listener was called back.
+   * @see MulticastConfig#getTraceSampleRate()
+   */
+  public Histogram getTraceDispatchTime()
+  {
+    return m_traceDispatchTime;
+  }
+
+  @Override
+  public long getTraceDispatchTimeP99()
+  {
+    return TimeUnit.NANOSECONDS.toMicros( m_traceDispatchTime.getPercentile( 99.0 ) );
+  }
+
+  /**
+   * @return the time, in microseconds, traced announcements took from being
+   *         sent by their peer until a service listener was called back.
+   * @see MulticastConfig#getTraceSampleRate()
+   */
+  public Histogram getTraceEndToEndTime()
+  {
+    return m_traceEndToEndTime;
+  }
+
+  @Override
+  public long getTraceEndToEndTimeP50()
+  {
+    return m_traceEndToEndTime.getPercentile( 50.0 );
+  }
+
+  @Override
+  public long getTraceEndToEndTimeP99()
+  {
+    return m_traceEndToEndTime.getPercentile( 99.0 );
+  }
+
+  /**
+   * @return the time, in microseconds, traced announcements took from being
+   *         sent by their peer until being received.
+   * @see MulticastConfig#getTraceSampleRate()
+   */
+  public Histogram getTraceNetworkTime()
+  {
+    return m_traceNetworkTime;
+  }
+
+  @Override
+  public long getTraceNetworkTimeP99()
+  {
+    return m_traceNetworkTime.getPercentile( 99.0 );
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format(
+        "packets sent=%d (%d bytes), packets received=%d (%d bytes), decode failures=%d, dropped=%d, services=%d",
+        Long.valueOf( getPacketsSent() ), Long.valueOf( getBytesSent() ), Long.valueOf( getPacketsReceived() ),
+        Long.valueOf( getBytesReceived() ), Long.valueOf( getDecodeFailures() ), Long.valueOf( getDroppedPackets() ),
+        Long.valueOf( getServiceCount() ) );
+  }
+
+  void messageReceived( MulticastMessage msg )
+  {
+    m_received[typeOf( msg )].increment();
+  }
+
+  void messageSent( MulticastMessage msg )
+  {
+    m_sent[typeOf( msg )].increment();
+  }
+
+  void packetReceived( int length )
+  {
+    m_packetsReceived.increment();
+    m_bytesReceived.add( length );
+    m_receivedPacketSize.record( length );
+  }
+
+  void packetSent( int length )
+  {
+    m_packetsSent.increment();
+    m_bytesSent.add( length );
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+/**
+ * Management interface of {@link AnnouncerMetrics}, as exported via JMX.
+ * Durations are in microseconds, sizes in bytes.
+ */
+public interface AnnouncerMetricsMXBean
+{
+  long getBytesReceived();
+
+  long getBytesSent();
+
+  long getCompressionSavings();
+
+  long getDecodeFailures();
+
+  long getDispatchQueueDepth();
+
+  long getDroppedPackets();
+
+  long getEvictions();
+
+  long getListenerCallbackTimeMax();
+
+  double getListenerCallbackTimeMean();
+
+  long getListenerCallbackTimeP50();
+
+  long getListenerCallbackTimeP99();
+
+  long getPacketsReceived();
+
+  long getPacketsSent();
+
+  long getReceivedBroadcastStateMessages();
+
+  long getReceivedPacketSizeMax();
+
+  long getReceivedPacketSizeP50();
+
+  long getReceivedPacketSizeP99();
+
+  long getReceivedServiceAddedMessages();
+
+  long getReceivedServiceRemovedMessages();
+
+  long getSendQueueDepth();
+
+  long getSentBroadcastStateMessages();
+
+  long getSentServiceAddedMessages();
+
+  long getSentServiceRemovedMessages();
+
+  long getServiceCount();
+
+  long getSkippedDecodes();
+
+  long getStartupTime();
+
+  long getTraceDecodeTimeP99();
+
+  long getTraceDispatchTimeP99();
+
+  long getTraceEndToEndTimeP50();
+
+  long getTraceEndToEndTimeP99();
+
+  long getTraceNetworkTimeP99();
+}
@@ -11,8 +11,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import usd.ServiceInfo;
 
@@ -22,8 +28,66 @@ import usd.ServiceInfo;
  */
 public class CborCodec
 {
+  /**
+   * Provides direct access to the underlying buffer, allowing strings to be
+   * decoded without copying them first. Also keeps track of the number of
+   * bytes that can still be allocated while decoding.
+   */
+  static final class CborInputStream extends ByteArrayInputStream
+  {
+    private long m_budget;
+
+    CborInputStream( byte[] buf )
+    {
+      this( buf, 0, buf.length, Integer.MAX_VALUE );
+    }
+
+    CborInputStream( byte[] buf, int offset, int length )
+    {
+      this( buf, offset, length, Integer.MAX_VALUE );
+    }
+
+    CborInputStream( byte[] buf, int offset, int length, long budget )
+    {
+      super( buf, offset, length );
+      m_budget = budget;
+    }
+
+    /**
+     * Claims the given number of bytes from the allocation budget.
+     * 
+     * @throws IOException
+     *           in case the budget is exhausted.
+     */
+    void allocate( long size ) throws IOException
+    {
+      if ( size > m_budget )
+      {
+        throw new IOException( "Allocation budget exceeded!" );
+      }
+      m_budget -= size;
+    }
+
+    byte[] buffer()
+    {
+      return buf;
+    }
+
+    long budget()
+    {
+      return m_budget;
+    }
+
+    int position()
+    {
+      return pos;
+    }
+  }
+
   static final int MT_UNSIGNED_INT = 0;
+  static final int MT_BYTE_STRING = 2;
   static final int MT_TEXT_STRING = 3;
+  static final int MT_ARRAY = 4;
   static final int MT_MAP = 5;
   static final int MT_TAG = 6;
 
@@ -32,7 +96,52 @@ public class CborCodec
   private static final int FOUR_BYTES = 0x1a;
   private static final int EIGHT_BYTES = 0x1b;
 
+  private static final int CODE_KEY = 0;
+  private static final int CODE_SCHEME = 1;
+  private static final int CODE_HOST = 2;
+
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  /** Canonical strings for all decoded identifiers, names, keys and values. */
+  private static final StringTable STRINGS = new StringTable( 16 * 1024, 256 );
+
   private static final int MAGIC = 55799;
+  private static final int FRAGMENT_MAGIC = 55800;
+
+  /** Worst-case size of the header of a fragment. */
+  static final int FRAGMENT_OVERHEAD = 24;
+  /** The minimal packet size we support. */
+  static final int MIN_PACKET_SIZE = 128;
+  static final int MIN_FRAGMENT_SIZE = MIN_PACKET_SIZE - FRAGMENT_OVERHEAD;
+
+  /** Denotes the body of the message is deflated. */
+  static final int INFO_COMPRESSED = 0x08;
+  /** Denotes the body of the message uses the compact (v2) encoding. */
+  static final int INFO_V2 = 0x10;
+  /** Denotes the body of the message starts with its send timestamp. */
+  static final int INFO_TIMESTAMP = 0x20;
+  /** The maximum size of byte strings and inflated bodies we accept. */
+  static final int MAX_BYTES_SIZE = 1024 * 1024;
+  /**
+   * Estimated overhead, in bytes, of a single decoded map entry, including its
+   * copy in the {@link ServiceInfo}.
+   */
+  private static final int MAP_ENTRY_SIZE = 64;
+  /**
+   * Estimated overhead, in bytes, of a single decoded string, including its
+   * entry in the string table.
+   */
+  private static final int STRING_SIZE = 64;
+
+  /**
+   * Preset dictionary for compressing message bodies, containing the encoded
+   * forms of commonly used keys and values. The most common ones are placed at
+   * the end, as these can be referenced most cheaply. Changing this dictionary
+   * breaks compatibility with existing peers!
+   */
+  private static final byte[] DICTIONARY = createDictionary( "description", "capabilities", "protocol", "shard",
+      "range", "region", "zone", "weight", "service.", "false", "true", "https://", "http://", "127.0.0.1",
+      "localhost", "version", "name", "id" );
 
   public static MulticastMessage decode( byte[] data ) throws IOException
   {
@@ -41,7 +150,34 @@ public class CborCodec
 
   public static MulticastMessage decode( byte[] data, int offset, int length ) throws IOException
   {
-    ByteArrayInputStream bais = new ByteArrayInputStream( data, offset, length );
+    return decode( data, offset, length, WireDictionary.DEFAULT );
+  }
+
+  /**
+   * Decodes a message in either the original (v1) or compact (v2) encoding.
+   * 
+   * @param dictionary
+   *          the dictionary to use for decoding v2 messages.
+   */
+  public static MulticastMessage decode( byte[] data, int offset, int length, WireDictionary dictionary )
+      throws IOException
+  {
+    return decode( data, offset, length, dictionary, MAX_BYTES_SIZE );
+  }
+
+  /**
+   * Decodes a message in either the original (v1) or compact (v2) encoding,
+   * allocating at most the given number of bytes for its (inflated) body.
+   * 
+   * @param dictionary
+   *          the dictionary to use for decoding v2 messages;
+   * @param maxAllocation
+   *          the maximum number of bytes to allocate while decoding.
+   */
+  public static MulticastMessage decode( byte[] data, int offset, int length, WireDictionary dictionary,
+      int maxAllocation ) throws IOException
+  {
+    CborInputStream bais = new CborInputStream( data, offset, length, maxAllocation );
     // Header
     long magic = decodeInt( bais, MT_TAG );
     if ( magic != MAGIC )
@@ -49,54 +185,280 @@ public class CborCodec
       throw new IOException( "Invalid packet, missing magic!" );
     }
 
-    ServiceInfo serviceInfo = null;
-
     // Info byte
     int info = ( int )( decodeInt( bais, MT_UNSIGNED_INT ) & 0xffffffff );
-    if ( ( info & 0x03 ) != 0 )
+
+    CborInputStream is = bais;
+    if ( ( info & INFO_COMPRESSED ) != 0 )
     {
-      // ID
-      String id = decodeString( bais );
-      // Name
-      String name = decodeString( bais );
-      // URI
-      URI uri = URI.create( decodeString( bais ) );
-      // Props
-      Map<String, String> props = decodeMap( bais );
+      byte[] body = inflate( decodeBytes( bais ), ( int )Math.min( MAX_BYTES_SIZE, bais.budget() ) );
+      bais.allocate( body.length );
+      is = new CborInputStream( body, 0, body.length, bais.budget() );
+      info &= ~INFO_COMPRESSED;
+    }
+
+    boolean v2 = ( info & INFO_V2 ) != 0;
+    info &= ~INFO_V2;
 
-      serviceInfo = new ServiceInfo( id, name, uri, props );
+    long timestamp = 0L;
+    if ( ( info & INFO_TIMESTAMP ) != 0 )
+    {
+      timestamp = decodeInt( is, MT_UNSIGNED_INT );
+      info &= ~INFO_TIMESTAMP;
     }
 
-    return new MulticastMessage( info, serviceInfo );
+    // Requests for the state of peers carry the dictionary of the requester,
+    // so peers with a different dictionary learn about it early...
+    if ( v2 && decodeInt( is, MT_UNSIGNED_INT ) != dictionary.getChecksum() )
+    {
+      throw new IncompatibleDictionaryException();
+    }
+
+    if ( ( info & 0x03 ) == 0 )
+    {
+      return new MulticastMessage( info, null );
+    }
+
+    // ID
+    String id = decodeString( is );
+    // The remainder is only decoded when actually needed...
+    is.allocate( is.available() );
+    byte[] remainder = readFully( is, new byte[is.available()] );
+
+    return new MulticastMessage( info, id, remainder, v2 ? dictionary : null, timestamp, is.budget() );
   }
 
   public static byte[] encode( MulticastMessage message ) throws IOException
+  {
+    return encode( message, null );
+  }
+
+  /**
+   * Encodes a message in either the original (v1) or compact (v2) encoding.
+   * The compact encoding replaces well-known property keys, URI schemes and
+   * hosts by integer codes and splits the URI in its components.
+   * 
+   * @param dictionary
+   *          the dictionary to use for the compact encoding, or
+   *          <code>null</code> to use the original encoding.
+   * @see MulticastMessage#getTimestamp()
+   */
+  public static byte[] encode( MulticastMessage message, WireDictionary dictionary ) throws IOException
   {
     ByteArrayOutputStream baos = new ByteArrayOutputStream( 32 * 1024 );
     // Header
     encodeInt( baos, MT_TAG, MAGIC );
     // Info byte
-    encodeInt( baos, MT_UNSIGNED_INT, message.getInfo() );
+    long timestamp = message.getTimestamp();
+    encodeInt( baos, MT_UNSIGNED_INT,
+        message.getInfo() | ( dictionary != null ? INFO_V2 : 0 ) | ( timestamp != 0L ? INFO_TIMESTAMP : 0 ) );
+    if ( timestamp != 0L )
+    {
+      // Part of the body, so it is compressed along with it...
+      encodeInt( baos, MT_UNSIGNED_INT, timestamp );
+    }
+
+    if ( dictionary != null )
+    {
+      encodeInt( baos, MT_UNSIGNED_INT, dictionary.getChecksum() );
+    }
 
     ServiceInfo info = message.getServiceInfo();
     if ( info != null )
     {
-      // ID
-      encodeString( baos, info.getId() );
+      if ( dictionary != null )
+      {
+        encodeServiceInfoV2( baos, info, dictionary );
+      }
+      else
+      {
+        // ID
+        encodeString( baos, info.getId() );
+        // Name
+        encodeString( baos, info.getName() );
+        // URI
+        encodeString( baos, info.getURI().toASCIIString() );
+        // Props
+        encodeMap( baos, info.getProperties() );
+      }
+    }
+
+    return baos.toByteArray();
+  }
+
+  /**
+   * Compresses the body of an encoded message using Deflate with a preset
+   * dictionary. The header remains uncompressed, and is flagged as being
+   * compressed so {@link #decode(byte[])} transparently inflates it.
+   * 
+   * @param data
+   *          the encoded message to compress.
+   * @return the compressed message, or the given message in case compressing
+   *         does not make it any smaller.
+   */
+  static byte[] compress( byte[] data ) throws IOException
+  {
+    ByteArrayInputStream bais = new ByteArrayInputStream( data );
+    decodeInt( bais, MT_TAG );
+    int info = ( int )( decodeInt( bais, MT_UNSIGNED_INT ) & 0xffffffff );
+    if ( ( info & 0x03 ) == 0 || ( info & INFO_COMPRESSED ) != 0 )
+    {
+      // Nothing to compress...
+      return data;
+    }
+
+    int offset = data.length - bais.available();
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream( data.length );
+    Deflater deflater = new Deflater();
+    try
+    {
+      deflater.setDictionary( DICTIONARY );
+      deflater.setInput( data, offset, data.length - offset );
+      deflater.finish();
+
+      byte[] buf = new byte[1024];
+      while ( !deflater.finished() )
+      {
+        int len = deflater.deflate( buf );
+        body.write( buf, 0, len );
+      }
+    }
+    finally
+    {
+      deflater.end();
+    }
+
+    if ( offset + body.size() + 5 >= data.length )
+    {
+      // Not worth it...
+      return data;
+    }
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream( offset + body.size() + 5 );
+    encodeInt( baos, MT_TAG, MAGIC );
+    encodeInt( baos, MT_UNSIGNED_INT, info | INFO_COMPRESSED );
+    encodeInt( baos, MT_BYTE_STRING, body.size() );
+    body.writeTo( baos );
+
+    return baos.toByteArray();
+  }
+
+  static byte[] decodeBytes( InputStream is ) throws IOException
+  {
+    int size = decodeLength( is, MT_BYTE_STRING, 1 );
+    if ( size > MAX_BYTES_SIZE )
+    {
+      throw new IOException( "Byte string too long!" );
+    }
+    allocate( is, size );
+    return readFully( is, new byte[size] );
+  }
+
+  /**
+   * Decodes a single fragment of a larger message.
+   * 
+   * @see #fragment(byte[], int, int)
+   */
+  static FragmentAssembler.Fragment decodeFragment( byte[] data, int offset, int length ) throws IOException
+  {
+    ByteArrayInputStream bais = new ByteArrayInputStream( data, offset, length );
+    // Header
+    long magic = decodeInt( bais, MT_TAG );
+    if ( magic != FRAGMENT_MAGIC )
+    {
+      throw new IOException( "Invalid packet, missing fragment magic!" );
+    }
+
+    int messageId = ( int )decodeInt( bais, MT_UNSIGNED_INT );
+    long index = decodeInt( bais, MT_UNSIGNED_INT );
+    long count = decodeInt( bais, MT_UNSIGNED_INT );
+    if ( index > Short.MAX_VALUE || count > Short.MAX_VALUE )
+    {
+      throw new IOException( "Too many fragments!" );
+    }
+    byte[] chunk = decodeBytes( bais );
+
+    return new FragmentAssembler.Fragment( messageId, ( int )index, ( int )count, chunk );
+  }
+
+  /**
+   * Decodes the remainder of a service information, following its identifier.
+   * 
+   * @param id
+   *          the already decoded service identifier;
+   * @param data
+   *          the encoded remainder of the service information;
+   * @param dictionary
+   *          the dictionary to decode a v2 encoded service information, or
+   *          <code>null</code> in case it is v1 encoded;
+   * @param budget
+   *          the maximum number of bytes to allocate while decoding.
+   */
+  static ServiceInfo decodeServiceInfo( String id, byte[] data, WireDictionary dictionary, long budget )
+      throws IOException
+  {
+    CborInputStream is = new CborInputStream( data, 0, data.length, budget );
+    if ( dictionary == null )
+    {
       // Name
-      encodeString( baos, info.getName() );
+      String name = decodeString( is );
       // URI
-      encodeString( baos, info.getURI().toASCIIString() );
+      URI uri = URI.create( decodeString( is ) );
       // Props
-      encodeMap( baos, info.getProperties() );
+      Map<String, String> props = decodeMap( is );
+
+      return new ServiceInfo( id, name, uri, props );
     }
 
-    return baos.toByteArray();
+    // Name
+    String name = decodeString( is );
+    // URI
+    URI uri;
+    if ( peekType( is ) == MT_TEXT_STRING )
+    {
+      uri = URI.create( decodeString( is ) );
+    }
+    else
+    {
+      if ( decodeInt( is, MT_ARRAY ) != 4 )
+      {
+        throw new IOException( "Invalid URI!" );
+      }
+      StringBuilder sb = new StringBuilder();
+      sb.append( decodeCodedString( is, dictionary, CODE_SCHEME ) ).append( "://" );
+      sb.append( decodeCodedString( is, dictionary, CODE_HOST ) );
+      long port = decodeInt( is, MT_UNSIGNED_INT );
+      if ( port > 0 )
+      {
+        sb.append( ':' ).append( port - 1 );
+      }
+      sb.append( decodeString( is ) );
+      uri = URI.create( sb.toString() );
+    }
+    // Props
+    int len = decodeLength( is, MT_MAP, 2 );
+    if ( len > Short.MAX_VALUE )
+    {
+      throw new IOException( "Too many map entries!" );
+    }
+    allocate( is, len * MAP_ENTRY_SIZE );
+    Map<String, String> props = new HashMap<String, String>( len );
+    for ( int i = 0; i < len; i++ )
+    {
+      props.put( decodeCodedString( is, dictionary, CODE_KEY ), decodeString( is ) );
+    }
+
+    return new ServiceInfo( id, name, uri, props );
   }
 
   static long decodeInt( InputStream is, int type ) throws IOException
   {
     int ib = is.read();
+    if ( ib < 0 )
+    {
+      throw new EOFException();
+    }
 
     int mt = ib >>> 5;
     if ( mt != type )
@@ -111,35 +473,55 @@ public class CborCodec
     }
     else if ( len == ONE_BYTE )
     {
-      return is.read();
+      return readUnsigned( is, 1 );
     }
     else if ( len == TWO_BYTES )
     {
-      byte[] buf = readFully( is, new byte[2] );
-      return ( buf[0] & 0xFF ) << 8 | ( buf[1] & 0xFF );
+      return readUnsigned( is, 2 );
     }
     else if ( len == FOUR_BYTES )
     {
-      byte[] buf = readFully( is, new byte[4] );
-      return ( ( buf[0] & 0xFF ) << 24 | ( buf[1] & 0xFF ) << 16 | ( buf[2] & 0xFF ) << 8 | ( buf[3] & 0xFF ) ) & 0xffffffffL;
+      return readUnsigned( is, 4 );
     }
     else if ( len == EIGHT_BYTES )
     {
-      byte[] buf = readFully( is, new byte[8] );
-      return ( buf[0] & 0xFFL ) << 56 | ( buf[1] & 0xFFL ) << 48 | ( buf[2] & 0xFFL ) << 40 | ( buf[3] & 0xFFL ) << 32 | //
-          ( buf[4] & 0xFFL ) << 24 | ( buf[5] & 0xFFL ) << 16 | ( buf[6] & 0xFFL ) << 8 | ( buf[7] & 0xFFL );
+      long result = readUnsigned( is, 8 );
+      if ( result < 0L )
+      {
+        throw new IOException( "Integer too large!" );
+      }
+      return result;
     }
     throw new IOException( "Invalid integer!" );
   }
 
+  /**
+   * Decodes the length of a string, array or map, and verifies it against the
+   * remaining input <em>before</em> anything is allocated for it.
+   * 
+   * @param minItemSize
+   *          the minimum number of encoded bytes a single item takes.
+   * @throws EOFException
+   *           in case the remaining input cannot hold the decoded length.
+   */
+  static int decodeLength( InputStream is, int type, int minItemSize ) throws IOException
+  {
+    long size = decodeInt( is, type );
+    if ( size > is.available() / minItemSize )
+    {
+      throw new EOFException( "Length exceeds remaining input!" );
+    }
+    return ( int )size;
+  }
+
   static Map<String, String> decodeMap( InputStream is ) throws IOException
   {
-    long size = decodeInt( is, MT_MAP );
-    if ( size > Short.MAX_VALUE )
+    int len = decodeLength( is, MT_MAP, 2 );
+    if ( len > Short.MAX_VALUE )
     {
       throw new IOException( "Too many map entries!" );
     }
-    int len = ( int )( size & Short.MAX_VALUE );
+    allocate( is, len * MAP_ENTRY_SIZE );
     Map<String, String> result = new HashMap<String, String>( len );
     for ( int i = 0; i < len; i++ )
     {
@@ -150,12 +532,22 @@ public class CborCodec
 
   static String decodeString( InputStream is ) throws IOException
   {
-    long size = decodeInt( is, MT_TEXT_STRING );
-    if ( size > Short.MAX_VALUE )
+    int len = decodeLength( is, MT_TEXT_STRING, 1 );
+    if ( len > Short.MAX_VALUE )
     {
       throw new IOException( "String too long!" );
     }
-    return new String( readFully( is, new byte[( int )( size & Short.MAX_VALUE )] ) );
+    // Worst case, each byte becomes a UTF-16 char...
+    allocate( is, STRING_SIZE + 2 * len );
+    if ( is instanceof CborInputStream )
+    {
+      // Take the string directly from the underlying buffer...
+      CborInputStream cis = ( CborInputStream )is;
+      String result = STRINGS.get( cis.buffer(), cis.position(), len );
+      cis.skip( len );
+      return result;
+    }
+    return STRINGS.get( readFully( is, new byte[len] ), 0, len );
   }
 
   static void encodeInt( OutputStream baos, int type, long value ) throws IOException
@@ -210,13 +602,271 @@ public class CborCodec
 
   static void encodeString( OutputStream baos, String str ) throws IOException
   {
-    encodeInt( baos, MT_TEXT_STRING, str.length() );
-    for ( byte b : str.getBytes( "UTF-8" ) )
+    byte[] bytes = str.getBytes( UTF8 );
+    encodeInt( baos, MT_TEXT_STRING, bytes.length );
+    baos.write( bytes );
+  }
+
+  /**
+   * Calculates a cheap 64-bit digest (FNV-1a) of the given data, used to
+   * recognize byte-identical messages without decoding them.
+   */
+  static long digest( byte[] data, int offset, int length )
+  {
+    long hash = 0xcbf29ce484222325L;
+    for ( int i = offset, end = offset + length; i < end; i++ )
+    {
+      hash ^= data[i] & 0xff;
+      hash *= 0x100000001b3L;
+    }
+    return hash;
+  }
+
+  /**
+   * Splits an encoded message into fragments that each fit in a single packet.
+   * Each fragment is prefixed with a distinct magic, the message identifier and
+   * its index and count, allowing the receiver to reassemble them. Older
+   * receivers simply reject fragments as invalid packets.
+   * 
+   * @param data
+   *          the encoded message to split;
+   * @param messageId
+   *          the identifier of the message, should be unique for the sender;
+   * @param maxPacketSize
+   *          the maximum size of each fragment.
+   * @return the list of fragments, never <code>null</code>.
+   */
+  static List<byte[]> fragment( byte[] data, int messageId, int maxPacketSize ) throws IOException
+  {
+    int chunkSize = maxPacketSize - FRAGMENT_OVERHEAD;
+    int count = ( data.length + chunkSize - 1 ) / chunkSize;
+    if ( count > Short.MAX_VALUE )
+    {
+      throw new IOException( "Message too large!" );
+    }
+
+    List<byte[]> result = new ArrayList<byte[]>( count );
+    for ( int i = 0, offset = 0; i < count; i++, offset += chunkSize )
+    {
+      int len = Math.min( chunkSize, data.length - offset );
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream( len + FRAGMENT_OVERHEAD );
+      encodeInt( baos, MT_TAG, FRAGMENT_MAGIC );
+      encodeInt( baos, MT_UNSIGNED_INT, messageId & 0xffffffffL );
+      encodeInt( baos, MT_UNSIGNED_INT, i );
+      encodeInt( baos, MT_UNSIGNED_INT, count );
+      encodeInt( baos, MT_BYTE_STRING, len );
+      baos.write( data, offset, len );
+
+      result.add( baos.toByteArray() );
+    }
+    return result;
+  }
+
+  /**
+   * @return <code>true</code> if the given packet is a fragment of a larger
+   *         message, <code>false</code> if it is a complete message.
+   */
+  static boolean isFragment( byte[] data, int offset, int length )
+  {
+    try
+    {
+      return decodeInt( new ByteArrayInputStream( data, offset, length ), MT_TAG ) == FRAGMENT_MAGIC;
+    }
+    catch ( IOException e )
+    {
+      return false;
+    }
+  }
+
+  private static String decodeCodedString( InputStream is, WireDictionary dictionary, int type ) throws IOException
+  {
+    if ( peekType( is ) == MT_TEXT_STRING )
+    {
+      return decodeString( is );
+    }
+    long code = decodeInt( is, MT_UNSIGNED_INT );
+    String result;
+    if ( type == CODE_KEY )
+    {
+      result = dictionary.getKey( code );
+    }
+    else if ( type == CODE_SCHEME )
+    {
+      result = dictionary.getScheme( code );
+    }
+    else
+    {
+      result = dictionary.getHost( code );
+    }
+    if ( result == null )
+    {
+      throw new IOException( "Unknown dictionary code!" );
+    }
+    return result;
+  }
+
+  private static void encodeCodedString( OutputStream os, int code, String str ) throws IOException
+  {
+    if ( code >= 0 )
+    {
+      encodeInt( os, MT_UNSIGNED_INT, code );
+    }
+    else
+    {
+      encodeString( os, str );
+    }
+  }
+
+  private static void encodeServiceInfoV2( OutputStream os, ServiceInfo info, WireDictionary dictionary )
+      throws IOException
+  {
+    // ID
+    encodeString( os, info.getId() );
+    // Name
+    encodeString( os, info.getName() );
+    // URI, split in its components if we can reconstruct it exactly...
+    URI uri = info.getURI();
+    String uriStr = uri.toASCIIString();
+
+    String scheme = uri.getScheme();
+    String host = uri.getHost();
+    String rest = null;
+    if ( !uri.isOpaque() && scheme != null && host != null && uri.getRawUserInfo() == null )
+    {
+      StringBuilder sb = new StringBuilder();
+      if ( uri.getRawPath() != null )
+      {
+        sb.append( uri.getRawPath() );
+      }
+      if ( uri.getRawQuery() != null )
+      {
+        sb.append( '?' ).append( uri.getRawQuery() );
+      }
+      if ( uri.getRawFragment() != null )
+      {
+        sb.append( '#' ).append( uri.getRawFragment() );
+      }
+      rest = sb.toString();
+
+      String expected = scheme + "://" + host + ( uri.getPort() >= 0 ? ":" + uri.getPort() : "" ) + rest;
+      if ( !expected.equals( uriStr ) )
+      {
+        rest = null;
+      }
+    }
+
+    if ( rest == null )
+    {
+      encodeString( os, uriStr );
+    }
+    else
+    {
+      encodeInt( os, MT_ARRAY, 4 );
+      encodeCodedString( os, dictionary.getSchemeCode( scheme ), scheme );
+      encodeCodedString( os, dictionary.getHostCode( host ), host );
+      encodeInt( os, MT_UNSIGNED_INT, uri.getPort() + 1 );
+      encodeString( os, rest );
+    }
+    // Props
+    Map<String, String> props = info.getProperties();
+    encodeInt( os, MT_MAP, props.size() );
+    for ( Map.Entry<String, String> entry : props.entrySet() )
+    {
+      encodeCodedString( os, dictionary.getKeyCode( entry.getKey() ), entry.getKey() );
+      encodeString( os, entry.getValue() );
+    }
+  }
+
+  private static int peekType( InputStream is ) throws IOException
+  {
+    is.mark( 1 );
+    int ib = is.read();
+    is.reset();
+    return ( ib < 0 ) ? -1 : ( ib >>> 5 );
+  }
+
+  private static byte[] createDictionary( String... words )
+  {
+    try
     {
-      baos.write( b );
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      for ( String word : words )
+      {
+        encodeString( baos, word );
+      }
+      return baos.toByteArray();
+    }
+    catch ( IOException e )
+    {
+      throw new RuntimeException( e );
+    }
+  }
+
+  private static void allocate( InputStream is, long size ) throws IOException
+  {
+    if ( is instanceof CborInputStream )
+    {
+      ( ( CborInputStream )is ).allocate( size );
     }
   }
 
+  private static byte[] inflate( byte[] data, int maxSize ) throws IOException
+  {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream( Math.min( 4 * data.length, maxSize ) );
+    Inflater inflater = new Inflater();
+    try
+    {
+      inflater.setInput( data );
+
+      byte[] buf = new byte[1024];
+      while ( !inflater.finished() )
+      {
+        int len = inflater.inflate( buf );
+        if ( len == 0 )
+        {
+          if ( inflater.needsDictionary() )
+          {
+            inflater.setDictionary( DICTIONARY );
+          }
+          else if ( inflater.needsInput() )
+          {
+            throw new EOFException();
+          }
+        }
+        if ( baos.size() + len > maxSize )
+        {
+          throw new IOException( "Inflated body too large!" );
+        }
+        baos.write( buf, 0, len );
+      }
+    }
+    catch ( DataFormatException e )
+    {
+      throw new IOException( "Invalid compressed body!", e );
+    }
+    finally
+    {
+      inflater.end();
+    }
+    return baos.toByteArray();
+  }
+
+  private static long readUnsigned( InputStream is, int count ) throws IOException
+  {
+    long result = 0L;
+    for ( int i = 0; i < count; i++ )
+    {
+      int b = is.read();
+      if ( b < 0 )
+      {
+        throw new EOFException();
+      }
+      result = ( result << 8 ) | b;
+    }
+    return result;
+  }
+
   private static byte[] readFully( InputStream is, byte[] buf ) throws IOException
   {
     int len = buf.length;
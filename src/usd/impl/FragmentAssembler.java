@@ -0,0 +1,217 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Reassembles fragmented messages. The amount of pending messages and buffered
+ * bytes is bounded, and incomplete messages are discarded after a timeout.
+ * <p>
+ * This class is not thread-safe, it is intended to be used by a single receive
+ * thread only.
+ * </p>
+ */
+final class FragmentAssembler
+{
+  /**
+   * A single fragment of a larger message.
+   */
+  static final class Fragment
+  {
+    final int m_messageId;
+    final int m_index;
+    final int m_count;
+    final byte[] m_data;
+
+    Fragment( int messageId, int index, int count, byte[] data )
+    {
+      m_messageId = messageId;
+      m_index = index;
+      m_count = count;
+      m_data = data;
+    }
+  }
+
+  /**
+   * Denotes a partially received message.
+   */
+  static final class PendingMessage
+  {
+    final long m_created;
+    final byte[][] m_chunks;
+    int m_received;
+    int m_size;
+
+    PendingMessage( long created, int count )
+    {
+      m_created = created;
+      m_chunks = new byte[count][];
+    }
+
+    byte[] toByteArray()
+    {
+      byte[] result = new byte[m_size];
+      int offset = 0;
+      for ( byte[] chunk : m_chunks )
+      {
+        System.arraycopy( chunk, 0, result, offset, chunk.length );
+        offset += chunk.length;
+      }
+      return result;
+    }
+  }
+
+  private final Map<String, PendingMessage> m_pending;
+  private final int m_maxPending;
+  private final int m_maxMessageSize;
+  private final int m_maxBufferedSize;
+  private final long m_timeout;
+
+  private int m_bufferedSize;
+
+  /**
+   * Creates a new {@link FragmentAssembler} instance.
+   *
+   * @param maxPending
+   *          the maximum number of incomplete messages;
+   * @param maxMessageSize
+   *          the maximum size of a single message, in bytes;
+   * @param maxBufferedSize
+   *          the maximum number of bytes buffered for all incomplete messages;
+   * @param timeout
+   *          the time, in milliseconds, after which incomplete messages are
+   *          discarded.
+   */
+  FragmentAssembler( int maxPending, int maxMessageSize, int maxBufferedSize, long timeout )
+  {
+    m_pending = new LinkedHashMap<String, PendingMessage>();
+    m_maxPending = maxPending;
+    m_maxMessageSize = maxMessageSize;
+    m_maxBufferedSize = maxBufferedSize;
+    m_timeout = timeout;
+  }
+
+  /**
+   * Adds a received fragment.
+   *
+   * @param source
+   *          the sender of the fragment, used to keep messages of different
+   *          senders apart;
+   * @param fragment
+   *          the received fragment;
+   * @param now
+   *          the current time, in milliseconds.
+   * @return the reassembled message, or <code>null</code> if the message is not
+   *         yet complete (or discarded).
+   */
+  byte[] add( Object source, Fragment fragment, long now )
+  {
+    expire( now );
+
+    if ( fragment.m_count <= 0 || fragment.m_index < 0 || fragment.m_index >= fragment.m_count )
+    {
+      // Bogus fragment...
+      return null;
+    }
+
+    String key = source + "/" + fragment.m_messageId;
+
+    PendingMessage msg = m_pending.get( key );
+    if ( msg == null )
+    {
+      if ( fragment.m_count > ( m_maxMessageSize / CborCodec.MIN_FRAGMENT_SIZE ) + 1 )
+      {
+        // Cannot ever fit...
+        return null;
+      }
+      msg = new PendingMessage( now, fragment.m_count );
+      m_pending.put( key, msg );
+    }
+    else if ( msg.m_chunks.length != fragment.m_count )
+    {
+      // Inconsistent fragment, drop the entire message...
+      discard( key );
+      return null;
+    }
+
+    if ( msg.m_chunks[fragment.m_index] != null )
+    {
+      // Duplicate fragment...
+      return null;
+    }
+
+    if ( msg.m_size + fragment.m_data.length > m_maxMessageSize )
+    {
+      discard( key );
+      return null;
+    }
+
+    msg.m_chunks[fragment.m_index] = fragment.m_data;
+    msg.m_received++;
+    msg.m_size += fragment.m_data.length;
+    m_bufferedSize += fragment.m_data.length;
+
+    if ( msg.m_received == msg.m_chunks.length )
+    {
+      discard( key );
+      return msg.toByteArray();
+    }
+
+    // Make sure we stay within our bounds, dropping the oldest messages first...
+    Iterator<PendingMessage> iter = m_pending.values().iterator();
+    while ( iter.hasNext() && ( m_pending.size() > m_maxPending || m_bufferedSize > m_maxBufferedSize ) )
+    {
+      m_bufferedSize -= iter.next().m_size;
+      iter.remove();
+    }
+
+    return null;
+  }
+
+  /**
+   * @return the number of bytes currently buffered for incomplete messages.
+   */
+  int getBufferedSize()
+  {
+    return m_bufferedSize;
+  }
+
+  /**
+   * @return the number of incomplete messages.
+   */
+  int getPendingCount()
+  {
+    return m_pending.size();
+  }
+
+  private void discard( String key )
+  {
+    PendingMessage msg = m_pending.remove( key );
+    if ( msg != null )
+    {
+      m_bufferedSize -= msg.m_size;
+    }
+  }
+
+  private void expire( long now )
+  {
+    Iterator<PendingMessage> iter = m_pending.values().iterator();
+    while ( iter.hasNext() )
+    {
+      PendingMessage msg = iter.next();
+      if ( ( now - msg.m_created ) < m_timeout )
+      {
+        // Messages are kept in order of arrival, so the remainder is younger...
+        break;
+      }
+      m_bufferedSize -= msg.m_size;
+      iter.remove();
+    }
+  }
+}
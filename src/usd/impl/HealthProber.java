@@ -0,0 +1,585 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import usd.ServiceAnnouncer;
+import usd.ServiceInfo;
+import usd.ServiceListener;
+
+
+/**
+ * Actively probes the endpoints of the services known by a
+ * {@link ServiceAnnouncer}, and ranks them by their responsiveness.
+ * <p>
+ * Each distinct endpoint is probed, no matter how many services share it. The
+ * latency of the probes is smoothed with an exponentially weighted moving
+ * average; an endpoint failing {@value #FAILURE_THRESHOLD} probes in a row is
+ * considered unhealthy until a probe succeeds again.
+ * </p>
+ * <p>
+ * To keep the cost of probing sub-linear in the number of endpoints, each
+ * probe interval only probes the square root of the number of endpoints, most
+ * overdue first. Endpoints answering consistently are probed less and less
+ * often, up to {@value #MAX_BACKOFF} intervals apart. New and failing endpoints
+ * are probed ahead of all others, so they are probed every interval unless
+ * there are more of them than a single interval allows.
+ * </p>
+ */
+public final class HealthProber
+{
+  /**
+   * Checks whether an endpoint is responsive.
+   */
+  public static interface HealthCheck
+  {
+    /**
+     * @return the latency of the endpoint, in nanoseconds.
+     * @throws IOException
+     *           if the endpoint did not respond properly.
+     */
+    long probe( URI uri ) throws IOException;
+  }
+
+  /**
+   * Checks an endpoint by opening, and closing, a TCP connection to it.
+   */
+  public static final class TcpConnectCheck implements HealthCheck
+  {
+    private final int m_timeout;
+
+    /**
+     * @param timeout
+     *          the connect time out, in milliseconds.
+     */
+    public TcpConnectCheck( int timeout )
+    {
+      if ( timeout <= 0 )
+      {
+        throw new IllegalArgumentException( "Invalid timeout!" );
+      }
+      m_timeout = timeout;
+    }
+
+    @Override
+    public long probe( URI uri ) throws IOException
+    {
+      int port = uri.getPort();
+      if ( port < 0 )
+      {
+        if ( "http".equals( uri.getScheme() ) )
+        {
+          port = 80;
+        }
+        else if ( "https".equals( uri.getScheme() ) )
+        {
+          port = 443;
+        }
+        else
+        {
+          throw new IOException( "No port for " + uri + "!" );
+        }
+      }
+
+      long start = System.nanoTime();
+      Socket socket = new Socket();
+      try
+      {
+        socket.connect( new InetSocketAddress( uri.getHost(), port ), m_timeout );
+        return System.nanoTime() - start;
+      }
+      finally
+      {
+        socket.close();
+      }
+    }
+  }
+
+  /**
+   * The health of a single endpoint.
+   */
+  public static final class EndpointHealth
+  {
+    private final URI m_uri;
+
+    // Guarded by the prober...
+    int m_references;
+    boolean m_removed;
+    boolean m_probing;
+    long m_nextProbe;
+    int m_backoff = 1;
+
+    private volatile double m_latency = -1.0;
+    private volatile int m_failures;
+    private volatile long m_probes;
+
+    EndpointHealth( URI uri )
+    {
+      m_uri = uri;
+    }
+
+    /**
+     * @return the number of consecutive failed probes.
+     */
+    public int getConsecutiveFailures()
+    {
+      return m_failures;
+    }
+
+    /**
+     * @return the moving average of the probe latency, in nanoseconds, or -1
+     *         if no probe succeeded yet.
+     */
+    public long getLatency()
+    {
+      return ( long )m_latency;
+    }
+
+    /**
+     * @return the number of probes done so far.
+     */
+    public long getProbeCount()
+    {
+      return m_probes;
+    }
+
+    public URI getURI()
+    {
+      return m_uri;
+    }
+
+    /**
+     * @return <code>true</code> if this endpoint has not failed too many
+     *         probes in a row, <code>false</code> otherwise.
+     */
+    public boolean isHealthy()
+    {
+      return m_failures < FAILURE_THRESHOLD;
+    }
+
+    @Override
+    public String toString()
+    {
+      return String.format( "%s (latency=%d ns, failures=%d)", m_uri, Long.valueOf( getLatency() ),
+          Integer.valueOf( m_failures ) );
+    }
+
+    /**
+     * @return <code>true</code> if the latency is about as expected,
+     *         <code>false</code> if it deviates or this probe failed.
+     */
+    final boolean update( long latency, boolean success, double alpha )
+    {
+      m_probes++;
+      if ( !success )
+      {
+        m_failures++;
+        return false;
+      }
+
+      double average = m_latency;
+      boolean stable = m_failures == 0 && average >= 0.0 && latency <= 2.0 * average;
+      m_latency = ( average < 0.0 ) ? latency : average + alpha * ( latency - average );
+      m_failures = 0;
+      return stable;
+    }
+  }
+
+  /**
+   * The number of consecutive failed probes after which an endpoint is
+   * considered unhealthy.
+   */
+  public static final int FAILURE_THRESHOLD = 2;
+  /**
+   * The maximum number of intervals between two probes of a stable endpoint.
+   */
+  public static final int MAX_BACKOFF = 8;
+
+  private static final double ALPHA = 0.3;
+  private static final int PROBE_THREADS = 4;
+
+  private final ServiceAnnouncer m_announcer;
+  private final HealthCheck m_check;
+  private final long m_interval;
+  // Null if probes are run on a pool of our own...
+  private final Executor m_probeExecutor;
+  private final ServiceListener m_listener;
+  private final ConcurrentMap<URI, EndpointHealth> m_endpoints;
+  // Guarded by this...
+  private final Map<String, Map<String, URI>> m_byName;
+  private final PriorityQueue<EndpointHealth> m_urgent;
+  private final PriorityQueue<EndpointHealth> m_due;
+
+  private volatile ScheduledExecutorService m_scheduler;
+  private volatile ExecutorService m_ownExecutor;
+
+  /**
+   * Creates a new {@link HealthProber} instance, probing all endpoints every
+   * second by connecting to them with a time out of half a second.
+   */
+  public HealthProber( ServiceAnnouncer announcer )
+  {
+    this( announcer, new TcpConnectCheck( 500 ), 1000L );
+  }
+
+  /**
+   * Creates a new {@link HealthProber} instance.
+   *
+   * @param check
+   *          the check to probe endpoints with;
+   * @param interval
+   *          the probe interval, in milliseconds.
+   */
+  public HealthProber( ServiceAnnouncer announcer, HealthCheck check, long interval )
+  {
+    this( announcer, check, interval, null );
+  }
+
+  /**
+   * Creates a new {@link HealthProber} instance running its probes on the
+   * given executor, which is left running when this prober stops. In case no
+   * executor is given, probes run on a pool of our own while started.
+   */
+  HealthProber( ServiceAnnouncer announcer, HealthCheck check, long interval, Executor probeExecutor )
+  {
+    if ( announcer == null )
+    {
+      throw new IllegalArgumentException( "Announcer cannot be null!" );
+    }
+    if ( check == null )
+    {
+      throw new IllegalArgumentException( "Check cannot be null!" );
+    }
+    if ( interval <= 0L )
+    {
+      throw new IllegalArgumentException( "Invalid interval!" );
+    }
+    m_announcer = announcer;
+    m_check = check;
+    m_interval = interval;
+    m_probeExecutor = probeExecutor;
+    m_endpoints = new ConcurrentHashMap<URI, EndpointHealth>();
+    m_byName = new HashMap<String, Map<String, URI>>();
+    Comparator<EndpointHealth> mostOverdue = new Comparator<EndpointHealth>()
+    {
+      @Override
+      public int compare( EndpointHealth e1, EndpointHealth e2 )
+      {
+        return ( e1.m_nextProbe < e2.m_nextProbe ) ? -1 : ( ( e1.m_nextProbe == e2.m_nextProbe ) ? 0 : 1 );
+      }
+    };
+    m_urgent = new PriorityQueue<EndpointHealth>( 16, mostOverdue );
+    m_due = new PriorityQueue<EndpointHealth>( 16, mostOverdue );
+    m_listener = new ServiceListener()
+    {
+      @Override
+      public void serviceAdded( ServiceInfo info )
+      {
+        added( info );
+      }
+
+      @Override
+      public void serviceRemoved( ServiceInfo info )
+      {
+        removed( info );
+      }
+    };
+  }
+
+  /**
+   * @return the health of the given endpoint, or <code>null</code> if it is
+   *         not known.
+   */
+  public EndpointHealth getHealth( URI uri )
+  {
+    return m_endpoints.get( uri );
+  }
+
+  /**
+   * @return the healthy endpoints of the services with the given name, fastest
+   *         first; endpoints not probed yet come last. Never <code>null</code>.
+   */
+  public List<EndpointHealth> getRankedEndpoints( String name )
+  {
+    List<EndpointHealth> result = new ArrayList<EndpointHealth>();
+    synchronized ( this )
+    {
+      Map<String, URI> uris = m_byName.get( name );
+      if ( uris == null )
+      {
+        return result;
+      }
+      for ( URI uri : uris.values() )
+      {
+        EndpointHealth health = m_endpoints.get( uri );
+        if ( health != null && health.isHealthy() && !result.contains( health ) )
+        {
+          result.add( health );
+        }
+      }
+    }
+
+    Collections.sort( result, new Comparator<EndpointHealth>()
+    {
+      @Override
+      public int compare( EndpointHealth e1, EndpointHealth e2 )
+      {
+        long l1 = e1.getLatency();
+        long l2 = e2.getLatency();
+        if ( ( l1 < 0L ) != ( l2 < 0L ) )
+        {
+          return ( l1 < 0L ) ? 1 : -1;
+        }
+        return ( l1 < l2 ) ? -1 : ( ( l1 == l2 ) ? 0 : 1 );
+      }
+    } );
+    return result;
+  }
+
+  /**
+   * Starts probing the endpoints of all known services.
+   */
+  public void start()
+  {
+    if ( m_probeExecutor == null )
+    {
+      m_ownExecutor = Executors.newFixedThreadPool( PROBE_THREADS );
+    }
+    m_announcer.addServiceListener( m_listener );
+
+    m_scheduler = Executors.newSingleThreadScheduledExecutor();
+    m_scheduler.scheduleWithFixedDelay( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        tick( System.nanoTime() );
+      }
+    }, m_interval, m_interval, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Stops probing.
+   */
+  public void stop() throws InterruptedException
+  {
+    m_announcer.removeServiceListener( m_listener );
+
+    ScheduledExecutorService scheduler = m_scheduler;
+    if ( scheduler != null )
+    {
+      scheduler.shutdownNow();
+      scheduler.awaitTermination( 5, TimeUnit.SECONDS );
+    }
+    // Only stop the probes we own, a given executor may be shared...
+    ExecutorService executor = m_ownExecutor;
+    if ( executor != null )
+    {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Called when a service is added.
+   */
+  final void added( ServiceInfo info )
+  {
+    URI uri = info.getURI();
+    if ( uri == null )
+    {
+      return;
+    }
+
+    synchronized ( this )
+    {
+      Map<String, URI> uris = m_byName.get( info.getName() );
+      if ( uris == null )
+      {
+        uris = new HashMap<String, URI>();
+        m_byName.put( info.getName(), uris );
+      }
+      URI old = uris.put( info.getId(), uri );
+      if ( uri.equals( old ) )
+      {
+        return;
+      }
+      if ( old != null )
+      {
+        release( old );
+      }
+
+      EndpointHealth health = m_endpoints.get( uri );
+      if ( health == null )
+      {
+        health = new EndpointHealth( uri );
+        m_endpoints.put( uri, health );
+        // Probe it as soon as possible...
+        health.m_nextProbe = Long.MIN_VALUE;
+        m_urgent.add( health );
+      }
+      health.m_references++;
+    }
+  }
+
+  /**
+   * Called when a service is removed.
+   */
+  final void removed( ServiceInfo info )
+  {
+    synchronized ( this )
+    {
+      Map<String, URI> uris = m_byName.get( info.getName() );
+      if ( uris == null )
+      {
+        return;
+      }
+      URI uri = uris.remove( info.getId() );
+      if ( uris.isEmpty() )
+      {
+        m_byName.remove( info.getName() );
+      }
+      if ( uri != null )
+      {
+        release( uri );
+      }
+    }
+  }
+
+  /**
+   * Probes the endpoints that are due, but not more than the square root of
+   * the number of endpoints. New and failing endpoints go first.
+   *
+   * @param now
+   *          the current time, as given by {@link System#nanoTime()}.
+   * @return the number of probes started.
+   */
+  final int tick( long now )
+  {
+    Executor executor = ( m_probeExecutor != null ) ? m_probeExecutor : m_ownExecutor;
+    if ( executor == null )
+    {
+      // Not started...
+      return 0;
+    }
+
+    List<EndpointHealth> probes = new ArrayList<EndpointHealth>();
+    synchronized ( this )
+    {
+      int budget = ( int )Math.ceil( Math.sqrt( m_endpoints.size() ) );
+      // Routine probes only get what is left of the budget...
+      pollDue( m_urgent, now, budget, probes );
+      pollDue( m_due, now, budget, probes );
+    }
+
+    for ( final EndpointHealth health : probes )
+    {
+      try
+      {
+        executor.execute( new Runnable()
+        {
+          @Override
+          public void run()
+          {
+            probe( health );
+          }
+        } );
+      }
+      catch ( RejectedExecutionException e )
+      {
+        // Stopped...
+        break;
+      }
+    }
+    return probes.size();
+  }
+
+  /**
+   * Takes the due endpoints from the given queue as long as the budget allows;
+   * guarded by this.
+   */
+  private void pollDue( PriorityQueue<EndpointHealth> queue, long now, int budget, List<EndpointHealth> probes )
+  {
+    EndpointHealth health;
+    while ( probes.size() < budget && ( health = queue.peek() ) != null && health.m_nextProbe <= now )
+    {
+      queue.poll();
+      if ( !health.m_removed )
+      {
+        health.m_probing = true;
+        probes.add( health );
+      }
+    }
+  }
+
+  private void probe( EndpointHealth health )
+  {
+    long latency = 0L;
+    boolean success;
+    try
+    {
+      latency = m_check.probe( health.getURI() );
+      success = true;
+    }
+    catch ( IOException e )
+    {
+      success = false;
+    }
+    catch ( RuntimeException e )
+    {
+      success = false;
+    }
+
+    boolean stable = health.update( latency, success, ALPHA );
+
+    synchronized ( this )
+    {
+      health.m_probing = false;
+      // Probe stable endpoints less often, others as soon as possible...
+      health.m_backoff = stable ? Math.min( MAX_BACKOFF, health.m_backoff * 2 ) : 1;
+      health.m_nextProbe = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( m_interval * health.m_backoff );
+      if ( !health.m_removed )
+      {
+        ( success ? m_due : m_urgent ).add( health );
+      }
+    }
+  }
+
+  /**
+   * Releases a reference to the given endpoint; guarded by this.
+   */
+  private void release( URI uri )
+  {
+    EndpointHealth health = m_endpoints.get( uri );
+    if ( health != null && --health.m_references == 0 )
+    {
+      health.m_removed = true;
+      m_endpoints.remove( uri );
+      if ( !health.m_probing )
+      {
+        m_urgent.remove( health );
+        m_due.remove( health );
+      }
+    }
+  }
+}
@@ -0,0 +1,176 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+
+/**
+ * Concurrent histogram of non-negative values, cheap enough to record on hot
+ * paths.
+ * <p>
+ * Values are counted in buckets of which the width grows with the value: each
+ * power of two is split in eight buckets, so reported percentiles are at most
+ * 12.5% off. Counts are kept in striped {@link LongAdder}s, so recording from
+ * many threads does not contend on a single memory location.
+ * </p>
+ */
+public final class Histogram
+{
+  private static final int LINEAR_BUCKETS = 16;
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKET_COUNT = LINEAR_BUCKETS + ( 63 - 4 ) * SUB_BUCKETS;
+
+  private final LongAdder[] m_buckets;
+  private final LongAdder m_count;
+  private final LongAdder m_sum;
+  private final LongAccumulator m_max;
+
+  /**
+   * Creates a new, empty, {@link Histogram} instance.
+   */
+  public Histogram()
+  {
+    m_buckets = new LongAdder[BUCKET_COUNT];
+    for ( int i = 0; i < m_buckets.length; i++ )
+    {
+      m_buckets[i] = new LongAdder();
+    }
+    m_count = new LongAdder();
+    m_sum = new LongAdder();
+    m_max = new LongAccumulator( new LongBinaryOperator()
+    {
+      @Override
+      public long applyAsLong( long left, long right )
+      {
+        return Math.max( left, right );
+      }
+    }, 0L );
+  }
+
+  static int bucketOf( long value )
+  {
+    if ( value < LINEAR_BUCKETS )
+    {
+      return ( int )value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros( value );
+    int subBucket = ( int )( value >>> ( exponent - SUB_BUCKET_BITS ) ) & ( SUB_BUCKETS - 1 );
+    return LINEAR_BUCKETS + ( exponent - 4 ) * SUB_BUCKETS + subBucket;
+  }
+
+  static long upperBoundOf( int bucket )
+  {
+    if ( bucket < LINEAR_BUCKETS )
+    {
+      return bucket;
+    }
+    int exponent = 4 + ( bucket - LINEAR_BUCKETS ) / SUB_BUCKETS;
+    int subBucket = ( bucket - LINEAR_BUCKETS ) % SUB_BUCKETS;
+    return ( ( long )( SUB_BUCKETS + subBucket + 1 ) << ( exponent - SUB_BUCKET_BITS ) ) - 1L;
+  }
+
+  /**
+   * @return the number of recorded values.
+   */
+  public long getCount()
+  {
+    return m_count.sum();
+  }
+
+  /**
+   * @return the largest recorded value, or 0 if nothing is recorded.
+   */
+  public long getMax()
+  {
+    return m_max.get();
+  }
+
+  /**
+   * @return the mean of all recorded values, or 0 if nothing is recorded.
+   */
+  public double getMean()
+  {
+    long count = m_count.sum();
+    return ( count == 0L ) ? 0.0 : ( double )m_sum.sum() / count;
+  }
+
+  /**
+   * @param percentile
+   *          the percentile to return, between 0 and 100.
+   * @return the (approximate) value below which the given percentage of the
+   *         recorded values fall, or 0 if nothing is recorded.
+   */
+  public long getPercentile( double percentile )
+  {
+    if ( percentile < 0.0 || percentile > 100.0 )
+    {
+      throw new IllegalArgumentException( "Invalid percentile!" );
+    }
+
+    long[] counts = new long[m_buckets.length];
+    long total = 0L;
+    for ( int i = 0; i < counts.length; i++ )
+    {
+      counts[i] = m_buckets[i].sum();
+      total += counts[i];
+    }
+    if ( total == 0L )
+    {
+      return 0L;
+    }
+
+    long rank = Math.max( 1L, ( long )Math.ceil( total * percentile / 100.0 ) );
+    long seen = 0L;
+    for ( int i = 0; i < counts.length; i++ )
+    {
+      seen += counts[i];
+      if ( seen >= rank )
+      {
+        return Math.min( upperBoundOf( i ), getMax() );
+      }
+    }
+    return getMax();
+  }
+
+  /**
+   * Records a single value; negative values are recorded as 0.
+   */
+  public void record( long value )
+  {
+    record( value, 1 );
+  }
+
+  /**
+   * Records the same value a number of times; negative values are recorded as
+   * 0.
+   */
+  public void record( long value, int times )
+  {
+    if ( times <= 0 )
+    {
+      return;
+    }
+    if ( value < 0L )
+    {
+      value = 0L;
+    }
+    m_buckets[bucketOf( value )].add( times );
+    m_count.add( times );
+    m_sum.add( value * times );
+    m_max.accumulate( value );
+  }
+
+  @Override
+  public String toString()
+  {
+    return String.format( "count=%d, mean=%.1f, p50=%d, p99=%d, max=%d", Long.valueOf( getCount() ),
+        Double.valueOf( getMean() ), Long.valueOf( getPercentile( 50.0 ) ), Long.valueOf( getPercentile( 99.0 ) ),
+        Long.valueOf( getMax() ) );
+  }
+}
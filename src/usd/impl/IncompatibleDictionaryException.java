@@ -0,0 +1,25 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.io.IOException;
+
+
+/**
+ * Thrown when a compact (v2) message is encoded with a different
+ * {@link WireDictionary} than the one used for decoding it.
+ */
+final class IncompatibleDictionaryException extends IOException
+{
+  private static final long serialVersionUID = 1L;
+
+  /**
+   * Creates a new {@link IncompatibleDictionaryException} instance.
+   */
+  public IncompatibleDictionaryException()
+  {
+    super( "Incompatible dictionary!" );
+  }
+}
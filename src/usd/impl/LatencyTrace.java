@@ -0,0 +1,92 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * Traces the latency of a single timestamped announcement, from being sent by
+ * its peer until being reported to the service listeners of this announcer.
+ * <p>
+ * The latency is broken down into three stages:
+ * </p>
+ * <ol>
+ * <li>network: from being sent until being received. As this compares the
+ * clocks of two hosts, it is only as accurate as their clock
+ * synchronization;</li>
+ * <li>decode: from being received until being decoded, including the
+ * reassembly of fragments;</li>
+ * <li>dispatch: from being decoded until the first service listener is called
+ * back, including the time spent waiting for the dispatcher. Without any
+ * service listeners, it ends as soon as the announcement is processed.</li>
+ * </ol>
+ * <p>
+ * Each trace is recorded once, however many service listeners there are.
+ * </p>
+ */
+final class LatencyTrace
+{
+  private final AnnouncerMetrics m_metrics;
+  private final long m_sentMicros;
+  private final long m_receivedMicros;
+  private final long m_receivedNanos;
+  private final long m_decodedNanos;
+  private final AtomicBoolean m_dispatched;
+
+  /**
+   * Creates a new {@link LatencyTrace} instance, recording the network and
+   * decode stages right away.
+   * 
+   * @param sentMicros
+   *          the send timestamp of the announcement, in microseconds since the
+   *          epoch;
+   * @param receivedNanos
+   *          the {@link System#nanoTime()} at which the announcement was
+   *          received.
+   */
+  LatencyTrace( AnnouncerMetrics metrics, long sentMicros, long receivedNanos )
+  {
+    m_metrics = metrics;
+    m_sentMicros = sentMicros;
+    m_receivedNanos = receivedNanos;
+    m_decodedNanos = System.nanoTime();
+    m_dispatched = new AtomicBoolean();
+    m_receivedMicros = currentTimeMicros() - TimeUnit.NANOSECONDS.toMicros( m_decodedNanos - receivedNanos );
+
+    metrics.m_traceNetworkTime.record( m_receivedMicros - sentMicros );
+    metrics.m_traceDecodeTime.record( m_decodedNanos - receivedNanos );
+  }
+
+  /**
+   * @return the current time, in microseconds since the epoch, as precise as
+   *         the platform allows.
+   */
+  static long currentTimeMicros()
+  {
+    Instant now = Instant.now();
+    return TimeUnit.SECONDS.toMicros( now.getEpochSecond() ) + TimeUnit.NANOSECONDS.toMicros( now.getNano() );
+  }
+
+  /**
+   * Records the dispatch stage, and the end-to-end latency, after the first
+   * service listener has been called back. Later calls are ignored.
+   */
+  void dispatched()
+  {
+    if ( !m_dispatched.compareAndSet( false, true ) )
+    {
+      // Already recorded for another service listener...
+      return;
+    }
+
+    long now = System.nanoTime();
+    m_metrics.m_traceDispatchTime.record( now - m_decodedNanos );
+    m_metrics.m_traceEndToEndTime.record( m_receivedMicros - m_sentMicros
+        + TimeUnit.NANOSECONDS.toMicros( now - m_receivedNanos ) );
+  }
+}
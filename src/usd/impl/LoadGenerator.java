@@ -0,0 +1,385 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import static usd.Constants.USD_DEFAULT_GROUP_IP;
+import static usd.Constants.USD_DEFAULT_PORT;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import usd.ServiceInfo;
+import usd.ServiceListener;
+
+
+/**
+ * Command-line load generator for soak testing service discovery on a real
+ * network segment.
+ * <p>
+ * A generator announces a number of services, and keeps changing them
+ * according to the churn pattern: each change removes a service and adds it
+ * again with a new generation number and send timestamp in its properties.
+ * Listening generators use these properties to count lost changes, as gaps in
+ * the generations of a service, and to measure the latency from a change until
+ * its notification. Latencies between hosts are only as accurate as their
+ * clock synchronization.
+ * </p>
+ * <p>
+ * The churn patterns are <tt>none</tt>, <tt>steady</tt> (changes evenly spread
+ * over each second) and <tt>burst</tt> (all changes of a second at once).
+ * Statistics are printed every report interval. Usage:
+ * </p>
+ *
+ * <pre>
+ * LoadGenerator [-mode announce|listen|both] [-group IP] [-port PORT] [-services N] [-properties N]
+ *               [-property-size BYTES] [-churn none|steady|burst] [-rate CHANGES_PER_SEC]
+ *               [-duration SECONDS] [-interval SECONDS] [-instance NAME]
+ * </pre>
+ * <p>
+ * A duration of zero runs the generator until it is killed.
+ * </p>
+ */
+public final class LoadGenerator
+{
+  /**
+   * Keeps track of the changes made by other generators.
+   */
+  final class ChangeListener implements ServiceListener
+  {
+    private final ConcurrentMap<String, Long> m_generations = new ConcurrentHashMap<String, Long>();
+
+    @Override
+    public void serviceAdded( ServiceInfo info )
+    {
+      long now = LatencyTrace.currentTimeMicros();
+
+      Map<String, String> props = info.getProperties();
+      String instance = props.get( PROP_INSTANCE );
+      if ( instance == null || instance.equals( m_instance ) )
+      {
+        // Not generated, or by ourselves...
+        return;
+      }
+
+      long generation = Long.parseLong( props.get( PROP_GENERATION ) );
+      Long last = m_generations.put( info.getId(), Long.valueOf( generation ) );
+      if ( last == null )
+      {
+        // First seen, possibly through a state broadcast, so it might be
+        // stale...
+        return;
+      }
+      if ( generation > last.longValue() )
+      {
+        m_received.incrementAndGet();
+        m_lost.addAndGet( generation - last.longValue() - 1L );
+        m_latency.record( now - Long.parseLong( props.get( PROP_SENT ) ) );
+      }
+    }
+
+    @Override
+    public void serviceRemoved( ServiceInfo info )
+    {
+      // Only additions carry a generation...
+    }
+  }
+
+  private static final String PROP_INSTANCE = "usd.load.instance";
+  private static final String PROP_GENERATION = "usd.load.generation";
+  private static final String PROP_SENT = "usd.load.sent";
+
+  private final boolean m_announce;
+  private final boolean m_listen;
+  private final InetAddress m_group;
+  private final int m_port;
+  private final int m_services;
+  private final int m_properties;
+  private final int m_propertySize;
+  private final String m_churn;
+  private final int m_rate;
+  private final int m_duration;
+  private final int m_interval;
+  private final String m_instance;
+
+  private final AtomicLong m_sent;
+  private final AtomicLong m_received;
+  private final AtomicLong m_lost;
+  private final List<ServiceInfo> m_current;
+
+  private volatile Histogram m_latency;
+
+  LoadGenerator( String mode, InetAddress group, int port, int services, int properties, int propertySize,
+      String churn, int rate, int duration, int interval, String instance )
+  {
+    if ( !"announce".equals( mode ) && !"listen".equals( mode ) && !"both".equals( mode ) )
+    {
+      throw new IllegalArgumentException( "Invalid mode!" );
+    }
+    if ( !"none".equals( churn ) && !"steady".equals( churn ) && !"burst".equals( churn ) )
+    {
+      throw new IllegalArgumentException( "Invalid churn pattern!" );
+    }
+    if ( interval <= 0 )
+    {
+      throw new IllegalArgumentException( "Invalid report interval!" );
+    }
+    m_announce = !"listen".equals( mode );
+    m_listen = !"announce".equals( mode );
+    m_group = group;
+    m_port = port;
+    m_services = services;
+    m_properties = properties;
+    m_propertySize = propertySize;
+    m_churn = churn;
+    m_rate = rate;
+    m_duration = duration;
+    m_interval = interval;
+    m_instance = instance;
+
+    m_sent = new AtomicLong();
+    m_received = new AtomicLong();
+    m_lost = new AtomicLong();
+    m_current = new ArrayList<ServiceInfo>();
+    m_latency = new Histogram();
+  }
+
+  public static void main( String[] args ) throws Exception
+  {
+    String mode = "both";
+    String group = USD_DEFAULT_GROUP_IP;
+    int port = USD_DEFAULT_PORT;
+    int services = 10;
+    int properties = 5;
+    int propertySize = 16;
+    String churn = "steady";
+    int rate = 10;
+    int duration = 60;
+    int interval = 5;
+    String instance = ManagementFactory.getRuntimeMXBean().getName();
+
+    for ( int i = 0; i < args.length - 1; i += 2 )
+    {
+      String name = args[i];
+      String value = args[i + 1];
+      if ( "-mode".equals( name ) )
+      {
+        mode = value;
+      }
+      else if ( "-group".equals( name ) )
+      {
+        group = value;
+      }
+      else if ( "-port".equals( name ) )
+      {
+        port = Integer.parseInt( value );
+      }
+      else if ( "-services".equals( name ) )
+      {
+        services = Integer.parseInt( value );
+      }
+      else if ( "-properties".equals( name ) )
+      {
+        properties = Integer.parseInt( value );
+      }
+      else if ( "-property-size".equals( name ) )
+      {
+        propertySize = Integer.parseInt( value );
+      }
+      else if ( "-churn".equals( name ) )
+      {
+        churn = value;
+      }
+      else if ( "-rate".equals( name ) )
+      {
+        rate = Integer.parseInt( value );
+      }
+      else if ( "-duration".equals( name ) )
+      {
+        duration = Integer.parseInt( value );
+      }
+      else if ( "-interval".equals( name ) )
+      {
+        interval = Integer.parseInt( value );
+      }
+      else if ( "-instance".equals( name ) )
+      {
+        instance = value;
+      }
+      else
+      {
+        System.err.println( "Unknown option: " + name );
+        System.exit( 1 );
+      }
+    }
+
+    new LoadGenerator( mode, InetAddress.getByName( group ), port, services, properties, propertySize, churn, rate,
+        duration, interval, instance ).run();
+  }
+
+  private static String formatMillis( long micros )
+  {
+    return String.format( "%.2f ms", Double.valueOf( micros / 1e3 ) );
+  }
+
+  void run() throws Exception
+  {
+    MulticastServiceAnnouncer announcer = new MulticastServiceAnnouncer();
+    if ( m_listen )
+    {
+      announcer.addServiceListener( new ChangeListener() );
+    }
+    announcer.start( m_group, m_port );
+    System.out.printf( "Load generator %s started on %s:%d...%n", m_instance, m_group.getHostAddress(),
+        Integer.valueOf( m_port ) );
+
+    try
+    {
+      if ( m_announce )
+      {
+        for ( int i = 0; i < m_services; i++ )
+        {
+          ServiceInfo info = createService( i, 0L );
+          m_current.add( info );
+          announcer.addService( info );
+        }
+      }
+
+      generate( announcer );
+    }
+    finally
+    {
+      announcer.stop();
+    }
+  }
+
+  private ServiceInfo createService( int index, long generation )
+  {
+    Map<String, String> props = new HashMap<String, String>();
+    char[] value = new char[m_propertySize];
+    for ( int i = 0; i < value.length; i++ )
+    {
+      value[i] = ( char )( 'a' + ( ( index + i ) % 26 ) );
+    }
+    for ( int i = 0; i < m_properties; i++ )
+    {
+      props.put( "prop" + i, new String( value ) );
+    }
+    props.put( PROP_INSTANCE, m_instance );
+    props.put( PROP_GENERATION, Long.toString( generation ) );
+    props.put( PROP_SENT, Long.toString( LatencyTrace.currentTimeMicros() ) );
+
+    String id = m_instance + "/" + index;
+    return new ServiceInfo( id, "LoadService" + index, URI.create( "http://localhost:8080/load/" + index ), props );
+  }
+
+  /**
+   * Makes the changes of the churn pattern and prints the statistics, until
+   * the duration is over.
+   */
+  private void generate( MulticastServiceAnnouncer announcer ) throws InterruptedException
+  {
+    boolean churn = m_announce && m_services > 0 && m_rate > 0 && !"none".equals( m_churn );
+    Random rnd = new Random();
+
+    long start = System.nanoTime();
+    long end = ( m_duration > 0 ) ? start + TimeUnit.SECONDS.toNanos( m_duration ) : Long.MAX_VALUE;
+    long interval = TimeUnit.SECONDS.toNanos( m_interval );
+    long nextReport = start + interval;
+    long nextChange = start;
+    long lastReport = start;
+
+    while ( System.nanoTime() < end )
+    {
+      long now = System.nanoTime();
+      if ( churn && now >= nextChange )
+      {
+        if ( "burst".equals( m_churn ) )
+        {
+          for ( int i = 0; i < m_rate; i++ )
+          {
+            change( announcer, rnd.nextInt( m_services ) );
+          }
+          nextChange += TimeUnit.SECONDS.toNanos( 1 );
+        }
+        else
+        {
+          change( announcer, rnd.nextInt( m_services ) );
+          nextChange += TimeUnit.SECONDS.toNanos( 1 ) / m_rate;
+        }
+      }
+      if ( now >= nextReport )
+      {
+        report( announcer, now - start, now - lastReport );
+        lastReport = now;
+        nextReport += interval;
+      }
+
+      long wakeUp = Math.min( Math.min( nextReport, end ), churn ? nextChange : Long.MAX_VALUE );
+      long delay = wakeUp - System.nanoTime();
+      if ( delay > 0L )
+      {
+        TimeUnit.NANOSECONDS.sleep( delay );
+      }
+    }
+
+    report( announcer, System.nanoTime() - start, System.nanoTime() - lastReport );
+  }
+
+  private void change( MulticastServiceAnnouncer announcer, int index )
+  {
+    ServiceInfo old = m_current.get( index );
+    long generation = Long.parseLong( old.getProperties().get( PROP_GENERATION ) ) + 1L;
+    ServiceInfo info = createService( index, generation );
+
+    announcer.removeService( old );
+    announcer.addService( info );
+    m_current.set( index, info );
+    m_sent.incrementAndGet();
+  }
+
+  private void report( MulticastServiceAnnouncer announcer, long elapsed, long period )
+  {
+    Histogram latency = m_latency;
+    m_latency = new Histogram();
+    long sent = m_sent.getAndSet( 0L );
+    long received = m_received.getAndSet( 0L );
+    long lost = m_lost.getAndSet( 0L );
+    double seconds = Math.max( 1L, period ) / 1e9;
+
+    AnnouncerMetrics metrics = announcer.getMetrics();
+    StringBuilder sb = new StringBuilder();
+    sb.append( String.format( "[%5ds] %d services known", Long.valueOf( TimeUnit.NANOSECONDS.toSeconds( elapsed ) ),
+        Long.valueOf( metrics.getServiceCount() ) ) );
+    if ( m_announce )
+    {
+      sb.append( String.format( "; sent %.1f changes/s", Double.valueOf( sent / seconds ) ) );
+    }
+    if ( m_listen )
+    {
+      sb.append( String.format( "; received %.1f changes/s, loss %.2f%%", Double.valueOf( received / seconds ),
+          Double.valueOf( ( received + lost == 0L ) ? 0.0 : 100.0 * lost / ( received + lost ) ) ) );
+      if ( latency.getCount() > 0L )
+      {
+        sb.append( String.format( "; latency p50=%s, p99=%s, max=%s", formatMillis( latency.getPercentile( 50.0 ) ),
+            formatMillis( latency.getPercentile( 99.0 ) ), formatMillis( latency.getMax() ) ) );
+      }
+    }
+    sb.append( String.format( "; packets out=%d, in=%d, decode failures=%d, dropped=%d",
+        Long.valueOf( metrics.getPacketsSent() ), Long.valueOf( metrics.getPacketsReceived() ),
+        Long.valueOf( metrics.getDecodeFailures() ), Long.valueOf( metrics.getDroppedPackets() ) ) );
+
+    System.out.println( sb );
+  }
+}
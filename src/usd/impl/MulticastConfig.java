@@ -0,0 +1,649 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.io.File;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+
+/**
+ * Provides the tunables for a {@link MulticastServiceAnnouncer}. Changes made
+ * after the announcer is created are not guaranteed to be picked up.
+ */
+public class MulticastConfig
+{
+  private int m_compressionThreshold;
+  private int m_maxPacketSize;
+  private int m_maxMessageSize;
+  private int m_maxDecodeAllocation;
+  private int m_maxPendingMessages;
+  private int m_maxReassemblyBufferSize;
+  private long m_reassemblyTimeout;
+  private boolean m_offHeapStorage;
+  private int m_maxRemoteServices;
+  private long m_maxRemoteServicesSize;
+  private int m_receiveRateLimit;
+  private int m_receiveBurst;
+  private int m_maxInvalidPackets;
+  private long m_quarantineTime;
+  private WireDictionary m_wireDictionary;
+  private File m_snapshotFile;
+  private long m_snapshotInterval;
+  private long m_unverifiedTimeout;
+  private File m_journalDirectory;
+  private int m_journalSegmentSize;
+  private int m_journalMaxSegments;
+  private long m_journalFlushInterval;
+  private int m_eventBufferSize;
+  private String m_mbeanName;
+  private double m_traceSampleRate;
+  private long m_stateConvergenceTimeout;
+  private long m_stateQuietPeriod;
+  private long m_stateRequestBackoff;
+  private int m_stateRequestRetries;
+
+  /**
+   * Creates a new {@link MulticastConfig} instance with default values.
+   */
+  public MulticastConfig()
+  {
+    m_compressionThreshold = 0;
+    m_maxPacketSize = 1400;
+    m_maxMessageSize = 1024 * 1024;
+    m_maxDecodeAllocation = 1024 * 1024;
+    m_maxPendingMessages = 64;
+    m_maxReassemblyBufferSize = 4 * 1024 * 1024;
+    m_reassemblyTimeout = 2000L;
+    m_wireDictionary = null;
+    m_offHeapStorage = false;
+    m_maxRemoteServices = 0;
+    m_maxRemoteServicesSize = 0L;
+    m_receiveRateLimit = 0;
+    m_receiveBurst = 100;
+    m_maxInvalidPackets = 0;
+    m_quarantineTime = 10000L;
+    m_snapshotFile = null;
+    m_snapshotInterval = 10000L;
+    m_unverifiedTimeout = 30000L;
+    m_journalDirectory = null;
+    m_journalSegmentSize = 16 * 1024 * 1024;
+    m_journalMaxSegments = 8;
+    m_journalFlushInterval = 100L;
+    m_eventBufferSize = 1024;
+    m_mbeanName = null;
+    m_traceSampleRate = 0.0;
+    m_stateConvergenceTimeout = 5000L;
+    m_stateQuietPeriod = 200L;
+    m_stateRequestBackoff = 100L;
+    m_stateRequestRetries = 2;
+  }
+
+  /**
+   * @return the size of an encoded message, in bytes, above which its payload
+   *         is compressed. A value of 0 disables compression, which is needed
+   *         as long as peers exist that cannot handle compressed messages.
+   */
+  public int getCompressionThreshold()
+  {
+    return m_compressionThreshold;
+  }
+
+  /**
+   * @return the maximum size of a single message, in bytes, that is accepted
+   *         after reassembling its fragments.
+   */
+  public int getMaxMessageSize()
+  {
+    return m_maxMessageSize;
+  }
+
+  /**
+   * @return the maximum size of a single datagram, in bytes. Messages larger
+   *         than this are split into fragments.
+   */
+  public int getMaxPacketSize()
+  {
+    return m_maxPacketSize;
+  }
+
+  /**
+   * @return the maximum number of remote services that are kept, 0 for no
+   *         limit. When exceeded, the least recently refreshed remote services
+   *         are evicted. Local services are never evicted.
+   */
+  public int getMaxRemoteServices()
+  {
+    return m_maxRemoteServices;
+  }
+
+  /**
+   * @return the maximum estimated size, in bytes, of all remote services that
+   *         are kept, 0 for no limit.
+   * @see #getMaxRemoteServices()
+   */
+  public long getMaxRemoteServicesSize()
+  {
+    return m_maxRemoteServicesSize;
+  }
+
+  /**
+   * @return the number of service events buffered for listeners. Listeners
+   *         falling further behind are brought up to date with the current
+   *         state instead of receiving each event.
+   */
+  public int getEventBufferSize()
+  {
+    return m_eventBufferSize;
+  }
+
+  /**
+   * @return the directory in which a journal of all service events is kept,
+   *         or <code>null</code> if no journal is to be kept.
+   * @see ServiceJournal.Reader
+   */
+  public File getJournalDirectory()
+  {
+    return m_journalDirectory;
+  }
+
+  /**
+   * @return the time, in milliseconds, between two writes of the journal.
+   *         Events are written in batches, and may be lost when the process
+   *         crashes within this time.
+   */
+  public long getJournalFlushInterval()
+  {
+    return m_journalFlushInterval;
+  }
+
+  /**
+   * @return the maximum number of journal segments that are kept, 0 to keep
+   *         all of them.
+   */
+  public int getJournalMaxSegments()
+  {
+    return m_journalMaxSegments;
+  }
+
+  /**
+   * @return the size, in bytes, of a single journal segment.
+   */
+  public int getJournalSegmentSize()
+  {
+    return m_journalSegmentSize;
+  }
+
+  /**
+   * @return the JMX object name under which the metrics of the announcer are
+   *         registered in the platform MBean server, or <code>null</code> if
+   *         they are not to be exported.
+   * @see AnnouncerMetrics
+   */
+  public String getMBeanName()
+  {
+    return m_mbeanName;
+  }
+
+  /**
+   * @return the maximum number of bytes the decoder allocates for a single
+   *         received message, including its inflated body. Messages needing
+   *         more are discarded.
+   */
+  public int getMaxDecodeAllocation()
+  {
+    return m_maxDecodeAllocation;
+  }
+
+  /**
+   * @return the number of invalid packets in a row, or the number of packets
+   *         exceeding the receive rate limit while the source does not slow
+   *         down, after which a source is quarantined, 0 to never quarantine a
+   *         source.
+   */
+  public int getMaxInvalidPackets()
+  {
+    return m_maxInvalidPackets;
+  }
+
+  /**
+   * @return the maximum number of partially received messages that are kept
+   *         for reassembly.
+   */
+  public int getMaxPendingMessages()
+  {
+    return m_maxPendingMessages;
+  }
+
+  /**
+   * @return the maximum number of bytes, in total, that are buffered for all
+   *         partially received messages. When exceeded, the oldest partially
+   *         received messages are dropped.
+   */
+  public int getMaxReassemblyBufferSize()
+  {
+    return m_maxReassemblyBufferSize;
+  }
+
+  /**
+   * @return the time, in milliseconds, during which all packets from a
+   *         quarantined source are dropped.
+   */
+  public long getQuarantineTime()
+  {
+    return m_quarantineTime;
+  }
+
+  /**
+   * @return the time, in milliseconds, after which an incomplete message is
+   *         discarded.
+   */
+  public long getReassemblyTimeout()
+  {
+    return m_reassemblyTimeout;
+  }
+
+  /**
+   * @return the number of packets a single source can send in a burst before
+   *         the receive rate limit applies.
+   */
+  public int getReceiveBurst()
+  {
+    return m_receiveBurst;
+  }
+
+  /**
+   * @return the number of packets per second that are accepted from a single
+   *         source address, 0 for no limit. Packets exceeding this limit are
+   *         dropped.
+   */
+  public int getReceiveRateLimit()
+  {
+    return m_receiveRateLimit;
+  }
+
+  /**
+   * @return the file the known remote services are periodically written to,
+   *         and restored from upon start, or <code>null</code> if no snapshot
+   *         is to be kept.
+   */
+  public File getSnapshotFile()
+  {
+    return m_snapshotFile;
+  }
+
+  /**
+   * @return the time, in milliseconds, between two snapshots.
+   */
+  public long getSnapshotInterval()
+  {
+    return m_snapshotInterval;
+  }
+
+  /**
+   * @return the maximum time, in milliseconds, to learn the state of all peers
+   *         upon start. The start is considered complete after this time, even
+   *         if new services are still being learned, as happens when peers
+   *         keep adding services.
+   */
+  public long getStateConvergenceTimeout()
+  {
+    return m_stateConvergenceTimeout;
+  }
+
+  /**
+   * @return the time, in milliseconds, without any newly learned service after
+   *         which the responses to a state request are considered complete.
+   */
+  public long getStateQuietPeriod()
+  {
+    return m_stateQuietPeriod;
+  }
+
+  /**
+   * @return the time, in milliseconds, to wait before repeating the state
+   *         request upon start; doubled for every next repetition.
+   */
+  public long getStateRequestBackoff()
+  {
+    return m_stateRequestBackoff;
+  }
+
+  /**
+   * @return the maximum number of times the state request is repeated upon
+   *         start, to make up for lost requests and responses. The start is
+   *         complete as soon as a repetition yields no new services.
+   */
+  public int getStateRequestRetries()
+  {
+    return m_stateRequestRetries;
+  }
+
+  /**
+   * @return the fraction, between 0 and 1, of sent announcements that carry
+   *         their send timestamp, allowing their receivers to trace their
+   *         latency. A value of 0 disables tracing, which is needed as long
+   *         as peers exist that cannot handle timestamped messages. Received
+   *         timestamped announcements are only traced if this value is
+   *         non-zero.
+   * @see AnnouncerMetrics#getTraceEndToEndTime()
+   */
+  public double getTraceSampleRate()
+  {
+    return m_traceSampleRate;
+  }
+
+  /**
+   * @return the time, in milliseconds, after which services restored from a
+   *         snapshot are removed in case they are not announced by their peer.
+   */
+  public long getUnverifiedTimeout()
+  {
+    return m_unverifiedTimeout;
+  }
+
+  /**
+   * @return the dictionary used for the compact (v2) wire encoding, or
+   *         <code>null</code> if messages are sent in the original (v1)
+   *         encoding. Messages in either encoding are always accepted.
+   */
+  public WireDictionary getWireDictionary()
+  {
+    return m_wireDictionary;
+  }
+
+  /**
+   * @return <code>true</code> if known services are to be kept in off-heap
+   *         memory, which keeps very large registries from affecting garbage
+   *         collection pauses at the expense of decoding services upon each
+   *         read, <code>false</code> to keep them on the heap.
+   */
+  public boolean isOffHeapStorage()
+  {
+    return m_offHeapStorage;
+  }
+
+  public MulticastConfig setCompressionThreshold( int compressionThreshold )
+  {
+    if ( compressionThreshold < 0 )
+    {
+      throw new IllegalArgumentException( "Invalid compression threshold!" );
+    }
+    m_compressionThreshold = compressionThreshold;
+    return this;
+  }
+
+  public MulticastConfig setEventBufferSize( int eventBufferSize )
+  {
+    if ( eventBufferSize <= 0 || Integer.bitCount( eventBufferSize ) != 1 )
+    {
+      throw new IllegalArgumentException( "Invalid event buffer size, should be a power of two!" );
+    }
+    m_eventBufferSize = eventBufferSize;
+    return this;
+  }
+
+  public MulticastConfig setJournalDirectory( File journalDirectory )
+  {
+    m_journalDirectory = journalDirectory;
+    return this;
+  }
+
+  public MulticastConfig setJournalFlushInterval( long journalFlushInterval )
+  {
+    if ( journalFlushInterval <= 0L )
+    {
+      throw new IllegalArgumentException( "Invalid journal flush interval!" );
+    }
+    m_journalFlushInterval = journalFlushInterval;
+    return this;
+  }
+
+  public MulticastConfig setJournalMaxSegments( int journalMaxSegments )
+  {
+    if ( journalMaxSegments < 0 )
+    {
+      throw new IllegalArgumentException( "Invalid maximum number of journal segments!" );
+    }
+    m_journalMaxSegments = journalMaxSegments;
+    return this;
+  }
+
+  public MulticastConfig setJournalSegmentSize( int journalSegmentSize )
+  {
+    if ( journalSegmentSize < 1024 )
+    {
+      throw new IllegalArgumentException( "Invalid journal segment size!" );
+    }
+    m_journalSegmentSize = journalSegmentSize;
+    return this;
+  }
+
+  public MulticastConfig setMBeanName( String mbeanName )
+  {
+    if ( mbeanName != null )
+    {
+      try
+      {
+        new ObjectName( mbeanName );
+      }
+      catch ( MalformedObjectNameException e )
+      {
+        throw new IllegalArgumentException( "Invalid MBean name!" );
+      }
+    }
+    m_mbeanName = mbeanName;
+    return this;
+  }
+
+  public MulticastConfig setMaxDecodeAllocation( int maxDecodeAllocation )
+  {
+    if ( maxDecodeAllocation <= 0 )
+    {
+      throw new IllegalArgumentException( "Invalid maximum decode allocation!" );
+    }
+    m_maxDecodeAllocation = maxDecodeAllocation;
+    return this;
+  }
+
+  public MulticastConfig setMaxInvalidPackets( int maxInvalidPackets )
+  {
+    if ( maxInvalidPackets < 0 )
+    {
+      throw new IllegalArgumentException( "Invalid maximum number of invalid packets!" );
+    }
+    m_maxInvalidPackets = maxInvalidPackets;
+    return this;
+  }
+
+  public MulticastConfig setMaxMessageSize( int maxMessageSize )
+  {
+    if ( maxMessageSize <= 0 )
+    {
+      throw new IllegalArgumentException( "Invalid maximum message size!" );
+    }
+    m_maxMessageSize = maxMessageSize;
+    return this;
+  }
+
+  public MulticastConfig setMaxPacketSize( int maxPacketSize )
+  {
+    if ( maxPacketSize < CborCodec.MIN_PACKET_SIZE )
+    {
+      throw new IllegalArgumentException( "Invalid maximum packet size!" );
+    }
+    m_maxPacketSize = maxPacketSize;
+    return this;
+  }
+
+  public MulticastConfig setMaxPendingMessages( int maxPendingMessages )
+  {
+    if ( maxPendingMessages <= 0 )
+    {
+      throw new IllegalArgumentException( "Invalid maximum number of pending messages!" );
+    }
+    m_maxPendingMessages = maxPendingMessages;
+    return this;
+  }
+
+  public MulticastConfig setMaxReassemblyBufferSize( int maxReassemblyBufferSize )
+  {
+    if ( maxReassemblyBufferSize <= 0 )
+    {
+      throw new IllegalArgumentException( "Invalid maximum reassembly buffer size!" );
+    }
+    m_maxReassemblyBufferSize = maxReassemblyBufferSize;
+    return this;
+  }
+
+  public MulticastConfig setMaxRemoteServices( int maxRemoteServices )
+  {
+    if ( maxRemoteServices < 0 )
+    {
+      throw new IllegalArgumentException( "Invalid maximum number of remote services!" );
+    }
+    m_maxRemoteServices = maxRemoteServices;
+    return this;
+  }
+
+  public MulticastConfig setMaxRemoteServicesSize( long maxRemoteServicesSize )
+  {
+    if ( maxRemoteServicesSize < 0L )
+    {
+      throw new IllegalArgumentException( "Invalid maximum size of remote services!" );
+    }
+    m_maxRemoteServicesSize = maxRemoteServicesSize;
+    return this;
+  }
+
+  public MulticastConfig setOffHeapStorage( boolean offHeapStorage )
+  {
+    m_offHeapStorage = offHeapStorage;
+    return this;
+  }
+
+  public MulticastConfig setQuarantineTime( long quarantineTime )
+  {
+    if ( quarantineTime <= 0L )
+    {
+      throw new IllegalArgumentException( "Invalid quarantine time!" );
+    }
+    m_quarantineTime = quarantineTime;
+    return this;
+  }
+
+  public MulticastConfig setReassemblyTimeout( long reassemblyTimeout )
+  {
+    if ( reassemblyTimeout <= 0L )
+    {
+      throw new IllegalArgumentException( "Invalid reassembly timeout!" );
+    }
+    m_reassemblyTimeout = reassemblyTimeout;
+    return this;
+  }
+
+  public MulticastConfig setReceiveBurst( int receiveBurst )
+  {
+    if ( receiveBurst <= 0 )
+    {
+      throw new IllegalArgumentException( "Invalid receive burst!" );
+    }
+    m_receiveBurst = receiveBurst;
+    return this;
+  }
+
+  public MulticastConfig setReceiveRateLimit( int receiveRateLimit )
+  {
+    if ( receiveRateLimit < 0 )
+    {
+      throw new IllegalArgumentException( "Invalid receive rate limit!" );
+    }
+    m_receiveRateLimit = receiveRateLimit;
+    return this;
+  }
+
+  public MulticastConfig setSnapshotFile( File snapshotFile )
+  {
+    m_snapshotFile = snapshotFile;
+    return this;
+  }
+
+  public MulticastConfig setSnapshotInterval( long snapshotInterval )
+  {
+    if ( snapshotInterval <= 0L )
+    {
+      throw new IllegalArgumentException( "Invalid snapshot interval!" );
+    }
+    m_snapshotInterval = snapshotInterval;
+    return this;
+  }
+
+  public MulticastConfig setStateConvergenceTimeout( long stateConvergenceTimeout )
+  {
+    if ( stateConvergenceTimeout <= 0L )
+    {
+      throw new IllegalArgumentException( "Invalid state convergence timeout!" );
+    }
+    m_stateConvergenceTimeout = stateConvergenceTimeout;
+    return this;
+  }
+
+  public MulticastConfig setStateQuietPeriod( long stateQuietPeriod )
+  {
+    if ( stateQuietPeriod <= 0L )
+    {
+      throw new IllegalArgumentException( "Invalid state quiet period!" );
+    }
+    m_stateQuietPeriod = stateQuietPeriod;
+    return this;
+  }
+
+  public MulticastConfig setStateRequestBackoff( long stateRequestBackoff )
+  {
+    if ( stateRequestBackoff <= 0L )
+    {
+      throw new IllegalArgumentException( "Invalid state request backoff!" );
+    }
+    m_stateRequestBackoff = stateRequestBackoff;
+    return this;
+  }
+
+  public MulticastConfig setStateRequestRetries( int stateRequestRetries )
+  {
+    if ( stateRequestRetries < 0 )
+    {
+      throw new IllegalArgumentException( "Invalid state request retries!" );
+    }
+    m_stateRequestRetries = stateRequestRetries;
+    return this;
+  }
+
+  public MulticastConfig setTraceSampleRate( double traceSampleRate )
+  {
+    if ( traceSampleRate < 0.0 || traceSampleRate > 1.0 )
+    {
+      throw new IllegalArgumentException( "Invalid trace sample rate!" );
+    }
+    m_traceSampleRate = traceSampleRate;
+    return this;
+  }
+
+  public MulticastConfig setUnverifiedTimeout( long unverifiedTimeout )
+  {
+    if ( unverifiedTimeout <= 0L )
+    {
+      throw new IllegalArgumentException( "Invalid unverified timeout!" );
+    }
+    m_unverifiedTimeout = unverifiedTimeout;
+    return this;
+  }
+
+  public MulticastConfig setWireDictionary( WireDictionary wireDictionary )
+  {
+    m_wireDictionary = wireDictionary;
+    return this;
+  }
+}
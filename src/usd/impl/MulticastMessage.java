@@ -4,11 +4,19 @@
 package usd.impl;
 
 
+import java.io.IOException;
+
 import usd.ServiceInfo;
 
 
 /**
  * Multicast message.
+ * <p>
+ * Received messages are decoded lazily: only the header and service
+ * identifier are decoded up front, while the remainder of the service
+ * information is decoded upon its first access. This keeps the costs of
+ * discarding messages about already known services low.
+ * </p>
  */
 public class MulticastMessage
 {
@@ -17,7 +25,13 @@ public class MulticastMessage
   private static final int INFO_ADDED = 0x03;
 
   private final int m_info;
-  private final ServiceInfo m_serviceInfo;
+  private final String m_serviceId;
+  private final byte[] m_remainder;
+  private final WireDictionary m_dictionary;
+  private final long m_timestamp;
+  private final long m_budget;
+
+  private volatile ServiceInfo m_serviceInfo;
 
   /**
    * Creates a new {@link MulticastMessage} instance.
@@ -25,9 +39,59 @@ public class MulticastMessage
   MulticastMessage( int info, ServiceInfo serviceInfo )
   {
     m_info = info;
+    m_serviceId = ( serviceInfo == null ) ? null : serviceInfo.getId();
+    m_remainder = null;
+    m_dictionary = null;
+    m_timestamp = 0L;
+    m_budget = 0L;
     m_serviceInfo = serviceInfo;
   }
 
+  /**
+   * Creates a copy of the given {@link MulticastMessage} with a send
+   * timestamp.
+   */
+  private MulticastMessage( MulticastMessage message, long timestamp )
+  {
+    m_info = message.m_info;
+    m_serviceId = message.m_serviceId;
+    m_remainder = message.m_remainder;
+    m_dictionary = message.m_dictionary;
+    m_timestamp = timestamp;
+    m_budget = message.m_budget;
+    m_serviceInfo = message.m_serviceInfo;
+  }
+
+  /**
+   * Creates a new, lazily decoded, {@link MulticastMessage} instance.
+   * 
+   * @param info
+   *          the info byte of the message;
+   * @param serviceId
+   *          the identifier of the service;
+   * @param remainder
+   *          the encoded remainder of the service information;
+   * @param dictionary
+   *          the dictionary used for the compact encoding, or
+   *          <code>null</code> if the original encoding is used;
+   * @param timestamp
+   *          the send timestamp of the message, or 0 if it has none;
+   * @param budget
+   *          the number of bytes that may still be allocated to decode the
+   *          remainder.
+   * @see CborCodec#decodeServiceInfo(String, byte[], WireDictionary, long)
+   */
+  MulticastMessage( int info, String serviceId, byte[] remainder, WireDictionary dictionary, long timestamp,
+      long budget )
+  {
+    m_info = info;
+    m_serviceId = serviceId;
+    m_remainder = remainder;
+    m_dictionary = dictionary;
+    m_timestamp = timestamp;
+    m_budget = budget;
+  }
+
   public static MulticastMessage createBroadcastStateMessage()
   {
     return new MulticastMessage( INFO_GET_STATE, null );
@@ -60,14 +124,14 @@ public class MulticastMessage
     {
       return false;
     }
-    if ( m_serviceInfo == null )
+    if ( m_serviceId == null )
     {
-      if ( other.m_serviceInfo != null )
+      if ( other.m_serviceId != null )
       {
         return false;
       }
     }
-    else if ( !m_serviceInfo.equals( other.m_serviceInfo ) )
+    else if ( !getServiceInfo().equals( other.getServiceInfo() ) )
     {
       return false;
     }
@@ -80,9 +144,48 @@ public class MulticastMessage
     return m_info;
   }
 
+  /**
+   * @return the identifier of the service this message is about, can be
+   *         <code>null</code> if this message is not about a service. This
+   *         method does not cause the remainder of the message to be decoded.
+   */
+  public String getServiceId()
+  {
+    return m_serviceId;
+  }
+
+  /**
+   * @return the time this message was sent, in microseconds since the epoch
+   *         according to the clock of its sender, or 0 if the message was
+   *         not sampled for tracing.
+   */
+  public long getTimestamp()
+  {
+    return m_timestamp;
+  }
+
+  /**
+   * @return the service this message is about, can be <code>null</code> if
+   *         this message is not about a service.
+   * @throws IllegalArgumentException
+   *           in case the service information could not be decoded.
+   */
   public ServiceInfo getServiceInfo()
   {
-    return m_serviceInfo;
+    ServiceInfo result = m_serviceInfo;
+    if ( result == null && m_remainder != null )
+    {
+      try
+      {
+        result = CborCodec.decodeServiceInfo( m_serviceId, m_remainder, m_dictionary, m_budget );
+      }
+      catch ( IOException e )
+      {
+        throw new IllegalArgumentException( "Invalid service information!", e );
+      }
+      m_serviceInfo = result;
+    }
+    return result;
   }
 
   @Override
@@ -91,7 +194,7 @@ public class MulticastMessage
     final int prime = 31;
     int result = 1;
     result = prime * result + m_info;
-    result = prime * result + ( ( m_serviceInfo == null ) ? 0 : m_serviceInfo.hashCode() );
+    result = prime * result + ( ( m_serviceId == null ) ? 0 : getServiceInfo().hashCode() );
     return result;
   }
 
@@ -109,4 +212,14 @@ public class MulticastMessage
   {
     return ( m_info & INFO_REMOVED ) == INFO_REMOVED;
   }
+
+  /**
+   * @param timestamp
+   *          the send timestamp, in microseconds since the epoch.
+   * @return a copy of this message carrying the given send timestamp.
+   */
+  MulticastMessage withTimestamp( long timestamp )
+  {
+    return new MulticastMessage( this, timestamp );
+  }
 }
@@ -7,22 +7,42 @@ package usd.impl;
 import static usd.Constants.USD_DEFAULT_GROUP_IP;
 import static usd.Constants.USD_DEFAULT_PORT;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 import usd.ServiceAnnouncer;
 import usd.ServiceInfo;
@@ -41,79 +61,163 @@ public class MulticastServiceAnnouncer implements ServiceAnnouncer
   {
     private final InetAddress m_group;
     private final int m_port;
-    private final AtomicLong m_recvCount;
+    private final FragmentAssembler m_assembler;
+    private final WireDictionary m_dictionary;
+    private final SourceRateLimiter m_rateLimiter;
+    private final boolean m_tracing;
 
     MulticastListener( InetAddress group, int port ) throws IOException
     {
       m_group = group;
       m_port = port;
-      m_recvCount = new AtomicLong();
+      m_assembler = new FragmentAssembler( m_config.getMaxPendingMessages(), m_config.getMaxMessageSize(),
+          m_config.getMaxReassemblyBufferSize(), m_config.getReassemblyTimeout() );
+
+      WireDictionary dictionary = m_config.getWireDictionary();
+      m_dictionary = ( dictionary == null ) ? WireDictionary.DEFAULT : dictionary;
+
+      if ( m_config.getReceiveRateLimit() > 0 || m_config.getMaxInvalidPackets() > 0 )
+      {
+        m_rateLimiter = new SourceRateLimiter( m_config.getReceiveRateLimit(), m_config.getReceiveBurst(),
+            m_config.getMaxInvalidPackets(), m_config.getQuarantineTime() );
+      }
+      else
+      {
+        m_rateLimiter = null;
+      }
+      m_tracing = m_config.getTraceSampleRate() > 0.0;
     }
 
     @Override
     public Void call() throws Exception
     {
       final int bufSize = 32 * 1024;
-      MulticastSocket socket = null;
+      MulticastSocket socket = new MulticastSocket( m_port );
+      socket.joinGroup( m_group );
+      socket.setSoTimeout( 150 );
+      socket.setReuseAddress( true );
 
-      try
+      final byte[] buffer = new byte[bufSize];
+      while ( !Thread.currentThread().isInterrupted() && !socket.isClosed() )
       {
-        socket = new MulticastSocket( m_port );
-        socket.joinGroup( m_group );
-        socket.setSoTimeout( 150 );
-        socket.setReuseAddress( true );
+        try
+        {
+          DatagramPacket packet = new DatagramPacket( buffer, buffer.length );
+          socket.receive( packet );
 
-        final byte[] buffer = new byte[bufSize];
-        while ( !Thread.currentThread().isInterrupted() && !socket.isClosed() )
+          processPacket( packet );
+        }
+        catch ( SocketTimeoutException e )
         {
-          try
-          {
-            DatagramPacket packet = new DatagramPacket( buffer, buffer.length );
-            socket.receive( packet );
+          // No worries, we simply try again...
+        }
+        catch ( Exception e )
+        {
+          // Break...
+          socket.close();
+        }
+      }
 
-            MulticastMessage msg = decodeMessage( packet );
-            if ( msg != null )
-            {
-              notifyLocalServiceListeners( msg );
-            }
-          }
-          catch ( SocketTimeoutException e )
-          {
-            // No worries, we simply try again...
-          }
-          catch ( Exception e )
+      socket.leaveGroup( m_group );
+      socket.close();
+
+      return null;
+    }
+
+    private void processPacket( DatagramPacket packet )
+    {
+      byte[] data = packet.getData();
+      int offset = packet.getOffset();
+      int length = packet.getLength();
+      long receivedNanos = m_tracing ? System.nanoTime() : 0L;
+
+      m_metrics.packetReceived( length );
+
+      InetAddress source = packet.getAddress();
+      long now = System.currentTimeMillis();
+      if ( m_rateLimiter != null && !m_rateLimiter.accept( source, now ) )
+      {
+        // Source is too chatty or misbehaving, don't bother looking at it...
+        m_metrics.m_droppedPackets.increment();
+        return;
+      }
+
+      try
+      {
+        if ( CborCodec.isFragment( data, offset, length ) )
+        {
+          FragmentAssembler.Fragment fragment = CborCodec.decodeFragment( data, offset, length );
+          data = m_assembler.add( packet.getSocketAddress(), fragment, now );
+          if ( data == null )
           {
-            // Break...
-            socket.close();
+            // Message not yet complete...
+            return;
           }
+          offset = 0;
+          length = data.length;
+        }
+
+        long digest = CborCodec.digest( data, offset, length );
+        String knownId = findKnownPayload( digest );
+        if ( knownId != null )
+        {
+          // Byte-identical re-announcement of a service we already know...
+          m_metrics.m_skippedDecodes.increment();
+          serviceRefreshed( knownId );
+          return;
         }
 
-        socket.leaveGroup( m_group );
-        socket.close();
+        MulticastMessage msg = CborCodec.decode( data, offset, length, m_dictionary,
+            m_config.getMaxDecodeAllocation() );
+        m_metrics.messageReceived( msg );
+        notifyLocalServiceListeners( msg, digest, source, receivedNanos );
+
+        if ( m_rateLimiter != null )
+        {
+          m_rateLimiter.valid( source );
+        }
       }
-      finally
+      catch ( IncompatibleDictionaryException e )
       {
-        System.out.printf( "Received %d bytes...%n", m_recvCount.get() );
+        // A valid packet, but from a peer that uses a different dictionary...
+        m_metrics.m_decodeFailures.increment();
+        dictionaryMismatch();
+      }
+      catch ( IOException e )
+      {
+        // Invalid packet, ignore it...
+        m_metrics.m_decodeFailures.increment();
+        if ( m_rateLimiter != null )
+        {
+          m_rateLimiter.invalid( source, now );
+        }
+      }
+      catch ( IllegalArgumentException e )
+      {
+        // Invalid or conflicting service information, ignore it...
+        m_metrics.m_decodeFailures.increment();
+        if ( m_rateLimiter != null )
+        {
+          m_rateLimiter.invalid( source, now );
+        }
       }
-      
-      return null;
     }
 
-    private MulticastMessage decodeMessage( DatagramPacket packet )
+    /**
+     * @return the latency trace of the given message, or <code>null</code> if
+     *         it is not to be traced.
+     */
+    private LatencyTrace createTrace( MulticastMessage msg, long receivedNanos )
     {
-      try
-      {
-        MulticastMessage msg = CborCodec.decode( packet.getData(), packet.getOffset(), packet.getLength() );
-        m_recvCount.addAndGet( packet.getLength() );
-        return msg;
-      }
-      catch ( IOException e )
+      if ( !m_tracing || msg.getTimestamp() == 0L )
       {
         return null;
       }
+      return new LatencyTrace( m_metrics, msg.getTimestamp(), receivedNanos );
     }
 
-    private void notifyLocalServiceListeners( MulticastMessage msg )
+    private void notifyLocalServiceListeners( MulticastMessage msg, long digest, InetAddress source,
+        long receivedNanos )
     {
       if ( msg.isBroadcastState() )
       {
@@ -121,11 +225,39 @@ public class MulticastServiceAnnouncer implements ServiceAnnouncer
       }
       else if ( msg.isServiceAdded() )
       {
-        addService( ServiceLocality.REMOTE, msg.getServiceInfo() );
+        // Byte-identical re-announcements of known services never get here,
+        // so compare anything else with what we know...
+        ServiceInfoHolder holder = m_services.get( msg.getServiceId() );
+        ServiceInfo info = msg.getServiceInfo();
+        if ( holder == null )
+        {
+          addService( ServiceLocality.REMOTE, info, source, createTrace( msg, receivedNanos ) );
+        }
+        else if ( !holder.getInfo().equals( info ) )
+        {
+          if ( holder.m_locality.isLocal() )
+          {
+            // Never let a peer override one of our own services...
+            return;
+          }
+          // The peer changed its service (or our snapshot is stale), so
+          // replace what we know about it...
+          removeService( ServiceLocality.REMOTE, holder.getInfo(), source );
+          addService( ServiceLocality.REMOTE, info, source, createTrace( msg, receivedNanos ) );
+        }
+        else
+        {
+          serviceRefreshed( msg.getServiceId() );
+        }
+        rememberPayload( msg.getServiceId(), digest );
       }
       else if ( msg.isServiceRemoved() )
       {
-        removeService( ServiceLocality.REMOTE, msg.getServiceInfo() );
+        if ( m_services.containsKey( msg.getServiceId() ) )
+        {
+          ServiceInfo info = msg.getServiceInfo();
+          removeService( ServiceLocality.REMOTE, info, source, createTrace( msg, receivedNanos ) );
+        }
       }
     }
   }
@@ -133,7 +265,7 @@ public class MulticastServiceAnnouncer implements ServiceAnnouncer
   /**
    * Short-lived task for sending a multicast announcement.
    */
-  static class MulticastSender implements Callable<Void>
+  final class MulticastSender implements Callable<Void>
   {
     private final InetAddress m_group;
     private final int m_port;
@@ -153,17 +285,32 @@ public class MulticastServiceAnnouncer implements ServiceAnnouncer
 
       try
       {
-        socket = new MulticastSocket();
-        socket.setReuseAddress( true );
+        if ( m_transport == null )
+        {
+          socket = new MulticastSocket();
+          socket.setReuseAddress( true );
+        }
+
+        final int maxPacketSize = m_config.getMaxPacketSize();
 
         for ( MulticastMessage msg : m_messages )
         {
           byte[] data = encodeMessage( msg );
+          m_metrics.messageSent( msg );
 
-          socket.send( new DatagramPacket( data, data.length, m_group, m_port ) );
-
-          // Allow the data to be processed without flooding...
-          TimeUnit.NANOSECONDS.sleep( 150L );
+          if ( data.length <= maxPacketSize )
+          {
+            send( socket, data );
+          }
+          else
+          {
+            // Avoid IP-level fragmentation, which silently drops the whole
+            // message if any of its fragments get lost...
+            for ( byte[] fragment : CborCodec.fragment( data, m_messageIds.incrementAndGet(), maxPacketSize ) )
+            {
+              send( socket, fragment );
+            }
+          }
         }
       }
       finally
@@ -172,6 +319,7 @@ public class MulticastServiceAnnouncer implements ServiceAnnouncer
         {
           socket.close();
         }
+        m_metrics.m_sendQueueDepth.decrement();
       }
 
       return null;
@@ -179,19 +327,188 @@ public class MulticastServiceAnnouncer implements ServiceAnnouncer
 
     private byte[] encodeMessage( MulticastMessage message ) throws IOException
     {
-      return CborCodec.encode( message );
+      double sampleRate = m_config.getTraceSampleRate();
+      if ( sampleRate > 0.0 && ThreadLocalRandom.current().nextDouble() < sampleRate )
+      {
+        // Allows our peers to trace the latency of this message...
+        message = message.withTimestamp( LatencyTrace.currentTimeMicros() );
+      }
+
+      WireDictionary dictionary = m_config.getWireDictionary();
+      if ( message.isBroadcastState() )
+      {
+        // Always tell our peers which dictionary we use...
+        dictionary = ( dictionary == null ) ? WireDictionary.DEFAULT : dictionary;
+      }
+      else if ( m_dictionaryMismatch.get() )
+      {
+        // Not all peers understand our compact encoding...
+        dictionary = null;
+      }
+
+      byte[] data = CborCodec.encode( message, dictionary );
+
+      int threshold = m_config.getCompressionThreshold();
+      if ( threshold > 0 && data.length > threshold )
+      {
+        byte[] compressed = CborCodec.compress( data );
+        m_metrics.m_compressionSavings.add( data.length - compressed.length );
+        data = compressed;
+      }
+
+      return data;
+    }
+
+    private void send( MulticastSocket socket, byte[] data ) throws IOException, InterruptedException
+    {
+      if ( socket == null )
+      {
+        m_transport.send( data );
+        m_metrics.packetSent( data.length );
+        return;
+      }
+
+      socket.send( new DatagramPacket( data, data.length, m_group, m_port ) );
+      m_metrics.packetSent( data.length );
+
+      // Allow the data to be processed without flooding...
+      TimeUnit.NANOSECONDS.sleep( 150L );
+    }
+  }
+
+  /**
+   * Transport of the packets of an announcer, allowing it to run on something
+   * else than a multicast socket, such as a simulated network.
+   */
+  static interface PacketTransport
+  {
+    /**
+     * Sends a packet to all announcers in the group, including the sending
+     * one.
+     */
+    void send( byte[] data ) throws IOException;
+  }
+
+  /**
+   * Task for learning the state of all peers upon start. The state request is
+   * repeated, with a growing backoff, until a repetition yields no new
+   * services, or the retries are exhausted. Each request is answered once no
+   * new remote services are learned during the quiet period. As peers might
+   * keep adding services, the state is considered converged anyway once the
+   * convergence timeout has passed.
+   */
+  final class StateConvergence implements Runnable
+  {
+    private final long m_start;
+    private int m_requests;
+    private long m_requestActivity;
+    private long m_lastActivity;
+    /** In milliseconds, as scheduled, so it does not depend on the wall clock. */
+    private long m_waited;
+
+    StateConvergence()
+    {
+      m_start = System.nanoTime();
+    }
+
+    @Override
+    public void run()
+    {
+      if ( m_ready.isDone() )
+      {
+        return;
+      }
+
+      if ( m_waited >= m_config.getStateConvergenceTimeout() )
+      {
+        // Give up waiting for the state to settle...
+        complete();
+        return;
+      }
+
+      long activity = m_stateActivity.get();
+      if ( activity != m_lastActivity )
+      {
+        // Still learning new services...
+        m_lastActivity = activity;
+        schedule( this, m_config.getStateQuietPeriod() );
+        return;
+      }
+
+      // The first request might have been lost, so it is always repeated...
+      boolean learned = activity != m_requestActivity || m_requests == 1;
+      if ( !learned || m_requests > m_config.getStateRequestRetries() )
+      {
+        complete();
+        return;
+      }
+
+      long backoff = m_config.getStateRequestBackoff() << Math.min( 16, m_requests - 1 );
+      schedule( new Runnable()
+      {
+        @Override
+        public void run()
+        {
+          request();
+        }
+      }, backoff );
+    }
+
+    private void complete()
+    {
+      m_metrics.m_startupTime = System.nanoTime() - m_start;
+      m_ready.complete( null );
+    }
+
+    private void schedule( Runnable task, long delay )
+    {
+      m_waited += delay;
+      m_executor.schedule( task, delay, TimeUnit.MILLISECONDS );
+    }
+
+    /**
+     * Sends the (next) state request, and waits for the responses to quiesce.
+     */
+    void request()
+    {
+      m_requests++;
+      m_requestActivity = m_lastActivity = m_stateActivity.get();
+      requestState();
+      schedule( this, m_config.getStateQuietPeriod() );
     }
   }
 
   static class ServiceInfoHolder
   {
-    final ServiceInfo m_info;
     final ServiceLocality m_locality;
+    /** Digest of the last announcement received for this service, if any. */
+    final long m_digest;
+
+    private final MulticastMessage m_message;
+    private ServiceInfo m_info;
 
     public ServiceInfoHolder( ServiceLocality locality, ServiceInfo info )
+    {
+      this( locality, info, 0L );
+    }
+
+    public ServiceInfoHolder( ServiceLocality locality, ServiceInfo info, long digest )
     {
       m_locality = locality;
       m_info = info;
+      m_message = null;
+      m_digest = digest;
+    }
+
+    /**
+     * Creates a holder whose service information is decoded upon first use.
+     */
+    public ServiceInfoHolder( ServiceLocality locality, MulticastMessage message, long digest )
+    {
+      m_locality = locality;
+      m_info = null;
+      m_message = message;
+      m_digest = digest;
     }
 
     @Override
@@ -207,11 +524,13 @@ public class MulticastServiceAnnouncer implements ServiceAnnouncer
       }
 
       ServiceInfoHolder other = ( ServiceInfoHolder )obj;
-      if ( !m_info.equals( other.m_info ) )
+      if ( m_locality != other.m_locality )
       {
         return false;
       }
-      if ( m_locality != other.m_locality )
+      // Cheap, as service information caches its hash code and shares
+      // identical property maps...
+      if ( !getInfo().equals( other.getInfo() ) )
       {
         return false;
       }
@@ -223,20 +542,30 @@ public class MulticastServiceAnnouncer implements ServiceAnnouncer
     {
       final int prime = 31;
       int result = 1;
-      result = prime * result + ( ( m_info == null ) ? 0 : m_info.hashCode() );
+      result = prime * result + getInfo().hashCode();
       result = prime * result + ( ( m_locality == null ) ? 0 : m_locality.hashCode() );
       return result;
     }
 
+    ServiceInfo getInfo()
+    {
+      ServiceInfo result = m_info;
+      if ( result == null )
+      {
+        result = m_info = m_message.getServiceInfo();
+      }
+      return result;
+    }
+
     boolean isSame( ServiceInfoHolder infoHolder )
     {
       if ( infoHolder == null )
       {
         return false;
       }
-      ServiceInfo info = infoHolder.m_info;
+      ServiceInfo info = infoHolder.getInfo();
 
-      return m_info.getId().equals( info.getId() ) && m_info.getName().equals( info.getName() );
+      return getInfo().getId().equals( info.getId() ) && getInfo().getName().equals( info.getName() );
     }
   }
 
@@ -251,10 +580,29 @@ public class MulticastServiceAnnouncer implements ServiceAnnouncer
   }
 
   private static final int POOL_SIZE = 2;
+  private static final int OFF_HEAP_CHUNK_SIZE = 4 * 1024 * 1024;
 
-  private final CopyOnWriteArrayList<ServiceListener> m_listeners;
+  private final CopyOnWriteArrayList<ServiceEventRing.Cursor> m_cursors;
+  private final ServiceEventRing m_events;
+  private final ServiceEventPublisher m_publisher;
+  private final AtomicBoolean m_dispatchPending;
+  private final Runnable m_dispatcher;
   private final ConcurrentMap<String, ServiceInfoHolder> m_services;
   private final ScheduledExecutorService m_executor;
+  private final MulticastConfig m_config;
+  private final AtomicInteger m_messageIds;
+  private final AtomicBoolean m_dictionaryMismatch;
+  private final ConcurrentMap<Long, String> m_digests;
+  private final RemoteServiceTracker m_remoteServices;
+  private final AnnouncerMetrics m_metrics;
+  private final Set<String> m_unverified;
+  private final ServiceWaiters m_waiters;
+  private final AtomicLong m_stateActivity;
+  private final CompletableFuture<Void> m_ready;
+
+  private volatile ServiceJournal m_journal;
+  private volatile MulticastListener m_receiver;
+  private volatile PacketTransport m_transport;
 
   private volatile InetAddress m_group;
   private volatile int m_port;
@@ -264,133 +612,467 @@ public class MulticastServiceAnnouncer implements ServiceAnnouncer
    */
   public MulticastServiceAnnouncer()
   {
-    m_listeners = new CopyOnWriteArrayList<ServiceListener>();
-    m_services = new ConcurrentHashMap<String, ServiceInfoHolder>();
-
-    m_executor = Executors.newScheduledThreadPool( POOL_SIZE );
+    this( new MulticastConfig() );
   }
 
-  @Override
-  public void addService( ServiceInfo info )
+  /**
+   * Creates a new {@link MulticastServiceAnnouncer} instance.
+   */
+  public MulticastServiceAnnouncer( MulticastConfig config )
   {
-    addService( ServiceLocality.LOCAL, info );
+    this( config, Executors.newScheduledThreadPool( POOL_SIZE ) );
   }
 
-  @Override
-  public void addServiceListener( final ServiceListener listener )
+  /**
+   * Creates a new {@link MulticastServiceAnnouncer} instance running all of its
+   * tasks on the given executor, which is shut down when this announcer stops.
+   */
+  MulticastServiceAnnouncer( MulticastConfig config, ScheduledExecutorService executor )
   {
-    m_listeners.add( listener );
-
-    // Tell the listener the current state...
-    m_executor.submit( new Runnable()
+    m_config = config;
+    // Start at a random identifier to avoid clashes with a previous incarnation...
+    m_messageIds = new AtomicInteger( new Random().nextInt() );
+    m_dictionaryMismatch = new AtomicBoolean();
+    m_digests = new ConcurrentHashMap<Long, String>();
+    if ( config.getMaxRemoteServices() > 0 || config.getMaxRemoteServicesSize() > 0L )
+    {
+      m_remoteServices = new RemoteServiceTracker( config.getMaxRemoteServices(), config.getMaxRemoteServicesSize() );
+    }
+    else
+    {
+      m_remoteServices = null;
+    }
+    m_metrics = new AnnouncerMetrics( this );
+    m_unverified = Collections.newSetFromMap( new ConcurrentHashMap<String, Boolean>() );
+    m_waiters = new ServiceWaiters();
+    m_stateActivity = new AtomicLong();
+    m_ready = new CompletableFuture<Void>();
+    m_cursors = new CopyOnWriteArrayList<ServiceEventRing.Cursor>();
+    m_events = new ServiceEventRing( config.getEventBufferSize(), new ServiceEventRing.StateProvider()
     {
       @Override
-      public void run()
+      public Map<String, ServiceInfo> getState()
       {
-        for ( ServiceInfoHolder infoHolder : m_services.values() )
+        Map<String, ServiceInfo> result = new HashMap<String, ServiceInfo>();
+        for ( ServiceInfoHolder holder : m_services.values() )
         {
-          listener.serviceAdded( infoHolder.m_info );
+          ServiceInfo info = holder.getInfo();
+          result.put( info.getId(), info );
         }
+        return result;
       }
     } );
-  }
-
-  @Override
-  public Collection<ServiceInfo> getKnownServices()
-  {
-    List<ServiceInfo> result = new ArrayList<ServiceInfo>();
-    for ( ServiceInfoHolder holder : m_services.values() )
+    m_publisher = new ServiceEventPublisher( this );
+    m_dispatchPending = new AtomicBoolean();
+    m_dispatcher = new Runnable()
     {
-      result.add( holder.m_info );
+      @Override
+      public void run()
+      {
+        m_dispatchPending.set( false );
+        dispatchEvents();
+      }
+    };
+    if ( config.isOffHeapStorage() )
+    {
+      m_services = new OffHeapServiceMap( OFF_HEAP_CHUNK_SIZE );
     }
-    return result;
+    else
+    {
+      m_services = new ConcurrentHashMap<String, ServiceInfoHolder>();
+    }
+
+    m_executor = executor;
   }
 
   @Override
-  public void removeService( ServiceInfo info )
+  public void addService( ServiceInfo info )
   {
-    removeService( ServiceLocality.LOCAL, info );
+    addService( ServiceLocality.LOCAL, info );
   }
 
-  @Override
-  public void removeServiceListener( ServiceListener listener )
+  /**
+   * Waits until a service accepted by the given filter is known, without
+   * polling: the wait ends as soon as such a service is added.
+   * 
+   * @param filter
+   *          the filter to match services with, cannot be <code>null</code>.
+   * @return the first known service accepted by the filter, never
+   *         <code>null</code>.
+   * @throws TimeoutException
+   *           if no such service became known within the given time out.
+   * @throws CancellationException
+   *           if this announcer was stopped while waiting.
+   */
+  public ServiceInfo awaitService( Predicate<ServiceInfo> filter, long timeout, TimeUnit unit )
+      throws InterruptedException, TimeoutException
   {
-    m_listeners.remove( listener );
+    return await( awaitServiceAsync( filter ), timeout, unit );
   }
 
-  public void start() throws IOException
+  /**
+   * Waits until a service with the given name is known, without polling: the
+   * wait ends as soon as such a service is added.
+   * 
+   * @param name
+   *          the name of the service, cannot be <code>null</code>.
+   * @return the first known service with the given name, never
+   *         <code>null</code>.
+   * @throws TimeoutException
+   *           if no such service became known within the given time out.
+   * @throws CancellationException
+   *           if this announcer was stopped while waiting.
+   */
+  public ServiceInfo awaitService( String name, long timeout, TimeUnit unit )
+      throws InterruptedException, TimeoutException
   {
-    // TODO make this configurable...
-    start( InetAddress.getByName( USD_DEFAULT_GROUP_IP ), USD_DEFAULT_PORT );
+    return await( awaitServiceAsync( name ), timeout, unit );
   }
 
-  public void start( InetAddress group, int port ) throws IOException
+  /**
+   * Asynchronous variant of {@link #awaitService(Predicate, long, TimeUnit)}.
+   * The returned future can be cancelled, or be given a time out with
+   * {@link CompletableFuture#orTimeout(long, TimeUnit)}. Note that
+   * non-asynchronous dependent actions may run on the thread of this announcer
+   * that added the service.
+   * 
+   * @return a future completed with the first known service accepted by the
+   *         given filter, never <code>null</code>.
+   */
+  public CompletableFuture<ServiceInfo> awaitServiceAsync( Predicate<ServiceInfo> filter )
   {
-    m_group = group;
-    m_port = port;
-
-    // Schedule a listener...
-    m_executor.submit( new MulticastListener( m_group, m_port ) );
-
-    // Request the state from all existing announcers...
-    requestState();
+    return matchKnownServices( m_waiters.register( filter ) );
   }
 
-  public void stop() throws IOException, InterruptedException
+  /**
+   * Asynchronous variant of {@link #awaitService(String, long, TimeUnit)}. The
+   * returned future can be cancelled, or be given a time out with
+   * {@link CompletableFuture#orTimeout(long, TimeUnit)}. Note that
+   * non-asynchronous dependent actions may run on the thread of this announcer
+   * that added the service.
+   * 
+   * @return a future completed with the first known service with the given
+   *         name, never <code>null</code>.
+   */
+  public CompletableFuture<ServiceInfo> awaitServiceAsync( String name )
   {
-    // Terminate all running jobs...
-    m_executor.shutdownNow();
-    m_executor.awaitTermination( 5, TimeUnit.SECONDS );
+    return matchKnownServices( m_waiters.register( name ) );
   }
 
-  final void addService( ServiceLocality locality, ServiceInfo info )
+  @Override
+  public void addServiceListener( ServiceListener listener )
   {
-    ServiceInfoHolder holder = new ServiceInfoHolder( locality, info );
+    // The cursor tells the listener the current state, followed by all
+    // subsequent changes...
+    m_cursors.add( m_events.createCursor( listener ) );
+    scheduleDispatch();
+  }
 
-    ServiceInfoHolder oldInfo = m_services.putIfAbsent( info.getId(), holder );
-    if ( oldInfo != null && !oldInfo.isSame( holder ) )
-    {
-      throw new IllegalArgumentException( "Duplicate service added!" );
-    }
-    if ( oldInfo == null )
-    {
-      if ( locality.isLocal() )
-      {
-        // Announce this to the rest of the world...
-        announceServiceAdded( info );
-      }
+  /**
+   * @return the total number of bytes saved by compressing messages.
+   */
+  public long getCompressionSavings()
+  {
+    return m_metrics.getCompressionSavings();
+  }
 
-      // Tell our listeners about this...
-      notifyServiceListenersServiceAdded( info );
-    }
+  /**
+   * @return the number of received packets dropped due to their source being
+   *         rate limited or quarantined.
+   */
+  public long getDroppedPackets()
+  {
+    return m_metrics.getDroppedPackets();
   }
 
   /**
-   * Called when a multi-cast message is received for a broadcast of the current
-   * state.
+   * @return the number of remote services evicted to stay within the
+   *         configured limits.
    */
-  final void broadcastState()
+  public long getEvictions()
   {
-    List<MulticastMessage> msgs = new ArrayList<MulticastMessage>();
+    return m_metrics.getEvictions();
+  }
+
+  @Override
+  public Collection<ServiceInfo> getKnownServices()
+  {
+    List<ServiceInfo> result = new ArrayList<ServiceInfo>();
     for ( ServiceInfoHolder holder : m_services.values() )
     {
-      if ( holder.m_locality.isLocal() )
-      {
-        msgs.add( MulticastMessage.createServiceAddedMessage( holder.m_info ) );
-      }
+      result.add( holder.getInfo() );
     }
-
-    MulticastMessage[] messages = msgs.toArray( new MulticastMessage[msgs.size()] );
-
-    m_executor.submit( new MulticastSender( m_group, m_port, messages ) );
+    return result;
+  }
+
+  /**
+   * @return the metrics of this announcer, never <code>null</code>.
+   */
+  public AnnouncerMetrics getMetrics()
+  {
+    return m_metrics;
+  }
+
+  /**
+   * @return a publisher of the events of this announcer, starting with the
+   *         currently known services and completing when this announcer
+   *         stops, never <code>null</code>.
+   */
+  public Flow.Publisher<ServiceEvent> getServiceEvents()
+  {
+    return m_publisher;
+  }
+
+  /**
+   * @return a future completed once this announcer learned the state of its
+   *         peers after being started, never <code>null</code>.
+   * @see #start()
+   */
+  public CompletableFuture<Void> getReadiness()
+  {
+    return m_ready;
+  }
+
+  /**
+   * @return the number of received announcements that were not decoded, as
+   *         they were byte-identical to the last announcement of a known
+   *         service.
+   */
+  public long getSkippedDecodes()
+  {
+    return m_metrics.getSkippedDecodes();
+  }
+
+  /**
+   * @return <code>false</code> if the given service was restored from a
+   *         snapshot and not yet announced by its peer, <code>true</code>
+   *         otherwise.
+   */
+  public boolean isVerified( ServiceInfo info )
+  {
+    return !m_unverified.contains( info.getId() );
+  }
+
+  @Override
+  public void removeService( ServiceInfo info )
+  {
+    removeService( ServiceLocality.LOCAL, info );
+  }
+
+  @Override
+  public void removeServiceListener( ServiceListener listener )
+  {
+    for ( ServiceEventRing.Cursor cursor : m_cursors )
+    {
+      if ( cursor.getConsumer() == listener )
+      {
+        m_cursors.remove( cursor );
+        cursor.close();
+      }
+    }
+  }
+
+  /**
+   * Starts this announcer on the default group and port.
+   * 
+   * @return a future completed once this announcer learned the state of its
+   *         peers, never <code>null</code>.
+   * @see #start(InetAddress, int)
+   */
+  public CompletableFuture<Void> start() throws IOException
+  {
+    // TODO make this configurable...
+    return start( InetAddress.getByName( USD_DEFAULT_GROUP_IP ), USD_DEFAULT_PORT );
+  }
+
+  /**
+   * Starts this announcer on the given group and port, and requests the state
+   * of all its peers. Services can be added and looked up right away, but the
+   * known services are only complete once the returned future completes: the
+   * state request is repeated until it no longer yields new services, as
+   * configured by {@link MulticastConfig#getStateRequestRetries()}.
+   * 
+   * @return a future completed once this announcer learned the state of its
+   *         peers, never <code>null</code>.
+   */
+  public CompletableFuture<Void> start( InetAddress group, int port ) throws IOException
+  {
+    m_group = group;
+    m_port = port;
+    m_receiver = new MulticastListener( m_group, m_port );
+
+    startUp();
+
+    // Schedule a listener...
+    m_executor.submit( m_receiver );
+
+    // Request the state from all existing announcers...
+    return startConvergence();
+  }
+
+  public void stop() throws IOException, InterruptedException
+  {
+    m_waiters.cancelAll( new CancellationException( "Announcer stopped!" ) );
+    m_ready.cancel( false );
+    m_publisher.complete();
+
+    writeSnapshot();
+
+    // Terminate all running jobs...
+    m_executor.shutdownNow();
+    m_executor.awaitTermination( 5, TimeUnit.SECONDS );
+
+    ServiceJournal journal = m_journal;
+    if ( journal != null )
+    {
+      journal.close();
+    }
+
+    unregisterMBean();
+  }
+
+  /**
+   * Starts this announcer on the given transport instead of a multicast
+   * socket. Packets received through the transport are to be handed to
+   * {@link #receive(DatagramPacket)}.
+   */
+  final CompletableFuture<Void> start( PacketTransport transport ) throws IOException
+  {
+    m_transport = transport;
+    m_receiver = new MulticastListener( null, 0 );
+
+    startUp();
+
+    // Request the state from all existing announcers...
+    return startConvergence();
+  }
+
+  /**
+   * Processes a packet received through the transport this announcer was
+   * started on.
+   * 
+   * @see #start(PacketTransport)
+   */
+  final void receive( DatagramPacket packet )
+  {
+    m_receiver.processPacket( packet );
+  }
+
+  final void addService( ServiceLocality locality, ServiceInfo info )
+  {
+    addService( locality, info, null );
+  }
+
+  /**
+   * @param source
+   *          the address of the peer that announced the service,
+   *          <code>null</code> for local services.
+   */
+  final void addService( ServiceLocality locality, ServiceInfo info, InetAddress source )
+  {
+    addService( locality, info, source, null );
+  }
+
+  /**
+   * @param source
+   *          the address of the peer that announced the service,
+   *          <code>null</code> for local services;
+   * @param trace
+   *          the latency trace of the announcement, can be <code>null</code>.
+   */
+  final void addService( ServiceLocality locality, ServiceInfo info, InetAddress source, LatencyTrace trace )
+  {
+    ServiceInfoHolder holder = new ServiceInfoHolder( locality, info );
+
+    ServiceInfoHolder oldInfo = m_services.putIfAbsent( info.getId(), holder );
+    if ( oldInfo != null && !oldInfo.isSame( holder ) )
+    {
+      throw new IllegalArgumentException( "Duplicate service added!" );
+    }
+    if ( oldInfo == null )
+    {
+      if ( locality.isLocal() )
+      {
+        // Announce this to the rest of the world...
+        announceServiceAdded( info );
+      }
+
+      // Tell our listeners about this...
+      notifyServiceListenersServiceAdded( info, trace );
+      journal( ServiceJournal.EventType.ADDED, locality, source, info );
+      // Wake up anybody waiting for this service...
+      m_waiters.serviceAdded( info );
+
+      if ( !locality.isLocal() )
+      {
+        m_stateActivity.incrementAndGet();
+      }
+      if ( !locality.isLocal() && m_remoteServices != null )
+      {
+        for ( String id : m_remoteServices.added( info ) )
+        {
+          expireService( id, true );
+        }
+      }
+    }
+  }
+
+  /**
+   * Called when a multi-cast message is received for a broadcast of the current
+   * state.
+   */
+  final void broadcastState()
+  {
+    List<MulticastMessage> msgs = new ArrayList<MulticastMessage>();
+    for ( ServiceInfoHolder holder : m_services.values() )
+    {
+      if ( holder.m_locality.isLocal() )
+      {
+        msgs.add( MulticastMessage.createServiceAddedMessage( holder.getInfo() ) );
+      }
+    }
+
+    MulticastMessage[] messages = msgs.toArray( new MulticastMessage[msgs.size()] );
+
+    submitMessages( messages );
   }
 
   final void removeService( ServiceLocality locality, ServiceInfo info )
+  {
+    removeService( locality, info, null );
+  }
+
+  /**
+   * @param source
+   *          the address of the peer that removed the service,
+   *          <code>null</code> for local services.
+   */
+  final void removeService( ServiceLocality locality, ServiceInfo info, InetAddress source )
+  {
+    removeService( locality, info, source, null );
+  }
+
+  /**
+   * @param source
+   *          the address of the peer that removed the service,
+   *          <code>null</code> for local services;
+   * @param trace
+   *          the latency trace of the announcement, can be <code>null</code>.
+   */
+  final void removeService( ServiceLocality locality, ServiceInfo info, InetAddress source, LatencyTrace trace )
   {
     ServiceInfoHolder holder = new ServiceInfoHolder( locality, info );
 
-    if ( m_services.remove( info.getId(), holder ) )
+    ServiceInfoHolder current = m_services.get( info.getId() );
+    if ( holder.equals( current ) && m_services.remove( info.getId(), current ) )
     {
+      m_digests.remove( Long.valueOf( current.m_digest ), info.getId() );
+      m_unverified.remove( info.getId() );
+      if ( m_remoteServices != null )
+      {
+        m_remoteServices.removed( info.getId() );
+      }
+
       if ( locality.isLocal() )
       {
         // Announce this to the rest of the world...
@@ -398,7 +1080,189 @@ public class MulticastServiceAnnouncer implements ServiceAnnouncer
       }
 
       // Tell our listeners about this...
-      notifyServiceListenersServiceRemoved( info );
+      notifyServiceListenersServiceRemoved( info, trace );
+      journal( ServiceJournal.EventType.REMOVED, locality, source, info );
+    }
+  }
+
+  /**
+   * @return the identifier of the known service whose last received
+   *         announcement matches the given digest, or <code>null</code> if
+   *         there is no such service.
+   */
+  final String findKnownPayload( long digest )
+  {
+    String id = m_digests.get( Long.valueOf( digest ) );
+    if ( id == null )
+    {
+      return null;
+    }
+    ServiceInfoHolder holder = m_services.get( id );
+    return ( holder != null && holder.m_digest == digest ) ? id : null;
+  }
+
+  /**
+   * Reports all pending events to the service listeners.
+   */
+  final void dispatchEvents()
+  {
+    // Cursors are not thread-safe...
+    synchronized ( m_cursors )
+    {
+      for ( ServiceEventRing.Cursor cursor : m_cursors )
+      {
+        try
+        {
+          long start = System.nanoTime();
+          int count = cursor.poll();
+          if ( count > 0 )
+          {
+            m_metrics.m_listenerCallbackTime.record( ( System.nanoTime() - start ) / count, count );
+          }
+        }
+        catch ( RuntimeException e )
+        {
+          // Do not let a failing listener affect the others...
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the number of events not yet reported to the slowest service
+   *         listener.
+   */
+  final long getDispatchBacklog()
+  {
+    long result = 0L;
+    for ( ServiceEventRing.Cursor cursor : m_cursors )
+    {
+      result = Math.max( result, cursor.getLag() );
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of known local and remote services.
+   */
+  final int getServiceCount()
+  {
+    return m_services.size();
+  }
+
+  /**
+   * Removes a remote service without being told so by its peer, for example,
+   * to stay within the configured limits.
+   * 
+   * @param eviction
+   *          <code>true</code> if the service is evicted to stay within the
+   *          configured limits, <code>false</code> otherwise.
+   * @return <code>true</code> if the service was removed, <code>false</code>
+   *         otherwise.
+   */
+  final boolean expireService( String id, boolean eviction )
+  {
+    ServiceInfoHolder holder = m_services.get( id );
+    if ( holder == null || holder.m_locality.isLocal() || !m_services.remove( id, holder ) )
+    {
+      return false;
+    }
+
+    m_digests.remove( Long.valueOf( holder.m_digest ), id );
+    m_unverified.remove( id );
+    if ( m_remoteServices != null )
+    {
+      m_remoteServices.removed( id );
+    }
+    if ( eviction )
+    {
+      // Counted before our listeners hear about it...
+      m_metrics.m_evictions.increment();
+    }
+
+    // Tell our listeners about this...
+    notifyServiceListenersServiceRemoved( holder.getInfo(), null );
+    journal( ServiceJournal.EventType.EXPIRED, holder.m_locality, null, holder.getInfo() );
+    return true;
+  }
+
+  /**
+   * Called when an announcement is received for an already known service.
+   */
+  final void serviceRefreshed( String id )
+  {
+    m_unverified.remove( id );
+    if ( m_remoteServices != null )
+    {
+      m_remoteServices.refreshed( id );
+    }
+  }
+
+  /**
+   * Remembers the digest of the last received announcement of a known service.
+   */
+  final void rememberPayload( String id, long digest )
+  {
+    ServiceInfoHolder holder = m_services.get( id );
+    if ( holder != null )
+    {
+      long oldDigest = holder.m_digest;
+      if ( oldDigest != digest
+          && m_services.replace( id, holder, new ServiceInfoHolder( holder.m_locality, holder.getInfo(), digest ) ) )
+      {
+        m_digests.remove( Long.valueOf( oldDigest ), id );
+        m_digests.put( Long.valueOf( digest ), id );
+      }
+    }
+  }
+
+  /**
+   * Writes the known remote services to the configured snapshot, if any.
+   */
+  final synchronized void writeSnapshot() throws IOException
+  {
+    File file = m_config.getSnapshotFile();
+    if ( file == null )
+    {
+      return;
+    }
+
+    List<ServiceInfo> services = new ArrayList<ServiceInfo>();
+    for ( ServiceInfoHolder holder : m_services.values() )
+    {
+      if ( !holder.m_locality.isLocal() )
+      {
+        services.add( holder.getInfo() );
+      }
+    }
+    ServiceSnapshot.write( file, services );
+  }
+
+  /**
+   * Waits for the given future, which is cancelled if it does not complete in
+   * time.
+   */
+  private static ServiceInfo await( CompletableFuture<ServiceInfo> future, long timeout, TimeUnit unit )
+      throws InterruptedException, TimeoutException
+  {
+    try
+    {
+      return future.get( timeout, unit );
+    }
+    catch ( ExecutionException e )
+    {
+      Throwable cause = e.getCause();
+      if ( cause instanceof RuntimeException )
+      {
+        // Thrown by the filter...
+        throw ( RuntimeException )cause;
+      }
+      throw new IllegalStateException( "Failed to await service!", cause );
+    }
+    finally
+    {
+      // Unregisters the waiter, unless it is completed already...
+      future.cancel( false );
     }
   }
 
@@ -408,7 +1272,7 @@ public class MulticastServiceAnnouncer implements ServiceAnnouncer
   private void announceServiceAdded( ServiceInfo info )
   {
     MulticastMessage message = MulticastMessage.createServiceAddedMessage( info );
-    m_executor.submit( new MulticastSender( m_group, m_port, message ) );
+    submitMessages( message );
   }
 
   /**
@@ -417,37 +1281,228 @@ public class MulticastServiceAnnouncer implements ServiceAnnouncer
   private void announceServiceRemoved( ServiceInfo info )
   {
     MulticastMessage message = MulticastMessage.createServiceRemovedMessage( info );
-    m_executor.submit( new MulticastSender( m_group, m_port, message ) );
+    submitMessages( message );
+  }
+
+  private void notifyServiceListenersServiceAdded( ServiceInfo info, LatencyTrace trace )
+  {
+    m_events.publish( true, info, trace );
+    traceUndispatched( trace );
+    scheduleDispatch();
+  }
+
+  private void notifyServiceListenersServiceRemoved( ServiceInfo info, LatencyTrace trace )
+  {
+    m_events.publish( false, info, trace );
+    traceUndispatched( trace );
+    scheduleDispatch();
+  }
+
+  /**
+   * Completes the given trace right away if there is no service listener to
+   * report its event to.
+   */
+  private void traceUndispatched( LatencyTrace trace )
+  {
+    if ( trace != null && m_cursors.isEmpty() )
+    {
+      trace.dispatched();
+    }
+  }
+
+  /**
+   * Completes the given, just registered, waiter if a matching service is
+   * already known. Services added while doing so complete the waiter as well.
+   */
+  private ServiceWaiters.Waiter matchKnownServices( ServiceWaiters.Waiter waiter )
+  {
+    try
+    {
+      for ( ServiceInfoHolder holder : m_services.values() )
+      {
+        ServiceInfo info = holder.getInfo();
+        if ( waiter.matches( info ) )
+        {
+          waiter.complete( info );
+          break;
+        }
+      }
+    }
+    catch ( RuntimeException e )
+    {
+      // Thrown by the filter...
+      waiter.completeExceptionally( e );
+    }
+    return waiter;
+  }
+
+  /**
+   * Sends the given messages to our peers in the background.
+   */
+  private void submitMessages( MulticastMessage... messages )
+  {
+    // Counted before submitting, as the sender decrements it once done...
+    m_metrics.m_sendQueueDepth.increment();
+    try
+    {
+      m_executor.submit( new MulticastSender( m_group, m_port, messages ) );
+    }
+    catch ( RejectedExecutionException e )
+    {
+      m_metrics.m_sendQueueDepth.decrement();
+      throw e;
+    }
+  }
+
+  /**
+   * Schedules the dispatcher, unless it is already pending, so bursts of
+   * events are dispatched by a single task.
+   */
+  private void scheduleDispatch()
+  {
+    if ( m_dispatchPending.compareAndSet( false, true ) )
+    {
+      m_executor.submit( m_dispatcher );
+    }
+  }
+
+  /**
+   * Called when a peer turns out to use a different dictionary than we do.
+   * From then on, we use the original (v1) encoding which all peers understand,
+   * and make sure the peer learns about our services (again).
+   */
+  private void dictionaryMismatch()
+  {
+    if ( m_dictionaryMismatch.compareAndSet( false, true ) )
+    {
+      // Tells the peer about our dictionary, so it falls back as well and
+      // sends us its state in a way we understand...
+      requestState();
+    }
+    broadcastState();
+  }
+
+  /**
+   * Records an event in the journal, if any.
+   */
+  private void journal( ServiceJournal.EventType type, ServiceLocality locality, InetAddress source, ServiceInfo info )
+  {
+    ServiceJournal journal = m_journal;
+    if ( journal != null )
+    {
+      journal.append( type, locality, source, info );
+    }
   }
 
-  private void notifyServiceListenersServiceAdded( final ServiceInfo info )
+  /**
+   * Opens the configured journal, if any, and schedules it to be written
+   * periodically.
+   */
+  private void openJournal() throws IOException
   {
-    m_executor.submit( new Runnable()
+    File directory = m_config.getJournalDirectory();
+    if ( directory == null )
+    {
+      return;
+    }
+
+    final ServiceJournal journal = new ServiceJournal( directory, m_config.getJournalSegmentSize(),
+        m_config.getJournalMaxSegments() );
+    m_journal = journal;
+
+    long interval = m_config.getJournalFlushInterval();
+    m_executor.scheduleWithFixedDelay( new Runnable()
     {
       @Override
       public void run()
       {
-        for ( ServiceListener listener : m_listeners )
+        try
+        {
+          journal.flush();
+        }
+        catch ( IOException e )
         {
-          listener.serviceAdded( info );
+          // Try again next time...
         }
       }
-    } );
+    }, interval, interval, TimeUnit.MILLISECONDS );
+  }
+
+  /**
+   * Exports the metrics of this announcer via JMX, if configured.
+   */
+  private void registerMBean() throws IOException
+  {
+    String name = m_config.getMBeanName();
+    if ( name == null )
+    {
+      return;
+    }
+
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().registerMBean( m_metrics, new ObjectName( name ) );
+    }
+    catch ( JMException e )
+    {
+      throw new IOException( "Failed to register metrics as " + name + "!", e );
+    }
   }
 
-  private void notifyServiceListenersServiceRemoved( final ServiceInfo info )
+  /**
+   * Restores the remote services from the configured snapshot, if any, and
+   * schedules the snapshot to be written periodically.
+   */
+  private void restoreSnapshot() throws IOException
   {
-    m_executor.submit( new Runnable()
+    File file = m_config.getSnapshotFile();
+    if ( file == null )
+    {
+      return;
+    }
+
+    for ( ServiceInfoHolder holder : ServiceSnapshot.read( file ) )
+    {
+      ServiceInfo info = holder.getInfo();
+      if ( !m_services.containsKey( info.getId() ) )
+      {
+        m_unverified.add( info.getId() );
+        addService( ServiceLocality.REMOTE, info );
+        // Allows unchanged re-announcements to be verified without decoding...
+        rememberPayload( info.getId(), holder.m_digest );
+      }
+    }
+
+    m_executor.schedule( new Runnable()
     {
       @Override
       public void run()
       {
-        for ( ServiceListener listener : m_listeners )
+        // Peers not responding in time are probably gone...
+        for ( String id : m_unverified )
         {
-          listener.serviceRemoved( info );
+          expireService( id, false );
         }
+        m_unverified.clear();
       }
-    } );
+    }, m_config.getUnverifiedTimeout(), TimeUnit.MILLISECONDS );
+
+    long interval = m_config.getSnapshotInterval();
+    m_executor.scheduleWithFixedDelay( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          writeSnapshot();
+        }
+        catch ( IOException e )
+        {
+          // Try again next time...
+        }
+      }
+    }, interval, interval, TimeUnit.MILLISECONDS );
   }
 
   /**
@@ -456,6 +1511,48 @@ public class MulticastServiceAnnouncer implements ServiceAnnouncer
   private void requestState()
   {
     MulticastMessage message = MulticastMessage.createBroadcastStateMessage();
-    m_executor.submit( new MulticastSender( m_group, m_port, message ) );
+    submitMessages( message );
+  }
+
+  /**
+   * Requests the state of all peers until it converges.
+   */
+  private CompletableFuture<Void> startConvergence()
+  {
+    new StateConvergence().request();
+    return m_ready;
+  }
+
+  /**
+   * Starts everything but the listener.
+   */
+  private void startUp() throws IOException
+  {
+    registerMBean();
+    openJournal();
+
+    // Serve lookups from the last snapshot until our peers respond...
+    restoreSnapshot();
+  }
+
+  /**
+   * Removes the metrics of this announcer from JMX, if registered.
+   */
+  private void unregisterMBean()
+  {
+    String name = m_config.getMBeanName();
+    if ( name == null )
+    {
+      return;
+    }
+
+    try
+    {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean( new ObjectName( name ) );
+    }
+    catch ( JMException e )
+    {
+      // Not registered, nothing to do...
+    }
   }
 }
@@ -0,0 +1,573 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import usd.impl.MulticastServiceAnnouncer.ServiceInfoHolder;
+import usd.impl.MulticastServiceAnnouncer.ServiceLocality;
+
+
+/**
+ * Keeps service information in off-heap memory, indexed by service identifier.
+ * <p>
+ * Each service is stored as a record in direct byte buffers, containing its
+ * locality, digest, identifier and its CBOR encoded announcement. The index is
+ * an open-addressing table of primitive arrays, so the number of services does
+ * not add to the number of objects the garbage collector has to trace. Service
+ * information is only materialized when it is read, and even then lazily (see
+ * {@link MulticastMessage}).
+ * </p>
+ * <p>
+ * Records are allocated sequentially in fixed-size chunks. Removed records
+ * leave garbage behind that is reclaimed by compacting all live records into
+ * fresh chunks once more than half of the used space is garbage.
+ * </p>
+ */
+final class OffHeapServiceMap extends AbstractMap<String, ServiceInfoHolder> implements
+    ConcurrentMap<String, ServiceInfoHolder>
+{
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  private static final long EMPTY = 0L;
+  private static final long DELETED = -1L;
+
+  // Record layout: length (int), locality (byte), digest (long), id length
+  // (short), id bytes, encoded announcement...
+  private static final int HEADER_SIZE = 4 + 1 + 8 + 2;
+
+  private final ReadWriteLock m_lock;
+  private final int m_chunkSize;
+  private final List<ByteBuffer> m_chunks;
+
+  private int[] m_hashes;
+  private long[] m_addresses;
+  private int m_size;
+  private int m_deleted;
+
+  private long m_usedBytes;
+  private long m_liveBytes;
+
+  /**
+   * Creates a new {@link OffHeapServiceMap} instance.
+   *
+   * @param chunkSize
+   *          the size of each off-heap chunk, in bytes.
+   */
+  OffHeapServiceMap( int chunkSize )
+  {
+    m_lock = new ReentrantReadWriteLock();
+    m_chunkSize = chunkSize;
+    m_chunks = new ArrayList<ByteBuffer>();
+
+    m_hashes = new int[64];
+    m_addresses = new long[64];
+  }
+
+  private static int hash( byte[] id )
+  {
+    int h = Arrays.hashCode( id );
+    return h ^ ( h >>> 16 );
+  }
+
+  @Override
+  public void clear()
+  {
+    m_lock.writeLock().lock();
+    try
+    {
+      m_chunks.clear();
+      Arrays.fill( m_hashes, 0 );
+      Arrays.fill( m_addresses, EMPTY );
+      m_size = m_deleted = 0;
+      m_usedBytes = m_liveBytes = 0L;
+    }
+    finally
+    {
+      m_lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean containsKey( Object key )
+  {
+    if ( !( key instanceof String ) )
+    {
+      return false;
+    }
+    byte[] id = ( ( String )key ).getBytes( UTF8 );
+
+    m_lock.readLock().lock();
+    try
+    {
+      return indexOf( id, hash( id ) ) >= 0;
+    }
+    finally
+    {
+      m_lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public Set<Map.Entry<String, ServiceInfoHolder>> entrySet()
+  {
+    // Snapshot of the current contents. Kept in a list, as hashing the
+    // entries would decode all service information...
+    final List<Map.Entry<String, ServiceInfoHolder>> entries = new ArrayList<Map.Entry<String, ServiceInfoHolder>>();
+
+    m_lock.readLock().lock();
+    try
+    {
+      for ( long address : m_addresses )
+      {
+        if ( address != EMPTY && address != DELETED )
+        {
+          entries.add( new SimpleImmutableEntry<String, ServiceInfoHolder>( readId( address ), read( address ) ) );
+        }
+      }
+    }
+    finally
+    {
+      m_lock.readLock().unlock();
+    }
+
+    return new AbstractSet<Map.Entry<String, ServiceInfoHolder>>()
+    {
+      @Override
+      public Iterator<Map.Entry<String, ServiceInfoHolder>> iterator()
+      {
+        return entries.iterator();
+      }
+
+      @Override
+      public int size()
+      {
+        return entries.size();
+      }
+    };
+  }
+
+  @Override
+  public ServiceInfoHolder get( Object key )
+  {
+    if ( !( key instanceof String ) )
+    {
+      return null;
+    }
+    byte[] id = ( ( String )key ).getBytes( UTF8 );
+
+    m_lock.readLock().lock();
+    try
+    {
+      int idx = indexOf( id, hash( id ) );
+      return ( idx < 0 ) ? null : read( m_addresses[idx] );
+    }
+    finally
+    {
+      m_lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * @return the number of off-heap bytes in use, including garbage.
+   */
+  long getUsedBytes()
+  {
+    m_lock.readLock().lock();
+    try
+    {
+      return m_usedBytes;
+    }
+    finally
+    {
+      m_lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public ServiceInfoHolder put( String key, ServiceInfoHolder value )
+  {
+    m_lock.writeLock().lock();
+    try
+    {
+      byte[] id = key.getBytes( UTF8 );
+      int idx = indexOf( id, hash( id ) );
+      ServiceInfoHolder old = ( idx < 0 ) ? null : read( m_addresses[idx] );
+      store( id, value );
+      return old;
+    }
+    finally
+    {
+      m_lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public ServiceInfoHolder putIfAbsent( String key, ServiceInfoHolder value )
+  {
+    m_lock.writeLock().lock();
+    try
+    {
+      byte[] id = key.getBytes( UTF8 );
+      int idx = indexOf( id, hash( id ) );
+      if ( idx >= 0 )
+      {
+        return read( m_addresses[idx] );
+      }
+      store( id, value );
+      return null;
+    }
+    finally
+    {
+      m_lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public ServiceInfoHolder remove( Object key )
+  {
+    if ( !( key instanceof String ) )
+    {
+      return null;
+    }
+
+    m_lock.writeLock().lock();
+    try
+    {
+      byte[] id = ( ( String )key ).getBytes( UTF8 );
+      int idx = indexOf( id, hash( id ) );
+      if ( idx < 0 )
+      {
+        return null;
+      }
+      ServiceInfoHolder old = read( m_addresses[idx] );
+      delete( idx );
+      return old;
+    }
+    finally
+    {
+      m_lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean remove( Object key, Object value )
+  {
+    if ( !( key instanceof String ) )
+    {
+      return false;
+    }
+
+    m_lock.writeLock().lock();
+    try
+    {
+      byte[] id = ( ( String )key ).getBytes( UTF8 );
+      int idx = indexOf( id, hash( id ) );
+      if ( idx < 0 || !read( m_addresses[idx] ).equals( value ) )
+      {
+        return false;
+      }
+      delete( idx );
+      return true;
+    }
+    finally
+    {
+      m_lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public ServiceInfoHolder replace( String key, ServiceInfoHolder value )
+  {
+    m_lock.writeLock().lock();
+    try
+    {
+      byte[] id = key.getBytes( UTF8 );
+      int idx = indexOf( id, hash( id ) );
+      if ( idx < 0 )
+      {
+        return null;
+      }
+      ServiceInfoHolder old = read( m_addresses[idx] );
+      store( id, value );
+      return old;
+    }
+    finally
+    {
+      m_lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public boolean replace( String key, ServiceInfoHolder oldValue, ServiceInfoHolder newValue )
+  {
+    m_lock.writeLock().lock();
+    try
+    {
+      byte[] id = key.getBytes( UTF8 );
+      int idx = indexOf( id, hash( id ) );
+      if ( idx < 0 || !read( m_addresses[idx] ).equals( oldValue ) )
+      {
+        return false;
+      }
+      store( id, newValue );
+      return true;
+    }
+    finally
+    {
+      m_lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public int size()
+  {
+    m_lock.readLock().lock();
+    try
+    {
+      return m_size;
+    }
+    finally
+    {
+      m_lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Allocates room for a record of the given size.
+   *
+   * @return the address of the allocated record.
+   */
+  private long allocate( int size )
+  {
+    ByteBuffer chunk = m_chunks.isEmpty() ? null : m_chunks.get( m_chunks.size() - 1 );
+    if ( chunk == null || chunk.remaining() < size )
+    {
+      chunk = ByteBuffer.allocateDirect( Math.max( m_chunkSize, size ) );
+      m_chunks.add( chunk );
+    }
+    int offset = chunk.position();
+    chunk.position( offset + size );
+    m_usedBytes += size;
+    m_liveBytes += size;
+    // Offset by one to never end up with an empty address...
+    return ( ( ( long )m_chunks.size() - 1 ) << 32 ) + offset + 1;
+  }
+
+  /**
+   * Rewrites all live records into fresh chunks.
+   */
+  private void compact()
+  {
+    List<ByteBuffer> oldChunks = new ArrayList<ByteBuffer>( m_chunks );
+    m_chunks.clear();
+    m_usedBytes = m_liveBytes = 0L;
+
+    for ( int i = 0; i < m_addresses.length; i++ )
+    {
+      long address = m_addresses[i];
+      if ( address != EMPTY && address != DELETED )
+      {
+        ByteBuffer src = slice( oldChunks, address );
+        int length = src.getInt( src.position() );
+        src.limit( src.position() + length );
+
+        long newAddress = allocate( length );
+        ByteBuffer dst = slice( m_chunks, newAddress );
+        dst.put( src );
+
+        m_addresses[i] = newAddress;
+      }
+    }
+  }
+
+  private void delete( int idx )
+  {
+    ByteBuffer record = slice( m_chunks, m_addresses[idx] );
+    m_liveBytes -= record.getInt( record.position() );
+
+    m_addresses[idx] = DELETED;
+    m_size--;
+    m_deleted++;
+
+    if ( m_usedBytes > m_chunkSize && m_usedBytes > 2 * m_liveBytes )
+    {
+      compact();
+    }
+  }
+
+  private int indexOf( byte[] id, int hash )
+  {
+    int mask = m_addresses.length - 1;
+    for ( int idx = hash & mask;; idx = ( idx + 1 ) & mask )
+    {
+      long address = m_addresses[idx];
+      if ( address == EMPTY )
+      {
+        return -1;
+      }
+      if ( address != DELETED && m_hashes[idx] == hash && matches( address, id ) )
+      {
+        return idx;
+      }
+    }
+  }
+
+  private boolean matches( long address, byte[] id )
+  {
+    ByteBuffer record = slice( m_chunks, address );
+    int pos = record.position() + 4 + 1 + 8;
+    if ( record.getShort( pos ) != id.length )
+    {
+      return false;
+    }
+    pos += 2;
+    for ( int i = 0; i < id.length; i++ )
+    {
+      if ( record.get( pos + i ) != id[i] )
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private ServiceInfoHolder read( long address )
+  {
+    ByteBuffer record = slice( m_chunks, address );
+    int length = record.getInt();
+    ServiceLocality locality = ServiceLocality.values()[record.get()];
+    long digest = record.getLong();
+    int idLength = record.getShort();
+    record.position( record.position() + idLength );
+
+    byte[] data = new byte[length - HEADER_SIZE - idLength];
+    record.get( data );
+
+    try
+    {
+      return new ServiceInfoHolder( locality, CborCodec.decode( data ), digest );
+    }
+    catch ( IOException e )
+    {
+      // We've written it ourselves, so this should not happen...
+      throw new IllegalStateException( "Corrupt service record!", e );
+    }
+  }
+
+  private String readId( long address )
+  {
+    ByteBuffer record = slice( m_chunks, address );
+    int pos = record.position() + 4 + 1 + 8;
+    byte[] id = new byte[record.getShort( pos )];
+    record.position( pos + 2 );
+    record.get( id );
+    return new String( id, UTF8 );
+  }
+
+  private void rehash( int capacity )
+  {
+    int[] oldHashes = m_hashes;
+    long[] oldAddresses = m_addresses;
+
+    m_hashes = new int[capacity];
+    m_addresses = new long[capacity];
+    m_deleted = 0;
+
+    int mask = capacity - 1;
+    for ( int i = 0; i < oldAddresses.length; i++ )
+    {
+      long address = oldAddresses[i];
+      if ( address != EMPTY && address != DELETED )
+      {
+        int idx = oldHashes[i] & mask;
+        while ( m_addresses[idx] != EMPTY )
+        {
+          idx = ( idx + 1 ) & mask;
+        }
+        m_hashes[idx] = oldHashes[i];
+        m_addresses[idx] = address;
+      }
+    }
+  }
+
+  private ByteBuffer slice( List<ByteBuffer> chunks, long address )
+  {
+    ByteBuffer result = chunks.get( ( int )( ( address - 1 ) >>> 32 ) ).duplicate();
+    result.clear();
+    result.position( ( int )( ( address - 1 ) & 0xffffffffL ) );
+    return result;
+  }
+
+  private void store( byte[] id, ServiceInfoHolder holder )
+  {
+    if ( id.length > Short.MAX_VALUE )
+    {
+      throw new IllegalArgumentException( "Service identifier too long!" );
+    }
+
+    byte[] data;
+    try
+    {
+      data = CborCodec.encode( MulticastMessage.createServiceAddedMessage( holder.getInfo() ) );
+    }
+    catch ( IOException e )
+    {
+      throw new IllegalArgumentException( "Unable to encode service!", e );
+    }
+
+    int hash = hash( id );
+    int idx = indexOf( id, hash );
+    if ( idx >= 0 )
+    {
+      // Replace the existing record...
+      delete( idx );
+    }
+
+    if ( ( m_size + m_deleted + 1 ) * 4 > m_addresses.length * 3 )
+    {
+      // Grow only if needed, otherwise simply clean up the deleted entries...
+      rehash( ( m_size + 1 ) * 2 > m_addresses.length ? m_addresses.length * 2 : m_addresses.length );
+    }
+
+    int length = HEADER_SIZE + id.length + data.length;
+    long address = allocate( length );
+
+    ByteBuffer record = slice( m_chunks, address );
+    record.putInt( length );
+    record.put( ( byte )holder.m_locality.ordinal() );
+    record.putLong( holder.m_digest );
+    record.putShort( ( short )id.length );
+    record.put( id );
+    record.put( data );
+
+    int mask = m_addresses.length - 1;
+    idx = hash & mask;
+    while ( m_addresses[idx] != EMPTY && m_addresses[idx] != DELETED )
+    {
+      idx = ( idx + 1 ) & mask;
+    }
+    if ( m_addresses[idx] == DELETED )
+    {
+      m_deleted--;
+    }
+    m_hashes[idx] = hash;
+    m_addresses[idx] = address;
+    m_size++;
+  }
+}
@@ -0,0 +1,137 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import usd.ServiceInfo;
+
+
+/**
+ * Keeps track of the remote services known to an announcer, in order of their
+ * last refresh, and decides which of them are to be evicted when either the
+ * number of remote services or their estimated size exceeds its limits. Local
+ * services are never tracked, and thus never evicted.
+ */
+final class RemoteServiceTracker
+{
+  private final Map<String, Integer> m_entries;
+  private final int m_maxCount;
+  private final long m_maxBytes;
+
+  private long m_bytes;
+
+  /**
+   * Creates a new {@link RemoteServiceTracker} instance.
+   *
+   * @param maxCount
+   *          the maximum number of remote services, 0 for no limit;
+   * @param maxBytes
+   *          the maximum estimated size of all remote services, in bytes, 0
+   *          for no limit.
+   */
+  RemoteServiceTracker( int maxCount, long maxBytes )
+  {
+    // Access ordered, so the least recently refreshed entries come first...
+    m_entries = new LinkedHashMap<String, Integer>( 16, 0.75f, true );
+    m_maxCount = maxCount;
+    m_maxBytes = maxBytes;
+  }
+
+  /**
+   * @return a rough estimate of the amount of heap used by the given service
+   *         information, in bytes.
+   */
+  static int estimateSize( ServiceInfo info )
+  {
+    int size = 96 + 2 * ( info.getId().length() + info.getName().length() + info.getURI().toString().length() );
+    for ( Map.Entry<String, String> entry : info.getProperties().entrySet() )
+    {
+      size += 48 + 2 * ( entry.getKey().length() + entry.getValue().length() );
+    }
+    return size;
+  }
+
+  /**
+   * Tracks a newly added remote service.
+   *
+   * @return the identifiers of the services to evict, oldest first, never
+   *         <code>null</code>.
+   */
+  synchronized List<String> added( ServiceInfo info )
+  {
+    int size = estimateSize( info );
+    Integer old = m_entries.put( info.getId(), Integer.valueOf( size ) );
+    if ( old != null )
+    {
+      m_bytes -= old.intValue();
+    }
+    m_bytes += size;
+
+    if ( !isExceeded() )
+    {
+      return Collections.emptyList();
+    }
+
+    List<String> result = new ArrayList<String>();
+    Iterator<Map.Entry<String, Integer>> iter = m_entries.entrySet().iterator();
+    // Never evict the service that was just added...
+    while ( isExceeded() && m_entries.size() > 1 && iter.hasNext() )
+    {
+      Map.Entry<String, Integer> entry = iter.next();
+      result.add( entry.getKey() );
+      m_bytes -= entry.getValue().intValue();
+      iter.remove();
+    }
+    return result;
+  }
+
+  /**
+   * @return the estimated size of all tracked services, in bytes.
+   */
+  synchronized long getBytes()
+  {
+    return m_bytes;
+  }
+
+  /**
+   * @return the number of tracked services.
+   */
+  synchronized int getCount()
+  {
+    return m_entries.size();
+  }
+
+  /**
+   * Marks the service with the given identifier as refreshed.
+   */
+  synchronized void refreshed( String id )
+  {
+    // Moves the entry to the end...
+    m_entries.get( id );
+  }
+
+  /**
+   * Stops tracking the service with the given identifier.
+   */
+  synchronized void removed( String id )
+  {
+    Integer old = m_entries.remove( id );
+    if ( old != null )
+    {
+      m_bytes -= old.intValue();
+    }
+  }
+
+  private boolean isExceeded()
+  {
+    return ( m_maxCount > 0 && m_entries.size() > m_maxCount ) || ( m_maxBytes > 0L && m_bytes > m_maxBytes );
+  }
+}
@@ -0,0 +1,68 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import usd.ServiceInfo;
+
+
+/**
+ * Denotes the addition or removal of a service.
+ */
+public final class ServiceEvent
+{
+  private final boolean m_added;
+  private final ServiceInfo m_info;
+
+  ServiceEvent( boolean added, ServiceInfo info )
+  {
+    m_added = added;
+    m_info = info;
+  }
+
+  @Override
+  public boolean equals( Object obj )
+  {
+    if ( this == obj )
+    {
+      return true;
+    }
+    if ( obj == null || getClass() != obj.getClass() )
+    {
+      return false;
+    }
+
+    ServiceEvent other = ( ServiceEvent )obj;
+    return m_added == other.m_added && m_info.equals( other.m_info );
+  }
+
+  /**
+   * @return the service this event is about, never <code>null</code>.
+   */
+  public ServiceInfo getServiceInfo()
+  {
+    return m_info;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    return 31 * m_info.hashCode() + ( m_added ? 1 : 0 );
+  }
+
+  /**
+   * @return <code>true</code> if the service was added, <code>false</code> if
+   *         it was removed.
+   */
+  public boolean isAdded()
+  {
+    return m_added;
+  }
+
+  @Override
+  public String toString()
+  {
+    return ( m_added ? "added " : "removed " ) + m_info.getId();
+  }
+}
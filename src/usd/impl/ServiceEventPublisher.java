@@ -0,0 +1,305 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import usd.ServiceAnnouncer;
+import usd.ServiceInfo;
+import usd.ServiceListener;
+
+
+/**
+ * Publishes the service events of a {@link ServiceAnnouncer} to reactive
+ * subscribers.
+ * <p>
+ * Each subscriber first receives the currently known services, followed by
+ * all subsequent changes, but never more than it requested. Events that cannot
+ * be delivered yet are coalesced per service: a service added and removed again
+ * before the subscriber got to see it is not reported at all, so the number of
+ * pending events is bounded by the number of services rather than by the
+ * number of events.
+ * </p>
+ * <p>
+ * Once completed, for example because its announcer stops, subscribers receive
+ * their pending events followed by {@link Flow.Subscriber#onComplete()}.
+ * </p>
+ */
+public final class ServiceEventPublisher implements Flow.Publisher<ServiceEvent>
+{
+  /**
+   * The pending changes of a single service.
+   */
+  static final class Pending
+  {
+    ServiceInfo m_removed;
+    ServiceInfo m_added;
+  }
+
+  /**
+   * A single subscription, receiving events as {@link ServiceListener}.
+   */
+  final class Subscription implements Flow.Subscription, ServiceListener
+  {
+    private final Flow.Subscriber<? super ServiceEvent> m_subscriber;
+    private final Map<String, Pending> m_pending;
+    private final AtomicLong m_demand;
+    private final AtomicInteger m_wip;
+
+    private volatile boolean m_cancelled;
+    private volatile boolean m_completed;
+
+    Subscription( Flow.Subscriber<? super ServiceEvent> subscriber )
+    {
+      m_subscriber = subscriber;
+      m_pending = new LinkedHashMap<String, Pending>();
+      m_demand = new AtomicLong();
+      m_wip = new AtomicInteger();
+    }
+
+    @Override
+    public void cancel()
+    {
+      if ( !m_cancelled )
+      {
+        m_cancelled = true;
+        m_subscriptions.remove( this );
+        m_announcer.removeServiceListener( this );
+        synchronized ( m_pending )
+        {
+          m_pending.clear();
+        }
+      }
+    }
+
+    /**
+     * Completes this subscription once all pending events are delivered.
+     */
+    void complete()
+    {
+      m_completed = true;
+      drain();
+    }
+
+    @Override
+    public void request( long n )
+    {
+      if ( n <= 0L )
+      {
+        cancel();
+        m_subscriber.onError( new IllegalArgumentException( "Non-positive request: " + n ) );
+        return;
+      }
+
+      long current;
+      do
+      {
+        current = m_demand.get();
+      }
+      while ( !m_demand.compareAndSet( current, ( current + n < 0L ) ? Long.MAX_VALUE : current + n ) );
+
+      drain();
+    }
+
+    @Override
+    public void serviceAdded( ServiceInfo info )
+    {
+      synchronized ( m_pending )
+      {
+        Pending pending = getPending( info.getId() );
+        if ( info.equals( pending.m_removed ) )
+        {
+          // Removed and added again before being reported, nothing changed...
+          m_pending.remove( info.getId() );
+        }
+        else
+        {
+          pending.m_added = info;
+        }
+      }
+      drain();
+    }
+
+    @Override
+    public void serviceRemoved( ServiceInfo info )
+    {
+      synchronized ( m_pending )
+      {
+        Pending pending = getPending( info.getId() );
+        if ( pending.m_added != null )
+        {
+          // Added and removed again before being reported...
+          pending.m_added = null;
+          if ( pending.m_removed == null )
+          {
+            m_pending.remove( info.getId() );
+          }
+        }
+        else
+        {
+          pending.m_removed = info;
+        }
+      }
+      drain();
+    }
+
+    /**
+     * Delivers as many pending events as demanded. Only one thread at a time
+     * delivers events, others merely signal there might be more work.
+     */
+    private void drain()
+    {
+      if ( m_wip.getAndIncrement() != 0 )
+      {
+        return;
+      }
+
+      int missed = 1;
+      do
+      {
+        while ( !m_cancelled && m_demand.get() > 0L )
+        {
+          ServiceEvent event = nextEvent();
+          if ( event == null )
+          {
+            break;
+          }
+          if ( m_demand.get() != Long.MAX_VALUE )
+          {
+            m_demand.decrementAndGet();
+          }
+
+          try
+          {
+            m_subscriber.onNext( event );
+          }
+          catch ( RuntimeException e )
+          {
+            // Misbehaving subscriber...
+            cancel();
+          }
+        }
+        if ( m_completed && !m_cancelled && isEmpty() )
+        {
+          cancel();
+          m_subscriber.onComplete();
+        }
+        missed = m_wip.addAndGet( -missed );
+      }
+      while ( missed != 0 );
+    }
+
+    private Pending getPending( String id )
+    {
+      Pending result = m_pending.get( id );
+      if ( result == null )
+      {
+        result = new Pending();
+        m_pending.put( id, result );
+      }
+      return result;
+    }
+
+    private boolean isEmpty()
+    {
+      synchronized ( m_pending )
+      {
+        return m_pending.isEmpty();
+      }
+    }
+
+    private ServiceEvent nextEvent()
+    {
+      synchronized ( m_pending )
+      {
+        Iterator<Map.Entry<String, Pending>> iter = m_pending.entrySet().iterator();
+        if ( !iter.hasNext() )
+        {
+          return null;
+        }
+        Pending pending = iter.next().getValue();
+        ServiceEvent result;
+        if ( pending.m_removed != null )
+        {
+          result = new ServiceEvent( false, pending.m_removed );
+          pending.m_removed = null;
+        }
+        else
+        {
+          result = new ServiceEvent( true, pending.m_added );
+          pending.m_added = null;
+        }
+        if ( pending.m_removed == null && pending.m_added == null )
+        {
+          iter.remove();
+        }
+        return result;
+      }
+    }
+  }
+
+  private final ServiceAnnouncer m_announcer;
+  private final Set<Subscription> m_subscriptions;
+
+  private volatile boolean m_completed;
+
+  /**
+   * Creates a new {@link ServiceEventPublisher} instance.
+   *
+   * @param announcer
+   *          the announcer whose events are to be published.
+   */
+  public ServiceEventPublisher( ServiceAnnouncer announcer )
+  {
+    m_announcer = announcer;
+    m_subscriptions = Collections.newSetFromMap( new ConcurrentHashMap<Subscription, Boolean>() );
+  }
+
+  /**
+   * Completes all current and future subscriptions.
+   */
+  void complete()
+  {
+    m_completed = true;
+    for ( Subscription subscription : m_subscriptions )
+    {
+      subscription.complete();
+    }
+  }
+
+  @Override
+  public void subscribe( Flow.Subscriber<? super ServiceEvent> subscriber )
+  {
+    if ( subscriber == null )
+    {
+      throw new NullPointerException( "Subscriber cannot be null!" );
+    }
+
+    Subscription subscription = new Subscription( subscriber );
+    m_subscriptions.add( subscription );
+    subscriber.onSubscribe( subscription );
+
+    // Starts with the current state...
+    m_announcer.addServiceListener( subscription );
+    if ( subscription.m_cancelled )
+    {
+      // Cancelled in the meantime...
+      m_announcer.removeServiceListener( subscription );
+    }
+    else if ( m_completed )
+    {
+      // Completed in the meantime...
+      subscription.complete();
+    }
+  }
+}
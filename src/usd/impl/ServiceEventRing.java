@@ -0,0 +1,349 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import usd.ServiceInfo;
+import usd.ServiceListener;
+
+
+/**
+ * Sequence-numbered ring buffer of service events, read by any number of
+ * consumers, each at its own pace through a {@link Cursor}.
+ * <p>
+ * Publishing an event is lock-free: a sequence number is claimed, after which
+ * the event is stored in the slot for that sequence. A cursor reads the events
+ * in sequence order, and stops at the first slot that does not (yet) hold the
+ * event it expects. A cursor that has fallen so far behind that its events are
+ * overwritten resynchronizes against the current state instead. To report
+ * the services removed in the meantime, the ring keeps the last removal event
+ * of each service until all cursors have moved past it.
+ * </p>
+ */
+final class ServiceEventRing
+{
+  /**
+   * A single published event.
+   */
+  static final class Event
+  {
+    final long m_sequence;
+    final boolean m_added;
+    final ServiceInfo m_info;
+    final LatencyTrace m_trace;
+
+    Event( long sequence, boolean added, ServiceInfo info, LatencyTrace trace )
+    {
+      m_sequence = sequence;
+      m_added = added;
+      m_info = info;
+      m_trace = trace;
+    }
+  }
+
+  /**
+   * Provides the current state, for consumers to start from or resynchronize
+   * against.
+   */
+  static interface StateProvider
+  {
+    /**
+     * @return the current services, by their identifier.
+     */
+    Map<String, ServiceInfo> getState();
+  }
+
+  /**
+   * The position of a single consumer in the ring.
+   * <p>
+   * A cursor starts with a snapshot of the state at the time it was created,
+   * followed by all events published after that. As the snapshot and the
+   * events can overlap, a cursor remembers the identifiers of the services it
+   * has reported, and skips events that would not change them. A consumer that
+   * throws does not stop the cursor: the event counts as reported, and polling
+   * continues with the next one. This class is not thread-safe, a cursor is to
+   * be read by one thread at a time.
+   * </p>
+   */
+  final class Cursor
+  {
+    private final ServiceListener m_consumer;
+    private final Set<String> m_known;
+
+    private volatile long m_next;
+    private Map<String, ServiceInfo> m_snapshot;
+
+    Cursor( ServiceListener consumer )
+    {
+      m_consumer = consumer;
+      m_known = new HashSet<String>();
+      // Taken after claiming our position, so it covers all earlier events...
+      m_next = m_sequence.get();
+      m_snapshot = m_stateProvider.getState();
+    }
+
+    /**
+     * Stops this cursor, after which it no longer holds on to removal events.
+     */
+    void close()
+    {
+      m_openCursors.remove( this );
+    }
+
+    /**
+     * @return the consumer of this cursor.
+     */
+    ServiceListener getConsumer()
+    {
+      return m_consumer;
+    }
+
+    /**
+     * @return the number of events published but not yet read by this cursor.
+     */
+    long getLag()
+    {
+      return Math.max( 0L, m_sequence.get() - m_next );
+    }
+
+    /**
+     * Reports all events available to this cursor to its consumer.
+     *
+     * @return the number of events reported.
+     */
+    int poll()
+    {
+      int count = 0;
+      if ( m_snapshot != null )
+      {
+        count += report( m_snapshot );
+        m_snapshot = null;
+      }
+
+      for ( ;; )
+      {
+        Event event = m_slots.get( ( int )( m_next & m_mask ) );
+        if ( event == null || event.m_sequence < m_next )
+        {
+          // Not yet published...
+          return count;
+        }
+        if ( event.m_sequence > m_next )
+        {
+          // We've been lapped...
+          count += resync();
+          continue;
+        }
+
+        m_next++;
+        String id = event.m_info.getId();
+        if ( event.m_added )
+        {
+          if ( m_known.add( id ) )
+          {
+            notifyAdded( event.m_info );
+            dispatched( event );
+            count++;
+          }
+        }
+        else if ( m_known.remove( id ) )
+        {
+          notifyRemoved( event.m_info );
+          dispatched( event );
+          count++;
+        }
+      }
+    }
+
+    private void dispatched( Event event )
+    {
+      if ( event.m_trace != null )
+      {
+        event.m_trace.dispatched();
+      }
+    }
+
+    private void notifyAdded( ServiceInfo info )
+    {
+      try
+      {
+        m_consumer.serviceAdded( info );
+      }
+      catch ( RuntimeException e )
+      {
+        // Do not let a failing consumer stall its later events...
+      }
+    }
+
+    private void notifyRemoved( ServiceInfo info )
+    {
+      try
+      {
+        m_consumer.serviceRemoved( info );
+      }
+      catch ( RuntimeException e )
+      {
+        // Do not let a failing consumer stall its later events...
+      }
+    }
+
+    /**
+     * Reports the difference between what this cursor reported so far and
+     * the current state, and continues with the events published from now on.
+     */
+    private int resync()
+    {
+      long next = m_sequence.get();
+      int count = report( m_stateProvider.getState() );
+      // Only moved once reported, so the removal events we need are kept...
+      m_next = next;
+      return count;
+    }
+
+    /**
+     * Reports the difference between what this cursor reported so far and the
+     * given state.
+     */
+    private int report( Map<String, ServiceInfo> state )
+    {
+      int count = 0;
+      Iterator<String> iter = m_known.iterator();
+      while ( iter.hasNext() )
+      {
+        String id = iter.next();
+        Event removal = m_removals.get( id );
+        // Without its removal event, it is yet to be published and we'll
+        // report it once it is...
+        if ( !state.containsKey( id ) && removal != null )
+        {
+          iter.remove();
+          notifyRemoved( removal.m_info );
+          count++;
+        }
+      }
+      for ( Map.Entry<String, ServiceInfo> entry : state.entrySet() )
+      {
+        if ( m_known.add( entry.getKey() ) )
+        {
+          notifyAdded( entry.getValue() );
+          count++;
+        }
+      }
+      return count;
+    }
+  }
+
+  private final AtomicReferenceArray<Event> m_slots;
+  private final int m_mask;
+  private final AtomicLong m_sequence;
+  private final StateProvider m_stateProvider;
+  private final Set<Cursor> m_openCursors;
+  private final ConcurrentMap<String, Event> m_removals;
+  private volatile int m_pruneThreshold;
+
+  /**
+   * Creates a new {@link ServiceEventRing} instance.
+   *
+   * @param capacity
+   *          the number of events kept, should be a power of two;
+   * @param stateProvider
+   *          provides the current state for new and lapped cursors.
+   */
+  ServiceEventRing( int capacity, StateProvider stateProvider )
+  {
+    if ( Integer.bitCount( capacity ) != 1 )
+    {
+      throw new IllegalArgumentException( "Capacity should be a power of two!" );
+    }
+    m_slots = new AtomicReferenceArray<Event>( capacity );
+    m_mask = capacity - 1;
+    m_sequence = new AtomicLong();
+    m_stateProvider = stateProvider;
+    m_openCursors = Collections.newSetFromMap( new ConcurrentHashMap<Cursor, Boolean>() );
+    m_removals = new ConcurrentHashMap<String, Event>();
+    m_pruneThreshold = capacity;
+  }
+
+  /**
+   * Creates a new cursor that starts with a snapshot of the current state.
+   */
+  Cursor createCursor( ServiceListener consumer )
+  {
+    Cursor cursor = new Cursor( consumer );
+    m_openCursors.add( cursor );
+    return cursor;
+  }
+
+  /**
+   * Publishes an event. Should be called <em>after</em> the state provided by
+   * the state provider reflects it.
+   */
+  void publish( boolean added, ServiceInfo info )
+  {
+    publish( added, info, null );
+  }
+
+  /**
+   * Publishes an event, tracing its latency until it is reported to each
+   * consumer.
+   * 
+   * @param trace
+   *          the latency trace of the event, can be <code>null</code>.
+   */
+  void publish( boolean added, ServiceInfo info, LatencyTrace trace )
+  {
+    long sequence = m_sequence.getAndIncrement();
+    Event event = new Event( sequence, added, info, trace );
+    if ( !added )
+    {
+      m_removals.put( info.getId(), event );
+      if ( m_removals.size() > m_pruneThreshold )
+      {
+        pruneRemovals();
+      }
+    }
+    m_slots.set( ( int )( sequence & m_mask ), event );
+  }
+
+  /**
+   * @return the number of removal events kept for lapped cursors.
+   */
+  int getRemovalCount()
+  {
+    return m_removals.size();
+  }
+
+  /**
+   * Forgets the removal events all open cursors have moved past.
+   */
+  private void pruneRemovals()
+  {
+    long oldest = m_sequence.get();
+    for ( Cursor cursor : m_openCursors )
+    {
+      oldest = Math.min( oldest, cursor.m_next );
+    }
+
+    Iterator<Event> iter = m_removals.values().iterator();
+    while ( iter.hasNext() )
+    {
+      if ( iter.next().m_sequence < oldest )
+      {
+        iter.remove();
+      }
+    }
+    // Avoids pruning on each removal while a slow cursor holds on to them...
+    m_pruneThreshold = Math.max( m_mask + 1, 2 * m_removals.size() );
+  }
+}
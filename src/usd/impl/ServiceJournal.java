@@ -0,0 +1,393 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import static usd.impl.CborCodec.MT_ARRAY;
+import static usd.impl.CborCodec.MT_BYTE_STRING;
+import static usd.impl.CborCodec.MT_UNSIGNED_INT;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import usd.ServiceInfo;
+import usd.impl.MulticastServiceAnnouncer.ServiceLocality;
+
+
+/**
+ * Append-only journal of service events, kept in a directory of fixed-size,
+ * memory-mapped, segment files.
+ * <p>
+ * Appending an event merely queues it; queued events are written and forced
+ * to disk in batches by {@link #flush()}, which is to be called periodically
+ * from another thread than the one appending events. Each record consists of
+ * its length followed by a CBOR array of its timestamp, event type, locality,
+ * source and the CBOR encoded announcement of the service. The length is
+ * written last, so a concurrent {@link Reader} never sees partial records.
+ * </p>
+ */
+public final class ServiceJournal
+{
+  /**
+   * The type of a journaled event.
+   */
+  public static enum EventType
+  {
+    ADDED, REMOVED, EXPIRED;
+  }
+
+  /**
+   * A single journaled event.
+   */
+  public static final class Entry
+  {
+    private final long m_timestamp;
+    private final EventType m_type;
+    private final boolean m_local;
+    private final String m_source;
+    private final ServiceInfo m_info;
+
+    Entry( long timestamp, EventType type, boolean local, String source, ServiceInfo info )
+    {
+      m_timestamp = timestamp;
+      m_type = type;
+      m_local = local;
+      m_source = source;
+      m_info = info;
+    }
+
+    /**
+     * @return the service this event is about, never <code>null</code>.
+     */
+    public ServiceInfo getServiceInfo()
+    {
+      return m_info;
+    }
+
+    /**
+     * @return the address of the peer that caused this event, or
+     *         <code>null</code> in case it was caused locally.
+     */
+    public String getSource()
+    {
+      return m_source;
+    }
+
+    /**
+     * @return the time this event occurred, in milliseconds since the epoch.
+     */
+    public long getTimestamp()
+    {
+      return m_timestamp;
+    }
+
+    public EventType getType()
+    {
+      return m_type;
+    }
+
+    /**
+     * @return <code>true</code> if this event is about a local service,
+     *         <code>false</code> if it is about a remote service.
+     */
+    public boolean isLocal()
+    {
+      return m_local;
+    }
+
+    @Override
+    public String toString()
+    {
+      return m_timestamp + " " + m_type + " " + ( m_local ? "local" : m_source ) + " " + m_info.getId();
+    }
+  }
+
+  /**
+   * Reads a journal, either once to replay it, or repeatedly to tail it.
+   */
+  public static final class Reader
+  {
+    private final File m_directory;
+    private String m_segment;
+    private int m_position;
+
+    /**
+     * Creates a new {@link Reader} instance, starting at the oldest event.
+     *
+     * @param directory
+     *          the directory of the journal to read.
+     */
+    public Reader( File directory )
+    {
+      m_directory = directory;
+    }
+
+    /**
+     * @return the events appended since the previous call, oldest first,
+     *         never <code>null</code>.
+     */
+    public List<Entry> poll() throws IOException
+    {
+      List<Entry> result = new ArrayList<Entry>();
+
+      for ( File segment : listSegments( m_directory ) )
+      {
+        String name = segment.getName();
+        if ( m_segment != null && name.compareTo( m_segment ) < 0 )
+        {
+          // Already read...
+          continue;
+        }
+        if ( !name.equals( m_segment ) )
+        {
+          m_segment = name;
+          m_position = 0;
+        }
+        readSegment( segment, result );
+      }
+      return result;
+    }
+
+    private void readSegment( File segment, List<Entry> result ) throws IOException
+    {
+      RandomAccessFile raf = new RandomAccessFile( segment, "r" );
+      try
+      {
+        MappedByteBuffer buf = raf.getChannel().map( MapMode.READ_ONLY, 0, raf.length() );
+        while ( m_position + 4 <= buf.limit() )
+        {
+          int length = buf.getInt( m_position );
+          if ( length <= 0 || m_position + 4 + length > buf.limit() )
+          {
+            // End of written records...
+            return;
+          }
+          byte[] record = new byte[length];
+          buf.position( m_position + 4 );
+          buf.get( record );
+          m_position += 4 + length;
+
+          result.add( decode( record ) );
+        }
+      }
+      finally
+      {
+        raf.close();
+      }
+    }
+  }
+
+  /**
+   * A queued, not yet written, event.
+   */
+  static final class Event
+  {
+    final long m_timestamp;
+    final EventType m_type;
+    final ServiceLocality m_locality;
+    final InetAddress m_source;
+    final ServiceInfo m_info;
+
+    Event( long timestamp, EventType type, ServiceLocality locality, InetAddress source, ServiceInfo info )
+    {
+      m_timestamp = timestamp;
+      m_type = type;
+      m_locality = locality;
+      m_source = source;
+      m_info = info;
+    }
+  }
+
+  private static final String SEGMENT_PREFIX = "journal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+
+  private final File m_directory;
+  private final int m_segmentSize;
+  private final int m_maxSegments;
+  private final Queue<Event> m_queue;
+
+  private long m_sequence;
+  private RandomAccessFile m_file;
+  private MappedByteBuffer m_buffer;
+
+  /**
+   * Creates a new {@link ServiceJournal} instance, which starts a new segment
+   * after any existing segments.
+   *
+   * @param directory
+   *          the directory to keep the segments in;
+   * @param segmentSize
+   *          the size of a single segment, in bytes;
+   * @param maxSegments
+   *          the maximum number of segments to keep, 0 to keep all segments.
+   */
+  ServiceJournal( File directory, int segmentSize, int maxSegments ) throws IOException
+  {
+    if ( !directory.isDirectory() && !directory.mkdirs() )
+    {
+      throw new IOException( "Failed to create journal directory " + directory + "!" );
+    }
+    m_directory = directory;
+    m_segmentSize = segmentSize;
+    m_maxSegments = maxSegments;
+    m_queue = new ConcurrentLinkedQueue<Event>();
+
+    File[] segments = listSegments( directory );
+    if ( segments.length > 0 )
+    {
+      String name = segments[segments.length - 1].getName();
+      m_sequence = Long.parseLong( name.substring( SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length() ) );
+    }
+  }
+
+  static Entry decode( byte[] record ) throws IOException
+  {
+    CborCodec.CborInputStream is = new CborCodec.CborInputStream( record );
+    if ( CborCodec.decodeInt( is, MT_ARRAY ) != 5 )
+    {
+      throw new IOException( "Invalid journal record!" );
+    }
+    long timestamp = CborCodec.decodeInt( is, MT_UNSIGNED_INT );
+    int type = ( int )CborCodec.decodeInt( is, MT_UNSIGNED_INT );
+    boolean local = CborCodec.decodeInt( is, MT_UNSIGNED_INT ) != 0;
+    String source = CborCodec.decodeString( is );
+    byte[] message = CborCodec.decodeBytes( is );
+    if ( type >= EventType.values().length )
+    {
+      throw new IOException( "Invalid event type!" );
+    }
+
+    ServiceInfo info = CborCodec.decode( message ).getServiceInfo();
+    return new Entry( timestamp, EventType.values()[type], local, local ? null : source, info );
+  }
+
+  static byte[] encode( Event event ) throws IOException
+  {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream( 256 );
+    CborCodec.encodeInt( baos, MT_ARRAY, 5 );
+    CborCodec.encodeInt( baos, MT_UNSIGNED_INT, event.m_timestamp );
+    CborCodec.encodeInt( baos, MT_UNSIGNED_INT, event.m_type.ordinal() );
+    CborCodec.encodeInt( baos, MT_UNSIGNED_INT, event.m_locality.isLocal() ? 1 : 0 );
+    CborCodec.encodeString( baos, ( event.m_source == null ) ? "" : event.m_source.getHostAddress() );
+    byte[] message = CborCodec.encode( MulticastMessage.createServiceAddedMessage( event.m_info ) );
+    CborCodec.encodeInt( baos, MT_BYTE_STRING, message.length );
+    baos.write( message );
+    return baos.toByteArray();
+  }
+
+  private static File[] listSegments( File directory )
+  {
+    File[] result = directory.listFiles( new FileFilter()
+    {
+      @Override
+      public boolean accept( File file )
+      {
+        String name = file.getName();
+        return file.isFile() && name.startsWith( SEGMENT_PREFIX ) && name.endsWith( SEGMENT_SUFFIX );
+      }
+    } );
+    if ( result == null )
+    {
+      return new File[0];
+    }
+    // Sequence numbers are zero-padded, so this sorts them by age...
+    Arrays.sort( result );
+    return result;
+  }
+
+  /**
+   * Queues an event to be written upon the next {@link #flush()}. Cheap, and
+   * safe to call from any thread.
+   */
+  void append( EventType type, ServiceLocality locality, InetAddress source, ServiceInfo info )
+  {
+    m_queue.offer( new Event( System.currentTimeMillis(), type, locality, source, info ) );
+  }
+
+  /**
+   * Flushes all queued events and closes the current segment.
+   */
+  synchronized void close() throws IOException
+  {
+    flush();
+    if ( m_file != null )
+    {
+      m_file.close();
+      m_file = null;
+      m_buffer = null;
+    }
+  }
+
+  /**
+   * Writes all queued events, and forces them to disk at once.
+   */
+  synchronized void flush() throws IOException
+  {
+    boolean written = false;
+
+    Event event;
+    while ( ( event = m_queue.poll() ) != null )
+    {
+      byte[] record = encode( event );
+      if ( record.length + 8 > m_segmentSize )
+      {
+        // Never fits, skip it...
+        continue;
+      }
+      if ( m_buffer == null || m_buffer.remaining() < record.length + 8 )
+      {
+        if ( written )
+        {
+          m_buffer.force();
+        }
+        nextSegment();
+      }
+
+      int position = m_buffer.position();
+      m_buffer.position( position + 4 );
+      m_buffer.put( record );
+      // Publish the record by writing its length last...
+      m_buffer.putInt( position, record.length );
+      written = true;
+    }
+
+    if ( written )
+    {
+      m_buffer.force();
+    }
+  }
+
+  private void nextSegment() throws IOException
+  {
+    if ( m_file != null )
+    {
+      m_file.close();
+    }
+
+    String name = String.format( "%s%020d%s", SEGMENT_PREFIX, Long.valueOf( ++m_sequence ), SEGMENT_SUFFIX );
+    m_file = new RandomAccessFile( new File( m_directory, name ), "rw" );
+    m_file.setLength( m_segmentSize );
+    m_buffer = m_file.getChannel().map( MapMode.READ_WRITE, 0, m_segmentSize );
+
+    if ( m_maxSegments > 0 )
+    {
+      File[] segments = listSegments( m_directory );
+      for ( int i = 0; i < segments.length - m_maxSegments; i++ )
+      {
+        segments[i].delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,321 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import usd.ServiceAnnouncer;
+import usd.ServiceInfo;
+import usd.ServiceListener;
+
+
+/**
+ * Resolves service names to the endpoints of the services known by a
+ * {@link ServiceAnnouncer}.
+ * <p>
+ * The endpoints of each service name are kept in a precomputed array, which
+ * is replaced as a whole whenever a service with that name is added or
+ * removed. Selecting an endpoint therefore takes no locks and allocates
+ * nothing. Endpoints can be selected round-robin, at random, or at random
+ * weighted by the integer value of the weight property of their service.
+ * Services without a valid weight have a weight of 1, services with a weight
+ * of 0 are never selected by weight.
+ * </p>
+ * <p>
+ * The resolver learns about the known services as any other service listener
+ * does, so it might take a moment for it to catch up after being created.
+ * </p>
+ */
+public final class ServiceResolver
+{
+  /**
+   * The live endpoints of a single service name.
+   */
+  static final class Endpoints
+  {
+    static final Endpoints EMPTY = new Endpoints( new ServiceInfo[0], new URI[0], new int[0] );
+
+    final ServiceInfo[] m_services;
+    final URI[] m_uris;
+    /** the cumulative weights of the endpoints. */
+    final int[] m_weights;
+
+    Endpoints( ServiceInfo[] services, URI[] uris, int[] weights )
+    {
+      m_services = services;
+      m_uris = uris;
+      m_weights = weights;
+    }
+
+    int getTotalWeight()
+    {
+      return ( m_weights.length == 0 ) ? 0 : m_weights[m_weights.length - 1];
+    }
+  }
+
+  /**
+   * Keeps the endpoints of a single service name.
+   */
+  static final class Entry
+  {
+    final AtomicInteger m_next = new AtomicInteger();
+    volatile Endpoints m_endpoints = Endpoints.EMPTY;
+  }
+
+  /**
+   * The default name of the property holding the weight of a service.
+   */
+  public static final String DEFAULT_WEIGHT_PROPERTY = "weight";
+
+  private final ServiceAnnouncer m_announcer;
+  private final String m_weightProperty;
+  private final ConcurrentMap<String, Entry> m_entries;
+  private final ServiceListener m_listener;
+
+  /**
+   * Creates a new {@link ServiceResolver} instance, using the
+   * {@link #DEFAULT_WEIGHT_PROPERTY default weight property}.
+   */
+  public ServiceResolver( ServiceAnnouncer announcer )
+  {
+    this( announcer, DEFAULT_WEIGHT_PROPERTY );
+  }
+
+  /**
+   * Creates a new {@link ServiceResolver} instance.
+   *
+   * @param weightProperty
+   *          the name of the property holding the weight of a service.
+   */
+  public ServiceResolver( ServiceAnnouncer announcer, String weightProperty )
+  {
+    if ( announcer == null )
+    {
+      throw new IllegalArgumentException( "Announcer cannot be null!" );
+    }
+    if ( weightProperty == null )
+    {
+      throw new IllegalArgumentException( "Weight property cannot be null!" );
+    }
+    m_announcer = announcer;
+    m_weightProperty = weightProperty;
+    m_entries = new ConcurrentHashMap<String, Entry>();
+    m_listener = new ServiceListener()
+    {
+      @Override
+      public void serviceAdded( ServiceInfo info )
+      {
+        added( info );
+      }
+
+      @Override
+      public void serviceRemoved( ServiceInfo info )
+      {
+        removed( info );
+      }
+    };
+
+    announcer.addServiceListener( m_listener );
+  }
+
+  /**
+   * Stops tracking the services of the announcer.
+   */
+  public void close()
+  {
+    m_announcer.removeServiceListener( m_listener );
+  }
+
+  /**
+   * @return the number of live endpoints of the given service name.
+   */
+  public int getEndpointCount( String name )
+  {
+    return lookup( name ).m_uris.length;
+  }
+
+  /**
+   * @return the live endpoints of the given service name, in no particular
+   *         order, never <code>null</code>.
+   */
+  public URI[] getEndpoints( String name )
+  {
+    return lookup( name ).m_uris.clone();
+  }
+
+  /**
+   * Selects one of the live endpoints of the given service name at random.
+   *
+   * @return the selected endpoint, or <code>null</code> if there is none.
+   */
+  public URI selectRandom( String name )
+  {
+    URI[] uris = lookup( name ).m_uris;
+    if ( uris.length == 0 )
+    {
+      return null;
+    }
+    return uris[ThreadLocalRandom.current().nextInt( uris.length )];
+  }
+
+  /**
+   * Selects the live endpoints of the given service name in turn.
+   *
+   * @return the selected endpoint, or <code>null</code> if there is none.
+   */
+  public URI selectRoundRobin( String name )
+  {
+    Entry entry = m_entries.get( name );
+    if ( entry == null )
+    {
+      return null;
+    }
+    URI[] uris = entry.m_endpoints.m_uris;
+    if ( uris.length == 0 )
+    {
+      return null;
+    }
+    return uris[( entry.m_next.getAndIncrement() & Integer.MAX_VALUE ) % uris.length];
+  }
+
+  /**
+   * Selects one of the live endpoints of the given service name at random,
+   * with a probability proportional to its weight.
+   *
+   * @return the selected endpoint, or <code>null</code> if there is none with
+   *         a positive weight.
+   */
+  public URI selectWeighted( String name )
+  {
+    Endpoints endpoints = lookup( name );
+    int total = endpoints.getTotalWeight();
+    if ( total <= 0 )
+    {
+      return null;
+    }
+    int value = ThreadLocalRandom.current().nextInt( total );
+    // Find the first endpoint whose cumulative weight exceeds the value...
+    int index = Arrays.binarySearch( endpoints.m_weights, value + 1 );
+    if ( index < 0 )
+    {
+      index = -index - 1;
+    }
+    else
+    {
+      // Skip endpoints without weight...
+      while ( index > 0 && endpoints.m_weights[index - 1] == value + 1 )
+      {
+        index--;
+      }
+    }
+    return endpoints.m_uris[index];
+  }
+
+  /**
+   * @return the weight of the given service, &gt;= 0.
+   */
+  final int getWeight( ServiceInfo info )
+  {
+    String value = info.getProperties().get( m_weightProperty );
+    if ( value == null )
+    {
+      return 1;
+    }
+    try
+    {
+      return Math.max( 0, Integer.parseInt( value.trim() ) );
+    }
+    catch ( NumberFormatException e )
+    {
+      return 1;
+    }
+  }
+
+  private void added( ServiceInfo info )
+  {
+    Entry entry = m_entries.get( info.getName() );
+    if ( entry == null )
+    {
+      Entry newEntry = new Entry();
+      entry = m_entries.putIfAbsent( info.getName(), newEntry );
+      if ( entry == null )
+      {
+        entry = newEntry;
+      }
+    }
+
+    synchronized ( entry )
+    {
+      ServiceInfo[] services = entry.m_endpoints.m_services;
+      int count = services.length;
+      for ( int i = 0; i < count; i++ )
+      {
+        if ( services[i].getId().equals( info.getId() ) )
+        {
+          // Replaced by a newer version...
+          services = services.clone();
+          services[i] = info;
+          entry.m_endpoints = createEndpoints( services );
+          return;
+        }
+      }
+
+      services = Arrays.copyOf( services, count + 1 );
+      services[count] = info;
+      entry.m_endpoints = createEndpoints( services );
+    }
+  }
+
+  private Endpoints createEndpoints( ServiceInfo[] services )
+  {
+    URI[] uris = new URI[services.length];
+    int[] weights = new int[services.length];
+    int total = 0;
+    for ( int i = 0; i < services.length; i++ )
+    {
+      uris[i] = services[i].getURI();
+      // Saturate rather than overflow...
+      total = ( int )Math.min( Integer.MAX_VALUE, ( long )total + getWeight( services[i] ) );
+      weights[i] = total;
+    }
+    return new Endpoints( services, uris, weights );
+  }
+
+  private Endpoints lookup( String name )
+  {
+    Entry entry = m_entries.get( name );
+    return ( entry == null ) ? Endpoints.EMPTY : entry.m_endpoints;
+  }
+
+  private void removed( ServiceInfo info )
+  {
+    Entry entry = m_entries.get( info.getName() );
+    if ( entry == null )
+    {
+      return;
+    }
+
+    synchronized ( entry )
+    {
+      ServiceInfo[] services = entry.m_endpoints.m_services;
+      for ( int i = 0; i < services.length; i++ )
+      {
+        if ( services[i].getId().equals( info.getId() ) )
+        {
+          ServiceInfo[] result = new ServiceInfo[services.length - 1];
+          System.arraycopy( services, 0, result, 0, i );
+          System.arraycopy( services, i + 1, result, i, result.length - i );
+          entry.m_endpoints = ( result.length == 0 ) ? Endpoints.EMPTY : createEndpoints( result );
+          return;
+        }
+      }
+    }
+  }
+}
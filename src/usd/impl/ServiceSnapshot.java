@@ -0,0 +1,220 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import usd.ServiceInfo;
+import usd.impl.MulticastServiceAnnouncer.ServiceInfoHolder;
+import usd.impl.MulticastServiceAnnouncer.ServiceLocality;
+
+
+/**
+ * Persists a set of services to a snapshot file, allowing an announcer to
+ * know about its peers right after a restart. Snapshots are written through a
+ * memory mapping, and read sequentially.
+ * <p>
+ * The snapshot consists of a small header, followed by the services, each as
+ * its length-prefixed CBOR encoded announcement:
+ * </p>
+ *
+ * <pre>
+ * int magic, int version, long timestamp, int count, long crc32, records...
+ * </pre>
+ * <p>
+ * A snapshot is written to a temporary file that replaces the actual snapshot
+ * once completely written, so a crash never leaves a partial snapshot behind.
+ * </p>
+ */
+final class ServiceSnapshot
+{
+  private static final int MAGIC = 0x55534453; // "USDS"
+  private static final int VERSION = 1;
+  private static final int HEADER_SIZE = 28;
+
+  private ServiceSnapshot()
+  {
+    // Not used.
+  }
+
+  /**
+   * Reads the services from the given snapshot file.
+   *
+   * @param file
+   *          the snapshot file to read.
+   * @return the remote services from the snapshot, along with the digest of
+   *         their announcement, never <code>null</code>. In case the snapshot
+   *         does not exist or is invalid, an empty list is returned.
+   */
+  static List<ServiceInfoHolder> read( File file ) throws IOException
+  {
+    List<ServiceInfoHolder> result = new ArrayList<ServiceInfoHolder>();
+    if ( !file.isFile() || file.length() < HEADER_SIZE )
+    {
+      return result;
+    }
+
+    // Read one record at a time, instead of copying the whole file to the
+    // heap before decoding it...
+    DataInputStream dis = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+    try
+    {
+      if ( dis.readInt() != MAGIC || dis.readInt() != VERSION )
+      {
+        return result;
+      }
+      dis.readLong(); // timestamp
+      int count = dis.readInt();
+      long crc = dis.readLong();
+
+      CRC32 checksum = new CRC32();
+      ByteBuffer prefix = ByteBuffer.allocate( 4 );
+      byte[] record = new byte[1024];
+      long remaining = file.length() - HEADER_SIZE;
+      for ( int i = 0; i < count && remaining >= 4; i++ )
+      {
+        dis.readFully( prefix.array() );
+        checksum.update( prefix.array() );
+        remaining -= 4;
+
+        int length = prefix.getInt( 0 );
+        if ( length < 0 || length > remaining )
+        {
+          break;
+        }
+        if ( length > record.length )
+        {
+          record = new byte[Math.max( length, 2 * record.length )];
+        }
+        dis.readFully( record, 0, length );
+        checksum.update( record, 0, length );
+        remaining -= length;
+
+        try
+        {
+          MulticastMessage msg = CborCodec.decode( record, 0, length );
+          if ( msg.isServiceAdded() )
+          {
+            long digest = CborCodec.digest( record, 0, length );
+            result.add( new ServiceInfoHolder( ServiceLocality.REMOTE, msg.getServiceInfo(), digest ) );
+          }
+        }
+        catch ( IOException e )
+        {
+          // Skip this record...
+        }
+        catch ( IllegalArgumentException e )
+        {
+          // Skip this record...
+        }
+      }
+
+      // The checksum covers anything following the records as well...
+      int len;
+      while ( ( len = dis.read( record ) ) > 0 )
+      {
+        checksum.update( record, 0, len );
+      }
+      if ( checksum.getValue() != crc )
+      {
+        return new ArrayList<ServiceInfoHolder>();
+      }
+      return result;
+    }
+    catch ( EOFException e )
+    {
+      // Truncated snapshot...
+      return new ArrayList<ServiceInfoHolder>();
+    }
+    finally
+    {
+      dis.close();
+    }
+  }
+
+  /**
+   * Writes the given services to the given snapshot file.
+   *
+   * @param file
+   *          the snapshot file to write;
+   * @param services
+   *          the services to write.
+   */
+  static void write( File file, Collection<ServiceInfo> services ) throws IOException
+  {
+    List<byte[]> records = new ArrayList<byte[]>( services.size() );
+    long size = HEADER_SIZE;
+    for ( ServiceInfo info : services )
+    {
+      byte[] record = CborCodec.encode( MulticastMessage.createServiceAddedMessage( info ) );
+      records.add( record );
+      size += 4 + record.length;
+    }
+
+    File tempFile = new File( file.getPath() + ".tmp" );
+    RandomAccessFile raf = new RandomAccessFile( tempFile, "rw" );
+    try
+    {
+      raf.setLength( size );
+
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer buf = channel.map( MapMode.READ_WRITE, 0, size );
+      buf.position( HEADER_SIZE );
+      for ( byte[] record : records )
+      {
+        buf.putInt( record.length );
+        buf.put( record );
+      }
+
+      // Checksum all records, including their length prefixes...
+      CRC32 checksum = new CRC32();
+      ByteBuffer body = buf.duplicate();
+      body.position( HEADER_SIZE );
+      byte[] chunk = new byte[8192];
+      while ( body.hasRemaining() )
+      {
+        int len = Math.min( chunk.length, body.remaining() );
+        body.get( chunk, 0, len );
+        checksum.update( chunk, 0, len );
+      }
+
+      buf.position( 0 );
+      buf.putInt( MAGIC );
+      buf.putInt( VERSION );
+      buf.putLong( System.currentTimeMillis() );
+      buf.putInt( records.size() );
+      buf.putLong( checksum.getValue() );
+      buf.force();
+    }
+    finally
+    {
+      raf.close();
+    }
+
+    if ( !tempFile.renameTo( file ) )
+    {
+      // Some platforms do not allow renaming over an existing file...
+      file.delete();
+      if ( !tempFile.renameTo( file ) )
+      {
+        throw new IOException( "Failed to replace snapshot " + file + "!" );
+      }
+    }
+  }
+}
@@ -0,0 +1,215 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
+
+import usd.ServiceInfo;
+
+
+/**
+ * Keeps track of the callers waiting for a service to become available.
+ * <p>
+ * Waiters for a service name are kept per name, so an added service only
+ * wakes the waiters for its own name; waiters with an arbitrary filter are
+ * tested against every added service. A waiter is removed as soon as it is
+ * completed, whether by a matching service, a time out or a cancellation.
+ * </p>
+ */
+final class ServiceWaiters
+{
+  /**
+   * A single waiter, completed with the first matching service.
+   */
+  final class Waiter extends CompletableFuture<ServiceInfo>
+  {
+    private final String m_name;
+    private final Predicate<ServiceInfo> m_filter;
+
+    Waiter( String name, Predicate<ServiceInfo> filter )
+    {
+      m_name = name;
+      m_filter = filter;
+    }
+
+    boolean matches( ServiceInfo info )
+    {
+      return ( m_name != null ) ? m_name.equals( info.getName() ) : m_filter.test( info );
+    }
+  }
+
+  private final Map<String, List<Waiter>> m_byName;
+  private final List<Waiter> m_filtered;
+
+  private volatile int m_count;
+
+  ServiceWaiters()
+  {
+    m_byName = new HashMap<String, List<Waiter>>();
+    m_filtered = new ArrayList<Waiter>();
+  }
+
+  /**
+   * Completes all waiters exceptionally, for example, as the announcer stops.
+   */
+  void cancelAll( Throwable cause )
+  {
+    List<Waiter> waiters = new ArrayList<Waiter>();
+    synchronized ( this )
+    {
+      for ( List<Waiter> list : m_byName.values() )
+      {
+        waiters.addAll( list );
+      }
+      waiters.addAll( m_filtered );
+    }
+    // Completing removes them...
+    for ( Waiter waiter : waiters )
+    {
+      waiter.completeExceptionally( cause );
+    }
+  }
+
+  /**
+   * @return the number of pending waiters.
+   */
+  int getCount()
+  {
+    return m_count;
+  }
+
+  /**
+   * Registers a new waiter for the first service with the given name.
+   */
+  Waiter register( String name )
+  {
+    if ( name == null )
+    {
+      throw new IllegalArgumentException( "Name cannot be null!" );
+    }
+    return register( new Waiter( name, null ) );
+  }
+
+  /**
+   * Registers a new waiter for the first service accepted by the given filter.
+   */
+  Waiter register( Predicate<ServiceInfo> filter )
+  {
+    if ( filter == null )
+    {
+      throw new IllegalArgumentException( "Filter cannot be null!" );
+    }
+    return register( new Waiter( null, filter ) );
+  }
+
+  /**
+   * Completes all waiters matching the given, just added, service.
+   */
+  void serviceAdded( ServiceInfo info )
+  {
+    if ( m_count == 0 )
+    {
+      // Nobody is waiting...
+      return;
+    }
+
+    List<Waiter> matched = new ArrayList<Waiter>();
+    List<Waiter> failed = new ArrayList<Waiter>();
+    List<RuntimeException> failures = new ArrayList<RuntimeException>();
+    synchronized ( this )
+    {
+      List<Waiter> list = m_byName.get( info.getName() );
+      if ( list != null )
+      {
+        matched.addAll( list );
+      }
+      for ( Waiter waiter : m_filtered )
+      {
+        try
+        {
+          if ( waiter.matches( info ) )
+          {
+            matched.add( waiter );
+          }
+        }
+        catch ( RuntimeException e )
+        {
+          failed.add( waiter );
+          failures.add( e );
+        }
+      }
+    }
+    // Completed outside the lock, as it runs the dependent actions...
+    for ( Waiter waiter : matched )
+    {
+      waiter.complete( info );
+    }
+    for ( int i = 0; i < failed.size(); i++ )
+    {
+      failed.get( i ).completeExceptionally( failures.get( i ) );
+    }
+  }
+
+  private Waiter register( final Waiter waiter )
+  {
+    synchronized ( this )
+    {
+      if ( waiter.m_name != null )
+      {
+        List<Waiter> list = m_byName.get( waiter.m_name );
+        if ( list == null )
+        {
+          list = new ArrayList<Waiter>( 1 );
+          m_byName.put( waiter.m_name, list );
+        }
+        list.add( waiter );
+      }
+      else
+      {
+        m_filtered.add( waiter );
+      }
+      m_count++;
+    }
+
+    waiter.whenComplete( new BiConsumer<ServiceInfo, Throwable>()
+    {
+      @Override
+      public void accept( ServiceInfo info, Throwable failure )
+      {
+        unregister( waiter );
+      }
+    } );
+    return waiter;
+  }
+
+  private synchronized void unregister( Waiter waiter )
+  {
+    List<Waiter> list = ( waiter.m_name != null ) ? m_byName.get( waiter.m_name ) : m_filtered;
+    if ( list == null )
+    {
+      return;
+    }
+    for ( Iterator<Waiter> iter = list.iterator(); iter.hasNext(); )
+    {
+      if ( iter.next() == waiter )
+      {
+        iter.remove();
+        m_count--;
+        break;
+      }
+    }
+    if ( list.isEmpty() && waiter.m_name != null )
+    {
+      m_byName.remove( waiter.m_name );
+    }
+  }
+}
@@ -0,0 +1,191 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * Limits the rate at which packets are accepted from individual sources using
+ * a token bucket per source. Packets exceeding the rate of their source are
+ * dropped. Sources that keep exceeding their rate, or that send too many
+ * invalid packets in a row, are quarantined for a while, meaning that all of
+ * their packets are dropped without looking at them.
+ * <p>
+ * The number of tracked sources is bounded, the least recently seen sources
+ * are forgotten first.
+ * </p>
+ * <p>
+ * This class is not thread-safe, it is intended to be used by a single receive
+ * thread only.
+ * </p>
+ */
+final class SourceRateLimiter
+{
+  /**
+   * The state kept for a single source.
+   */
+  static final class Source
+  {
+    /** In thousandths of a token, to avoid fractional arithmetic. */
+    long m_tokens;
+    long m_lastRefill;
+    long m_quarantinedUntil;
+    int m_invalidCount;
+    /** The number of packets dropped since the bucket was last full. */
+    int m_excessCount;
+  }
+
+  private static final int MAX_SOURCES = 1024;
+
+  private final Map<Object, Source> m_sources;
+  private final int m_rate;
+  private final long m_capacity;
+  private final int m_maxInvalid;
+  private final long m_quarantineTime;
+
+  /**
+   * Creates a new {@link SourceRateLimiter} instance.
+   *
+   * @param rate
+   *          the number of packets per second accepted from a single source,
+   *          0 for no limit;
+   * @param burst
+   *          the number of packets a single source can send in a burst;
+   * @param maxInvalid
+   *          the number of invalid packets in a row, or the number of packets
+   *          exceeding the rate without the bucket of the source being refilled
+   *          in between, after which a source is quarantined, 0 to never
+   *          quarantine;
+   * @param quarantineTime
+   *          the time, in milliseconds, a source remains quarantined.
+   */
+  SourceRateLimiter( int rate, int burst, int maxInvalid, long quarantineTime )
+  {
+    // Access ordered, so the least recently seen sources come first...
+    m_sources = new LinkedHashMap<Object, Source>( 16, 0.75f, true )
+    {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry( Map.Entry<Object, Source> eldest )
+      {
+        return size() > MAX_SOURCES;
+      }
+    };
+    m_rate = rate;
+    m_capacity = 1000L * Math.max( 1, burst );
+    m_maxInvalid = maxInvalid;
+    m_quarantineTime = quarantineTime;
+  }
+
+  /**
+   * Decides whether a packet from the given source is to be processed.
+   *
+   * @param source
+   *          the source of the packet;
+   * @param now
+   *          the current time, in milliseconds.
+   * @return <code>true</code> if the packet is to be processed,
+   *         <code>false</code> if it is to be dropped.
+   */
+  boolean accept( Object source, long now )
+  {
+    Source state = getSource( source, now );
+    if ( now < state.m_quarantinedUntil )
+    {
+      return false;
+    }
+
+    if ( m_rate > 0 )
+    {
+      // Each millisecond adds rate/1000 tokens...
+      long elapsed = Math.max( 0L, now - state.m_lastRefill );
+      state.m_tokens = Math.min( m_capacity, state.m_tokens + elapsed * m_rate );
+      state.m_lastRefill = now;
+      if ( state.m_tokens == m_capacity )
+      {
+        // Source is back within its rate...
+        state.m_excessCount = 0;
+      }
+
+      if ( state.m_tokens < 1000L )
+      {
+        // Only sources that keep exceeding their rate are quarantined...
+        if ( m_maxInvalid > 0 && ++state.m_excessCount >= m_maxInvalid )
+        {
+          quarantine( state, now );
+        }
+        return false;
+      }
+      state.m_tokens -= 1000L;
+    }
+    return true;
+  }
+
+  /**
+   * @return the number of sources that are currently quarantined.
+   */
+  int getQuarantinedCount( long now )
+  {
+    int result = 0;
+    for ( Source state : m_sources.values() )
+    {
+      if ( now < state.m_quarantinedUntil )
+      {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Registers that the given source sent an invalid packet.
+   */
+  void invalid( Object source, long now )
+  {
+    Source state = getSource( source, now );
+    if ( m_maxInvalid > 0 && ++state.m_invalidCount >= m_maxInvalid )
+    {
+      quarantine( state, now );
+    }
+  }
+
+  /**
+   * Registers that the given source sent a valid packet.
+   */
+  void valid( Object source )
+  {
+    Source state = m_sources.get( source );
+    if ( state != null )
+    {
+      state.m_invalidCount = 0;
+    }
+  }
+
+  private Source getSource( Object source, long now )
+  {
+    Source state = m_sources.get( source );
+    if ( state == null )
+    {
+      state = new Source();
+      state.m_tokens = m_capacity;
+      state.m_lastRefill = now;
+      m_sources.put( source, state );
+    }
+    return state;
+  }
+
+  private void quarantine( Source state, long now )
+  {
+    state.m_quarantinedUntil = now + m_quarantineTime;
+    state.m_invalidCount = 0;
+    state.m_excessCount = 0;
+    // Start with a full bucket once the quarantine is over...
+    state.m_tokens = m_capacity;
+    state.m_lastRefill = state.m_quarantinedUntil;
+  }
+}
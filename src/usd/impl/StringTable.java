@@ -0,0 +1,129 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+
+/**
+ * Bounded table of canonical strings, keyed on their UTF-8 encoded form. Used
+ * by the decoder to return the same {@link String} instance for repeatedly
+ * received identifiers, property keys and values, without having to create a
+ * temporary string first.
+ * <p>
+ * The table is direct-mapped: each encoded string maps to exactly one slot, and
+ * a new string simply replaces whatever was in its slot. Entries are
+ * immutable, so concurrent readers and writers at worst cause an additional
+ * miss, never a wrong result.
+ * </p>
+ */
+final class StringTable
+{
+  /**
+   * Immutable table entry.
+   */
+  static final class Entry
+  {
+    final int m_hash;
+    final byte[] m_bytes;
+    final String m_value;
+
+    Entry( int hash, byte[] bytes, String value )
+    {
+      m_hash = hash;
+      m_bytes = bytes;
+      m_value = value;
+    }
+
+    boolean matches( int hash, byte[] buf, int offset, int length )
+    {
+      if ( m_hash != hash || m_bytes.length != length )
+      {
+        return false;
+      }
+      for ( int i = 0; i < length; i++ )
+      {
+        if ( m_bytes[i] != buf[offset + i] )
+        {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+  private final Entry[] m_entries;
+  private final int m_mask;
+  private final int m_maxLength;
+
+  /**
+   * Creates a new {@link StringTable} instance.
+   *
+   * @param size
+   *          the number of slots in this table, will be rounded up to the next
+   *          power of two;
+   * @param maxLength
+   *          the maximum length of the encoded strings to canonicalize, longer
+   *          strings are not kept in this table.
+   */
+  StringTable( int size, int maxLength )
+  {
+    int capacity = Integer.highestOneBit( Math.max( 1, size - 1 ) ) << 1;
+    m_entries = new Entry[capacity];
+    m_mask = capacity - 1;
+    m_maxLength = maxLength;
+  }
+
+  /**
+   * Returns the canonical string for the given UTF-8 encoded bytes.
+   *
+   * @param buf
+   *          the buffer containing the encoded string;
+   * @param offset
+   *          the offset in the buffer at which the encoded string starts;
+   * @param length
+   *          the length of the encoded string, in bytes.
+   * @return the decoded string, never <code>null</code>.
+   */
+  String get( byte[] buf, int offset, int length )
+  {
+    if ( length == 0 )
+    {
+      return "";
+    }
+    if ( length > m_maxLength )
+    {
+      return new String( buf, offset, length, UTF8 );
+    }
+
+    int hash = hash( buf, offset, length );
+    int idx = hash & m_mask;
+
+    Entry entry = m_entries[idx];
+    if ( entry != null && entry.matches( hash, buf, offset, length ) )
+    {
+      return entry.m_value;
+    }
+
+    String value = new String( buf, offset, length, UTF8 );
+    m_entries[idx] = new Entry( hash, Arrays.copyOfRange( buf, offset, offset + length ), value );
+    return value;
+  }
+
+  private static int hash( byte[] buf, int offset, int length )
+  {
+    int hash = 0x811c9dc5;
+    for ( int i = offset, end = offset + length; i < end; i++ )
+    {
+      hash ^= buf[i] & 0xff;
+      hash *= 0x01000193;
+    }
+    // Spread the higher bits a bit, as we only use the lower bits as index...
+    return hash ^ ( hash >>> 16 );
+  }
+}
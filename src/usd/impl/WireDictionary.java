@@ -0,0 +1,167 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+
+/**
+ * Provides the tables used by the compact (v2) wire encoding to replace
+ * property keys, URI schemes and hosts by small integer codes.
+ * <p>
+ * Each dictionary consists of a fixed set of well-known entries, optionally
+ * extended with application specific entries. As peers need to use the exact
+ * same dictionary, each dictionary is identified by the CRC32 of its entries,
+ * which is sent along with each message. Peers using a different dictionary
+ * reject such messages instead of misinterpreting them, and make both sides
+ * fall back to the original (v1) encoding.
+ * </p>
+ */
+public final class WireDictionary
+{
+  private static final List<String> WELL_KNOWN_KEYS = Arrays.asList( "id", "name", "version", "description",
+      "weight", "protocol", "region", "zone", "host", "port", "capabilities", "shard", "range", "priority", "state" );
+
+  private static final List<String> WELL_KNOWN_SCHEMES = Arrays.asList( "http", "https", "tcp", "udp", "ws", "wss",
+      "grpc", "jmx", "rmi" );
+
+  private static final List<String> WELL_KNOWN_HOSTS = Arrays.asList( "localhost", "127.0.0.1", "[::1]", "0.0.0.0" );
+
+  /** The dictionary containing only the well-known entries. */
+  public static final WireDictionary DEFAULT = new WireDictionary( Collections.<String> emptyList(),
+      Collections.<String> emptyList() );
+
+  private final String[] m_keys;
+  private final Map<String, Integer> m_keyCodes;
+  private final String[] m_schemes;
+  private final Map<String, Integer> m_schemeCodes;
+  private final String[] m_hosts;
+  private final Map<String, Integer> m_hostCodes;
+  private final long m_checksum;
+
+  /**
+   * Creates a new {@link WireDictionary} instance.
+   *
+   * @param keys
+   *          the additional property keys to encode as integer code;
+   * @param hosts
+   *          the additional host names to encode as integer code.
+   */
+  public WireDictionary( List<String> keys, List<String> hosts )
+  {
+    m_keys = concat( WELL_KNOWN_KEYS, keys );
+    m_keyCodes = index( m_keys );
+    m_schemes = WELL_KNOWN_SCHEMES.toArray( new String[WELL_KNOWN_SCHEMES.size()] );
+    m_schemeCodes = index( m_schemes );
+    m_hosts = concat( WELL_KNOWN_HOSTS, hosts );
+    m_hostCodes = index( m_hosts );
+
+    CRC32 crc = new CRC32();
+    Charset utf8 = Charset.forName( "UTF-8" );
+    for ( String[] table : new String[][] { m_keys, m_schemes, m_hosts } )
+    {
+      for ( String entry : table )
+      {
+        crc.update( entry.getBytes( utf8 ) );
+        crc.update( 0 );
+      }
+      crc.update( 0xff );
+    }
+    m_checksum = crc.getValue();
+  }
+
+  private static String[] concat( List<String> first, List<String> second )
+  {
+    List<String> result = new ArrayList<String>( first );
+    for ( String entry : second )
+    {
+      if ( !result.contains( entry ) )
+      {
+        result.add( entry );
+      }
+    }
+    return result.toArray( new String[result.size()] );
+  }
+
+  private static Map<String, Integer> index( String[] entries )
+  {
+    Map<String, Integer> result = new HashMap<String, Integer>( entries.length * 2 );
+    for ( int i = 0; i < entries.length; i++ )
+    {
+      result.put( entries[i], Integer.valueOf( i ) );
+    }
+    return result;
+  }
+
+  /**
+   * @return the checksum identifying this dictionary.
+   */
+  long getChecksum()
+  {
+    return m_checksum;
+  }
+
+  /**
+   * @return the host for the given code, or <code>null</code> if unknown.
+   */
+  String getHost( long code )
+  {
+    return ( code >= 0 && code < m_hosts.length ) ? m_hosts[( int )code] : null;
+  }
+
+  /**
+   * @return the code for the given host, or -1 if not in this dictionary.
+   */
+  int getHostCode( String host )
+  {
+    Integer code = m_hostCodes.get( host );
+    return ( code == null ) ? -1 : code.intValue();
+  }
+
+  /**
+   * @return the property key for the given code, or <code>null</code> if
+   *         unknown.
+   */
+  String getKey( long code )
+  {
+    return ( code >= 0 && code < m_keys.length ) ? m_keys[( int )code] : null;
+  }
+
+  /**
+   * @return the code for the given property key, or -1 if not in this
+   *         dictionary.
+   */
+  int getKeyCode( String key )
+  {
+    Integer code = m_keyCodes.get( key );
+    return ( code == null ) ? -1 : code.intValue();
+  }
+
+  /**
+   * @return the URI scheme for the given code, or <code>null</code> if
+   *         unknown.
+   */
+  String getScheme( long code )
+  {
+    return ( code >= 0 && code < m_schemes.length ) ? m_schemes[( int )code] : null;
+  }
+
+  /**
+   * @return the code for the given URI scheme, or -1 if not in this
+   *         dictionary.
+   */
+  int getSchemeCode( String scheme )
+  {
+    Integer code = m_schemeCodes.get( scheme );
+    return ( code == null ) ? -1 : code.intValue();
+  }
+}
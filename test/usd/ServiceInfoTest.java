@@ -0,0 +1,90 @@
+/**
+ * 
+ */
+package usd;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+
+/**
+ * Test cases for {@link ServiceInfo}.
+ */
+public class ServiceInfoTest
+{
+  @Test
+  public void testEqualsAndHashCode()
+  {
+    Map<String, String> props = createProperties( 10 );
+
+    ServiceInfo info1 = new ServiceInfo( "id1", "name1", URI.create( "http://localhost:8080/" ), props );
+    ServiceInfo info2 = new ServiceInfo( "id1", "name1", URI.create( "http://localhost:8080/" ),
+        new HashMap<String, String>( props ) );
+    ServiceInfo info3 = new ServiceInfo( "id1", "name1", URI.create( "http://localhost:8080/" ), createProperties( 9 ) );
+
+    assertEquals( info1, info2 );
+    assertEquals( info1.hashCode(), info2.hashCode() );
+    assertEquals( info1.getDigest(), info2.getDigest() );
+
+    assertFalse( info1.equals( info3 ) );
+    assertFalse( info1.getDigest() == info3.getDigest() );
+  }
+
+  @Test
+  public void testIdenticalPropertiesAreShared()
+  {
+    ServiceInfo info1 = new ServiceInfo( "id1", "name1", URI.create( "http://localhost:8080/" ), createProperties( 5 ) );
+    ServiceInfo info2 = new ServiceInfo( "id2", "name2", URI.create( "http://localhost:8081/" ), createProperties( 5 ) );
+
+    assertSame( info1.getProperties(), info2.getProperties() );
+  }
+
+  @Test
+  public void testProperties()
+  {
+    Map<String, String> props = createProperties( 10 );
+
+    ServiceInfo info = new ServiceInfo( "id1", "name1", URI.create( "http://localhost:8080/" ), props );
+    Map<String, String> result = info.getProperties();
+
+    assertEquals( props, result );
+    assertEquals( result, props );
+    assertEquals( props.hashCode(), result.hashCode() );
+    assertEquals( 10, result.size() );
+    assertEquals( "value3", result.get( "key3" ) );
+    assertTrue( result.containsKey( "key9" ) );
+    assertNull( result.get( "key10" ) );
+    assertNull( result.get( Integer.valueOf( 1 ) ) );
+
+    try
+    {
+      result.put( "key", "value" );
+      fail( "UnsupportedOperationException expected!" );
+    }
+    catch ( UnsupportedOperationException e )
+    {
+      // Ok; expected...
+    }
+  }
+
+  private static Map<String, String> createProperties( int count )
+  {
+    Map<String, String> props = new HashMap<String, String>();
+    for ( int i = 0; i < count; i++ )
+    {
+      props.put( "key" + i, "value" + i );
+    }
+    return props;
+  }
+}
@@ -0,0 +1,301 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import usd.ServiceInfo;
+
+
+/**
+ * Fuzzes {@link CborCodec} with a corpus of crafted packets and random
+ * mutations of valid packets, verifying that decoding never fails with
+ * anything but an {@link IOException} or {@link IllegalArgumentException},
+ * and that its allocations and running time stay linear in the packet size.
+ */
+public class CborCodecFuzzTest
+{
+  /**
+   * Crafted packets, each declaring lengths way beyond their actual size.
+   */
+  private static final String[] CORPUS = { //
+      "", //
+      "d9", //
+      "d9d9f7", //
+      "d9d9f703", //
+      // Text string of 4GB...
+      "d9d9f7037affffffff", //
+      // Text string of 2^64 - 1 bytes...
+      "d9d9f7037bffffffffffffffff", //
+      // Text string of 255 bytes...
+      "d9d9f70378ff61", //
+      // Map with 2^31 - 1 entries...
+      "d9d9f70361616161616161ba7fffffff", //
+      // Map with 255 entries...
+      "d9d9f70361616161616161b8ff6161", //
+      // Compressed body of 4GB...
+      "d9d9f70b5affffffff", //
+      // Dictionary checksum of 2^64 - 1...
+      "d9d9f7131bffffffffffffffff", //
+      // V2 URI array followed by a map with 2^31 - 1 entries...
+      "d9d9f713197a98616161618461611865ff6000ba7fffffff", //
+      // Fragment of 32767 fragments with a chunk of 4GB...
+      "d9d9f8000019" + "7fff5affffffff", //
+      // Fragment with a chunk of 2^64 - 1 bytes...
+      "d9d9f80000015bffffffffffffffff", //
+  };
+
+  private static final int MAX_ALLOCATION = 1024 * 1024;
+  /** the allocations not covered by the budget, such as the decoded objects. */
+  private static final int FIXED_OVERHEAD = 4 * 1024;
+  private static final int MUTATIONS = 2000;
+  private static final byte[] INTERESTING = { 0x00, ( byte )0xff, 0x7f, 0x18, 0x19, 0x1a, 0x1b, 0x5b, 0x7b, ( byte )0x9b,
+      ( byte )0xbb };
+
+  @Test
+  public void testCompressionBombIsRejected() throws IOException
+  {
+    Map<String, String> props = new HashMap<String, String>();
+    char[] value = new char[Short.MAX_VALUE];
+    Arrays.fill( value, 'a' );
+    for ( int i = 0; i < 32; i++ )
+    {
+      props.put( "key" + i, new String( value ) );
+    }
+    ServiceInfo info = new ServiceInfo( "id1", "name1", URI.create( "http://localhost:8080/" ), props );
+
+    byte[] data = CborCodec.compress( CborCodec.encode( MulticastMessage.createServiceAddedMessage( info ) ) );
+    assertTrue( data.length < 8 * 1024 );
+
+    try
+    {
+      CborCodec.decode( data, 0, data.length, WireDictionary.DEFAULT, MAX_ALLOCATION );
+      fail( "IOException expected!" );
+    }
+    catch ( IOException e )
+    {
+      // Ok; expected...
+    }
+  }
+
+  @Test
+  public void testCorpus() throws IOException
+  {
+    for ( String hex : CORPUS )
+    {
+      decode( fromHex( hex ) );
+    }
+  }
+
+  @Test
+  public void testDecodeTimeIsLinear() throws IOException
+  {
+    byte[] small = createMessage( 500 );
+    byte[] large = createMessage( 4000 );
+
+    // Warm up...
+    for ( int i = 0; i < 200; i++ )
+    {
+      decode( small );
+      decode( large );
+    }
+
+    long smallTime = measure( small );
+    long largeTime = measure( large );
+
+    // Eight times the input; linear would be eight times the time, quadratic
+    // sixty-four times...
+    assertTrue( "Decode time not linear: " + smallTime + " vs " + largeTime, largeTime < 32 * smallTime );
+  }
+
+  @Test
+  public void testMutatedPackets() throws IOException
+  {
+    List<byte[]> seeds = createSeeds();
+    for ( String hex : CORPUS )
+    {
+      seeds.add( fromHex( hex ) );
+    }
+
+    Random rnd = new Random( 55799L );
+    for ( byte[] seed : seeds )
+    {
+      for ( int i = 0; i < MUTATIONS; i++ )
+      {
+        decode( mutate( rnd, seed ) );
+      }
+    }
+  }
+
+  private static byte[] createMessage( int propCount ) throws IOException
+  {
+    Map<String, String> props = new HashMap<String, String>();
+    for ( int i = 0; i < propCount; i++ )
+    {
+      props.put( "k" + i, "v" + i );
+    }
+    ServiceInfo info = new ServiceInfo( "id1", "name1", URI.create( "http://localhost:8080/" ), props );
+    return CborCodec.encode( MulticastMessage.createServiceAddedMessage( info ) );
+  }
+
+  private static List<byte[]> createSeeds() throws IOException
+  {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put( "version", "1.0.0" );
+    props.put( "weight", "10" );
+    props.put( "custom", "value" );
+    StringBuilder sb = new StringBuilder();
+    for ( int i = 0; i < 100; i++ )
+    {
+      sb.append( "description " ).append( i );
+    }
+    props.put( "description", sb.toString() );
+
+    ServiceInfo info = new ServiceInfo( "id1", "name1", URI.create( "http://localhost:8080/path?q=1" ), props );
+    MulticastMessage added = MulticastMessage.createServiceAddedMessage( info );
+    MulticastMessage removed = MulticastMessage.createServiceRemovedMessage( info );
+
+    List<byte[]> result = new ArrayList<byte[]>();
+    result.add( CborCodec.encode( MulticastMessage.createBroadcastStateMessage() ) );
+    result.add( CborCodec.encode( added ) );
+    result.add( CborCodec.encode( removed ) );
+    result.add( CborCodec.encode( added, WireDictionary.DEFAULT ) );
+    result.add( CborCodec.compress( CborCodec.encode( added ) ) );
+    result.add( CborCodec.compress( CborCodec.encode( added, WireDictionary.DEFAULT ) ) );
+    result.addAll( CborCodec.fragment( CborCodec.encode( added ), 1, CborCodec.MIN_PACKET_SIZE ) );
+    return result;
+  }
+
+  /**
+   * Decodes the given packet in the same way as a receiving announcer does,
+   * verifying the amount of memory allocated while doing so.
+   */
+  private static void decode( byte[] data ) throws IOException
+  {
+    long allocated = getAllocatedBytes();
+    try
+    {
+      if ( CborCodec.isFragment( data, 0, data.length ) )
+      {
+        CborCodec.decodeFragment( data, 0, data.length );
+      }
+      else
+      {
+        CborCodec.decode( data, 0, data.length, WireDictionary.DEFAULT, MAX_ALLOCATION ).getServiceInfo();
+      }
+    }
+    catch ( IOException e )
+    {
+      // Ok; invalid packet...
+    }
+    catch ( IllegalArgumentException e )
+    {
+      // Ok; invalid service information...
+    }
+    catch ( RuntimeException e )
+    {
+      throw new AssertionError( "Unexpected exception for " + toHex( data ) + ": " + e );
+    }
+
+    if ( allocated >= 0L )
+    {
+      allocated = getAllocatedBytes() - allocated;
+      long limit = MAX_ALLOCATION + FIXED_OVERHEAD;
+      if ( allocated > limit )
+      {
+        fail( "Allocated " + allocated + " bytes for " + toHex( data ) );
+      }
+    }
+  }
+
+  private static byte[] fromHex( String hex )
+  {
+    byte[] result = new byte[hex.length() / 2];
+    for ( int i = 0; i < result.length; i++ )
+    {
+      result[i] = ( byte )Integer.parseInt( hex.substring( 2 * i, 2 * i + 2 ), 16 );
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of bytes allocated by the current thread, or -1 if
+   *         this cannot be determined on this JVM.
+   */
+  private static long getAllocatedBytes()
+  {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if ( bean instanceof com.sun.management.ThreadMXBean )
+    {
+      return ( ( com.sun.management.ThreadMXBean )bean ).getThreadAllocatedBytes( Thread.currentThread().getId() );
+    }
+    return -1L;
+  }
+
+  private static long measure( byte[] data ) throws IOException
+  {
+    long best = Long.MAX_VALUE;
+    for ( int i = 0; i < 5; i++ )
+    {
+      long start = System.nanoTime();
+      for ( int j = 0; j < 20; j++ )
+      {
+        CborCodec.decode( data ).getServiceInfo();
+      }
+      best = Math.min( best, System.nanoTime() - start );
+    }
+    return best;
+  }
+
+  private static byte[] mutate( Random rnd, byte[] seed )
+  {
+    byte[] result = seed.clone();
+    int count = 1 + rnd.nextInt( 4 );
+    for ( int i = 0; i < count && result.length > 0; i++ )
+    {
+      int pos = rnd.nextInt( result.length );
+      switch ( rnd.nextInt( 4 ) )
+      {
+        case 0:
+          result[pos] ^= ( byte )( 1 << rnd.nextInt( 8 ) );
+          break;
+        case 1:
+          result[pos] = INTERESTING[rnd.nextInt( INTERESTING.length )];
+          break;
+        case 2:
+          result[pos] = ( byte )rnd.nextInt( 256 );
+          break;
+        default:
+          result = Arrays.copyOf( result, pos );
+          break;
+      }
+    }
+    return result;
+  }
+
+  private static String toHex( byte[] data )
+  {
+    StringBuilder sb = new StringBuilder();
+    for ( byte b : data )
+    {
+      sb.append( String.format( "%02x", Integer.valueOf( b & 0xff ) ) );
+    }
+    return sb.toString();
+  }
+}
@@ -5,14 +5,21 @@ package usd.impl;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static usd.impl.CborCodec.MT_UNSIGNED_INT;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.URI;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.Test;
@@ -36,6 +43,259 @@ public class CborCodecTest
     assertEquals( orig, read );
   }
 
+  @Test
+  public void testLazyDecoding() throws IOException
+  {
+    MulticastMessage orig = MulticastMessage.createServiceAddedMessage( new ServiceInfo( "id1", "name1",
+        URI.create( "http://localhost:8080/" ) ) );
+
+    byte[] data = CborCodec.encode( orig );
+    // Corrupt the properties, which should only be noticed upon accessing them...
+    data[data.length - 1] = ( byte )0xff;
+
+    MulticastMessage read = CborCodec.decode( data );
+    assertTrue( read.isServiceAdded() );
+    assertEquals( "id1", read.getServiceId() );
+
+    try
+    {
+      read.getServiceInfo();
+      fail( "IllegalArgumentException expected!" );
+    }
+    catch ( IllegalArgumentException e )
+    {
+      // Ok; expected...
+    }
+  }
+
+  @Test
+  public void testCompactCodec() throws IOException
+  {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put( "version", "1.0.0" );
+    props.put( "weight", "10" );
+    props.put( "custom", "value" );
+    props.put( "other", "value" );
+
+    WireDictionary dictionary = new WireDictionary( Arrays.asList( "custom" ), Arrays.asList( "example.org" ) );
+
+    for ( String uri : new String[] { "http://localhost:8080/serv1", "tcp://example.org:1234", "https://[::1]/a?b#c",
+        "http://user@localhost:8080/", "urn:isbn:12345", "foo://other.org/path" } )
+    {
+      MulticastMessage orig = MulticastMessage.createServiceAddedMessage( new ServiceInfo( "id1", "name1",
+          URI.create( uri ), props ) );
+
+      byte[] v1 = CborCodec.encode( orig );
+      byte[] v2 = CborCodec.encode( orig, dictionary );
+      assertTrue( v2.length < v1.length );
+
+      assertEquals( orig, CborCodec.decode( v1, 0, v1.length, dictionary ) );
+      assertEquals( orig, CborCodec.decode( v2, 0, v2.length, dictionary ) );
+    }
+
+    MulticastMessage orig = MulticastMessage.createServiceRemovedMessage( new ServiceInfo( "id1", "name1",
+        URI.create( "http://localhost/" ), props ) );
+    byte[] v2 = CborCodec.encode( orig, dictionary );
+    try
+    {
+      // Different dictionary should be rejected...
+      CborCodec.decode( v2 );
+      fail( "IncompatibleDictionaryException expected!" );
+    }
+    catch ( IncompatibleDictionaryException e )
+    {
+      // Ok; expected...
+    }
+
+    // State requests tell peers about the dictionary used...
+    byte[] request = CborCodec.encode( MulticastMessage.createBroadcastStateMessage(), dictionary );
+    assertTrue( CborCodec.decode( request, 0, request.length, dictionary ).isBroadcastState() );
+    try
+    {
+      CborCodec.decode( request );
+      fail( "IncompatibleDictionaryException expected!" );
+    }
+    catch ( IncompatibleDictionaryException e )
+    {
+      // Ok; expected...
+    }
+
+    // Compression should work on top of the compact encoding...
+    byte[] compressed = CborCodec.compress( v2 );
+    assertEquals( orig, CborCodec.decode( compressed, 0, compressed.length, dictionary ) );
+  }
+
+  @Test
+  public void testCompressedCodec() throws IOException
+  {
+    Map<String, String> props = new HashMap<String, String>();
+    for ( int i = 0; i < 50; i++ )
+    {
+      props.put( String.format( "version.%03d", i ), String.format( "http://localhost:%d/", 8000 + i ) );
+    }
+
+    MulticastMessage orig = MulticastMessage.createServiceAddedMessage( new ServiceInfo( "id1", "name1",
+        URI.create( "http://localhost:8080/" ), props ) );
+
+    byte[] data = CborCodec.encode( orig );
+    byte[] compressed = CborCodec.compress( data );
+    assertTrue( compressed.length < data.length );
+
+    assertEquals( orig, CborCodec.decode( compressed ) );
+
+    // Nothing to compress in a state request...
+    data = CborCodec.encode( MulticastMessage.createBroadcastStateMessage() );
+    assertSame( data, CborCodec.compress( data ) );
+  }
+
+  @Test
+  public void testTimestampedCodec() throws IOException
+  {
+    Map<String, String> props = new HashMap<String, String>();
+    for ( int i = 0; i < 50; i++ )
+    {
+      props.put( String.format( "version.%03d", i ), String.format( "http://localhost:%d/", 8000 + i ) );
+    }
+
+    MulticastMessage orig = MulticastMessage.createServiceAddedMessage( new ServiceInfo( "id1", "name1",
+        URI.create( "http://localhost:8080/" ), props ) );
+    long timestamp = LatencyTrace.currentTimeMicros();
+    MulticastMessage stamped = orig.withTimestamp( timestamp );
+
+    assertEquals( 0L, CborCodec.decode( CborCodec.encode( orig ) ).getTimestamp() );
+
+    byte[] data = CborCodec.encode( stamped );
+    MulticastMessage read = CborCodec.decode( data );
+    assertEquals( orig, read );
+    assertEquals( timestamp, read.getTimestamp() );
+
+    byte[] compact = CborCodec.encode( stamped, WireDictionary.DEFAULT );
+    read = CborCodec.decode( compact, 0, compact.length, WireDictionary.DEFAULT );
+    assertEquals( orig, read );
+    assertEquals( timestamp, read.getTimestamp() );
+
+    byte[] compressed = CborCodec.compress( data );
+    assertTrue( compressed.length < data.length );
+    read = CborCodec.decode( compressed );
+    assertEquals( orig, read );
+    assertEquals( timestamp, read.getTimestamp() );
+  }
+
+  @Test
+  public void testFragmentedCodec() throws IOException
+  {
+    Map<String, String> props = new HashMap<String, String>();
+    for ( int i = 0; i < 100; i++ )
+    {
+      props.put( String.format( "key%03d", i ), String.format( "a rather lengthy value for property %03d", i ) );
+    }
+
+    MulticastMessage orig = MulticastMessage.createServiceAddedMessage( new ServiceInfo( "id1", "name1",
+        URI.create( "http://localhost:8080/" ), props ) );
+
+    byte[] data = CborCodec.encode( orig );
+    assertFalse( CborCodec.isFragment( data, 0, data.length ) );
+
+    List<byte[]> fragments = CborCodec.fragment( data, 42, 512 );
+    assertTrue( fragments.size() > 1 );
+
+    FragmentAssembler assembler = new FragmentAssembler( 4, 64 * 1024, 256 * 1024, 1000L );
+    byte[] result = null;
+    // Deliver them in reverse order...
+    for ( int i = fragments.size() - 1; i >= 0; i-- )
+    {
+      byte[] fragment = fragments.get( i );
+      assertTrue( fragment.length <= 512 );
+      assertTrue( CborCodec.isFragment( fragment, 0, fragment.length ) );
+      assertNull( result );
+
+      result = assembler.add( "source", CborCodec.decodeFragment( fragment, 0, fragment.length ), 0L );
+    }
+
+    assertEquals( orig, CborCodec.decode( result ) );
+    assertEquals( 0, assembler.getPendingCount() );
+    assertEquals( 0, assembler.getBufferedSize() );
+  }
+
+  @Test
+  public void testIncompleteFragmentedMessageExpires() throws IOException
+  {
+    byte[] data = new byte[2000];
+    List<byte[]> fragments = CborCodec.fragment( data, 1, 512 );
+
+    FragmentAssembler assembler = new FragmentAssembler( 4, 64 * 1024, 256 * 1024, 1000L );
+    byte[] first = fragments.get( 0 );
+    assertNull( assembler.add( "source", CborCodec.decodeFragment( first, 0, first.length ), 0L ) );
+    assertEquals( 1, assembler.getPendingCount() );
+
+    // Remaining fragments arrive too late...
+    for ( int i = 1; i < fragments.size(); i++ )
+    {
+      byte[] fragment = fragments.get( i );
+      assertNull( assembler.add( "source", CborCodec.decodeFragment( fragment, 0, fragment.length ), 1500L ) );
+    }
+    assertEquals( 1, assembler.getPendingCount() );
+
+    // Too many pending messages causes the oldest to be dropped...
+    for ( int i = 2; i < 10; i++ )
+    {
+      byte[] fragment = CborCodec.fragment( data, i, 512 ).get( 0 );
+      assertNull( assembler.add( "source", CborCodec.decodeFragment( fragment, 0, fragment.length ), 1500L ) );
+    }
+    assertEquals( 4, assembler.getPendingCount() );
+  }
+
+  @Test
+  public void testLargeFragmentedMessageDoesNotEvictOthers() throws IOException
+  {
+    FragmentAssembler assembler = new FragmentAssembler( 4, 8 * 1024, 16 * 1024, 1000L );
+
+    byte[] small = CborCodec.fragment( new byte[1000], 1, 512 ).get( 0 );
+    assertNull( assembler.add( "source", CborCodec.decodeFragment( small, 0, small.length ), 0L ) );
+
+    // Nearly the maximum message size, but within the buffer size...
+    List<byte[]> fragments = CborCodec.fragment( new byte[8000], 2, 512 );
+    for ( int i = 0; i < fragments.size() - 1; i++ )
+    {
+      byte[] fragment = fragments.get( i );
+      assertNull( assembler.add( "source", CborCodec.decodeFragment( fragment, 0, fragment.length ), 0L ) );
+    }
+    assertEquals( 2, assembler.getPendingCount() );
+  }
+
+  @Test
+  public void testDecodedStringsAreCanonical() throws IOException
+  {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put( "key", "value" );
+
+    MulticastMessage orig = MulticastMessage.createServiceAddedMessage( new ServiceInfo( "id1", "name1",
+        URI.create( "http://localhost:8080/" ), props ) );
+    byte[] data = CborCodec.encode( orig );
+
+    ServiceInfo info1 = CborCodec.decode( data ).getServiceInfo();
+    ServiceInfo info2 = CborCodec.decode( data ).getServiceInfo();
+
+    assertSame( info1.getId(), info2.getId() );
+    assertSame( info1.getName(), info2.getName() );
+    Map.Entry<String, String> entry1 = info1.getProperties().entrySet().iterator().next();
+    Map.Entry<String, String> entry2 = info2.getProperties().entrySet().iterator().next();
+    assertSame( entry1.getKey(), entry2.getKey() );
+    assertSame( entry1.getValue(), entry2.getValue() );
+  }
+
+  @Test
+  public void testNonAsciiCodec() throws IOException
+  {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put( "sch\u00f6n", "\u20ac 10" );
+
+    MulticastMessage orig = MulticastMessage.createServiceAddedMessage( new ServiceInfo( "\u00e9t\u00e9",
+        "\u65e5\u672c", URI.create( "http://localhost:8080/" ), props ) );
+
+    assertEquals( orig, CborCodec.decode( CborCodec.encode( orig ) ) );
+  }
+
   @Test
   public void testDecodeInt() throws IOException
   {
@@ -0,0 +1,262 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import usd.ServiceInfo;
+import usd.impl.HealthProber.EndpointHealth;
+import usd.impl.HealthProber.HealthCheck;
+import usd.impl.ServiceEventPublisherTest.DirectServiceAnnouncer;
+
+
+/**
+ * Test cases for {@link HealthProber}.
+ */
+public class HealthProberTest
+{
+  /**
+   * Reports the configured latency for each endpoint, or fails if there is
+   * none.
+   */
+  static class FakeCheck implements HealthCheck
+  {
+    final Map<URI, Long> m_latencies = new ConcurrentHashMap<URI, Long>();
+
+    @Override
+    public long probe( URI uri ) throws IOException
+    {
+      Long latency = m_latencies.get( uri );
+      if ( latency == null )
+      {
+        throw new IOException( "Not responding!" );
+      }
+      return latency.longValue();
+    }
+  }
+
+  private static final Executor DIRECT = new Executor()
+  {
+    @Override
+    public void execute( Runnable command )
+    {
+      command.run();
+    }
+  };
+
+  private static ServiceInfo createService( String id, String name, String uri )
+  {
+    return new ServiceInfo( id, name, URI.create( uri ) );
+  }
+
+  @Test
+  public void testEndpointsAreRankedByLatency() throws Exception
+  {
+    FakeCheck check = new FakeCheck();
+    HealthProber prober = new HealthProber( new DirectServiceAnnouncer(), check, 1000L, DIRECT );
+
+    ServiceInfo fast = createService( "id1", "Service", "http://10.0.0.1:8080/" );
+    ServiceInfo slow = createService( "id2", "Service", "http://10.0.0.2:8080/" );
+    ServiceInfo dead = createService( "id3", "Service", "http://10.0.0.3:8080/" );
+    check.m_latencies.put( fast.getURI(), Long.valueOf( 1000L ) );
+    check.m_latencies.put( slow.getURI(), Long.valueOf( 5000L ) );
+
+    prober.added( slow );
+    prober.added( dead );
+    prober.added( fast );
+
+    // Not probed yet...
+    assertEquals( 3, prober.getRankedEndpoints( "Service" ).size() );
+
+    for ( int i = 0; i < HealthProber.FAILURE_THRESHOLD; i++ )
+    {
+      // Three endpoints need two ticks...
+      prober.tick( Long.MAX_VALUE );
+      prober.tick( Long.MAX_VALUE );
+    }
+
+    List<EndpointHealth> ranked = prober.getRankedEndpoints( "Service" );
+    assertEquals( 2, ranked.size() );
+    assertEquals( fast.getURI(), ranked.get( 0 ).getURI() );
+    assertEquals( slow.getURI(), ranked.get( 1 ).getURI() );
+    assertFalse( prober.getHealth( dead.getURI() ).isHealthy() );
+
+    // The slow endpoint becomes fast, the dead one recovers...
+    check.m_latencies.put( slow.getURI(), Long.valueOf( 100L ) );
+    check.m_latencies.put( dead.getURI(), Long.valueOf( 3000L ) );
+    for ( int i = 0; i < 10; i++ )
+    {
+      prober.tick( Long.MAX_VALUE );
+    }
+
+    ranked = prober.getRankedEndpoints( "Service" );
+    assertEquals( 3, ranked.size() );
+    assertEquals( slow.getURI(), ranked.get( 0 ).getURI() );
+    assertEquals( fast.getURI(), ranked.get( 1 ).getURI() );
+    assertEquals( dead.getURI(), ranked.get( 2 ).getURI() );
+    assertTrue( ranked.get( 0 ).getLatency() < 1000L );
+  }
+
+  @Test
+  public void testProbesAreLimitedPerInterval() throws Exception
+  {
+    FakeCheck check = new FakeCheck();
+    HealthProber prober = new HealthProber( new DirectServiceAnnouncer(), check, 1000L, DIRECT );
+
+    for ( int i = 0; i < 100; i++ )
+    {
+      prober.added( createService( "id" + i, "Service", "http://10.0.1." + i + ":8080/" ) );
+    }
+
+    for ( int i = 0; i < 10; i++ )
+    {
+      assertEquals( 10, prober.tick( Long.MAX_VALUE ) );
+    }
+    // All probed, so nothing is due right now...
+    assertEquals( 0, prober.tick( System.nanoTime() ) );
+  }
+
+  @Test
+  public void testFailingEndpointsAreProbedFirst() throws Exception
+  {
+    FakeCheck check = new FakeCheck();
+    HealthProber prober = new HealthProber( new DirectServiceAnnouncer(), check, 1000L, DIRECT );
+
+    for ( int i = 0; i < 16; i++ )
+    {
+      ServiceInfo service = createService( "id" + i, "Service", "http://10.0.2." + i + ":8080/" );
+      check.m_latencies.put( service.getURI(), Long.valueOf( 1000L ) );
+      prober.added( service );
+    }
+    for ( int i = 0; i < 4; i++ )
+    {
+      prober.tick( Long.MAX_VALUE );
+    }
+
+    ServiceInfo dead = createService( "id16", "Service", "http://10.0.2.16:8080/" );
+    prober.added( dead );
+    prober.tick( Long.MAX_VALUE );
+    assertEquals( 1L, prober.getHealth( dead.getURI() ).getProbeCount() );
+
+    // Probed again ahead of all others, even though they are more overdue...
+    prober.tick( Long.MAX_VALUE );
+    assertEquals( 2L, prober.getHealth( dead.getURI() ).getProbeCount() );
+  }
+
+  @Test
+  public void testStopLeavesGivenExecutorRunning() throws Exception
+  {
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try
+    {
+      HealthProber prober = new HealthProber( new DirectServiceAnnouncer(), new FakeCheck(), 1000L, executor );
+      prober.start();
+      prober.stop();
+      assertFalse( executor.isShutdown() );
+    }
+    finally
+    {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void testSharedEndpointsAreTrackedOnce() throws Exception
+  {
+    HealthProber prober = new HealthProber( new DirectServiceAnnouncer(), new FakeCheck(), 1000L, DIRECT );
+
+    ServiceInfo service1 = createService( "id1", "Service1", "http://10.0.0.1:8080/" );
+    ServiceInfo service2 = createService( "id2", "Service2", "http://10.0.0.1:8080/" );
+    prober.added( service1 );
+    prober.added( service2 );
+
+    assertEquals( 1, prober.tick( Long.MAX_VALUE ) );
+    assertEquals( 1L, prober.getHealth( service1.getURI() ).getProbeCount() );
+
+    prober.removed( service1 );
+    assertNotNull( prober.getHealth( service1.getURI() ) );
+    assertEquals( 0, prober.getRankedEndpoints( "Service1" ).size() );
+
+    prober.removed( service2 );
+    assertNull( prober.getHealth( service1.getURI() ) );
+    assertEquals( 0, prober.tick( Long.MAX_VALUE ) );
+  }
+
+  @Test
+  public void testTcpConnectCheckOk() throws Exception
+  {
+    HealthCheck check = new HealthProber.TcpConnectCheck( 1000 );
+
+    ServerSocket server = new ServerSocket( 0, 10, InetAddress.getLoopbackAddress() );
+    int port = server.getLocalPort();
+    try
+    {
+      assertTrue( check.probe( URI.create( "http://127.0.0.1:" + port + "/" ) ) >= 0L );
+    }
+    finally
+    {
+      server.close();
+    }
+
+    try
+    {
+      check.probe( URI.create( "http://127.0.0.1:" + port + "/" ) );
+      fail( "IOException expected!" );
+    }
+    catch ( IOException e )
+    {
+      // Ok; expected...
+    }
+  }
+
+  @Test
+  public void testProberFollowsAnnouncer() throws Exception
+  {
+    ServerSocket server = new ServerSocket( 0, 10, InetAddress.getLoopbackAddress() );
+    DirectServiceAnnouncer announcer = new DirectServiceAnnouncer();
+    HealthProber prober = new HealthProber( announcer, new HealthProber.TcpConnectCheck( 1000 ), 10L );
+    try
+    {
+      prober.start();
+
+      ServiceInfo service = createService( "id1", "Service", "http://127.0.0.1:" + server.getLocalPort() + "/" );
+      announcer.addService( service );
+
+      long end = System.currentTimeMillis() + 5000L;
+      while ( prober.getHealth( service.getURI() ).getLatency() < 0L && System.currentTimeMillis() < end )
+      {
+        Thread.sleep( 10 );
+      }
+      assertEquals( 1, prober.getRankedEndpoints( "Service" ).size() );
+      assertTrue( prober.getRankedEndpoints( "Service" ).get( 0 ).getLatency() >= 0L );
+
+      announcer.removeService( service );
+      assertNull( prober.getHealth( service.getURI() ) );
+    }
+    finally
+    {
+      prober.stop();
+      server.close();
+    }
+  }
+}
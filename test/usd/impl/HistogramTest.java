@@ -0,0 +1,76 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Test cases for {@link Histogram}.
+ */
+public class HistogramTest
+{
+  @Test
+  public void testBucketsCoverAllValues()
+  {
+    long[] values = { 0L, 1L, 15L, 16L, 17L, 31L, 32L, 1000L, 1L << 40, Long.MAX_VALUE };
+    for ( long value : values )
+    {
+      int bucket = Histogram.bucketOf( value );
+      assertTrue( "" + value, value <= Histogram.upperBoundOf( bucket ) );
+      if ( bucket > 0 )
+      {
+        assertTrue( "" + value, value > Histogram.upperBoundOf( bucket - 1 ) );
+      }
+    }
+  }
+
+  @Test
+  public void testEmptyHistogram()
+  {
+    Histogram histogram = new Histogram();
+    assertEquals( 0L, histogram.getCount() );
+    assertEquals( 0L, histogram.getMax() );
+    assertEquals( 0L, histogram.getPercentile( 99.0 ) );
+    assertEquals( 0.0, histogram.getMean(), 0.0 );
+  }
+
+  @Test
+  public void testPercentilesAreAccurate()
+  {
+    Histogram histogram = new Histogram();
+    for ( int i = 1; i <= 10000; i++ )
+    {
+      histogram.record( i );
+    }
+
+    assertEquals( 10000L, histogram.getCount() );
+    assertEquals( 10000L, histogram.getMax() );
+    assertEquals( 5000.5, histogram.getMean(), 0.001 );
+    assertWithin( 5000L, histogram.getPercentile( 50.0 ) );
+    assertWithin( 9900L, histogram.getPercentile( 99.0 ) );
+    assertEquals( 10000L, histogram.getPercentile( 100.0 ) );
+  }
+
+  @Test
+  public void testRecordMultipleTimes()
+  {
+    Histogram histogram = new Histogram();
+    histogram.record( 100L, 3 );
+    histogram.record( -5L );
+
+    assertEquals( 4L, histogram.getCount() );
+    assertEquals( 75.0, histogram.getMean(), 0.001 );
+    assertEquals( 0L, histogram.getPercentile( 25.0 ) );
+  }
+
+  private static void assertWithin( long expected, long actual )
+  {
+    assertTrue( expected + " vs " + actual, actual >= expected && actual <= expected + expected / 8 );
+  }
+}
@@ -5,20 +5,32 @@ package usd.impl;
 
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static usd.Constants.USD_DEFAULT_GROUP_IP;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.After;
 import org.junit.Before;
@@ -172,6 +184,45 @@ public class MulticastServiceAnnouncerTest
     m_ann3 = stop( m_ann3 );
   }
 
+  @Test
+  public void testAwaitServiceOk() throws Exception
+  {
+    start( m_ann1 );
+    start( m_ann2 );
+
+    ServiceInfo service1 = new ServiceInfo( "id1", "Service1", URI.create( "http://localhost:8080/serv1" ) );
+    ServiceInfo service2 = new ServiceInfo( "id2", "Service2", URI.create( "http://localhost:8080/serv2" ) );
+
+    CompletableFuture<ServiceInfo> future = m_ann2.awaitServiceAsync( new Predicate<ServiceInfo>()
+    {
+      @Override
+      public boolean test( ServiceInfo info )
+      {
+        return info.getURI().getPath().endsWith( "/serv2" );
+      }
+    } );
+    assertFalse( future.isDone() );
+
+    try
+    {
+      m_ann2.awaitService( "Service1", 50, TimeUnit.MILLISECONDS );
+      fail( "TimeoutException expected!" );
+    }
+    catch ( TimeoutException e )
+    {
+      // Ok; expected...
+    }
+
+    m_ann1.addService( service1 );
+    assertEquals( service1, m_ann2.awaitService( "Service1", TIMEOUT, TimeUnit.MILLISECONDS ) );
+    // Already known...
+    assertEquals( service1, m_ann2.awaitService( "Service1", 0, TimeUnit.MILLISECONDS ) );
+    assertFalse( future.isDone() );
+
+    m_ann1.addService( service2 );
+    assertEquals( service2, future.get( TIMEOUT, TimeUnit.MILLISECONDS ) );
+  }
+
   @Test
   public void testAddServiceNotifiesLocalListenersOk() throws Exception
   {
@@ -237,6 +288,365 @@ public class MulticastServiceAnnouncerTest
     assertTrue( services.contains( service2 ) );
   }
 
+  @Test
+  public void testAddLargeServiceNotifiesRemoteListenersOk() throws Exception
+  {
+    Ensure ensure = new Ensure();
+
+    start( m_ann1 );
+    start( m_ann2 );
+
+    m_ann2.addServiceListener( new EnsureServiceListener( ensure, StepMethod.ADD ) );
+
+    Map<String, String> props = new HashMap<String, String>();
+    for ( int i = 0; i < 1000; i++ )
+    {
+      props.put( String.format( "key%04d", i ), String.format( "value%04d", i ) );
+    }
+    ServiceInfo service1 = new ServiceInfo( "id1", "Service1", URI.create( "http://localhost:8080/serv1" ), props );
+
+    m_ann1.addService( service1 );
+
+    ensure.waitForStep( 1, TIMEOUT );
+
+    Collection<ServiceInfo> services = m_ann2.getKnownServices();
+    assertEquals( 1, services.size() );
+    assertTrue( services.contains( service1 ) );
+  }
+
+  @Test
+  public void testAddCompressedServiceNotifiesRemoteListenersOk() throws Exception
+  {
+    Ensure ensure = new Ensure();
+
+    m_ann1 = new MulticastServiceAnnouncer( new MulticastConfig().setCompressionThreshold( 256 ) );
+
+    start( m_ann1 );
+    start( m_ann2 );
+
+    m_ann2.addServiceListener( new EnsureServiceListener( ensure, StepMethod.ADD ) );
+
+    Map<String, String> props = new HashMap<String, String>();
+    for ( int i = 0; i < 100; i++ )
+    {
+      props.put( String.format( "key%04d", i ), String.format( "value%04d", i ) );
+    }
+    ServiceInfo service1 = new ServiceInfo( "id1", "Service1", URI.create( "http://localhost:8080/serv1" ), props );
+
+    m_ann1.addService( service1 );
+
+    ensure.waitForStep( 1, TIMEOUT );
+
+    Collection<ServiceInfo> services = m_ann2.getKnownServices();
+    assertEquals( 1, services.size() );
+    assertTrue( services.contains( service1 ) );
+    assertTrue( m_ann1.getCompressionSavings() > 0 );
+  }
+
+  @Test
+  public void testPeersWithDifferentDictionariesFallBackOk() throws Exception
+  {
+    Ensure ensure = new Ensure();
+
+    WireDictionary dictionary = new WireDictionary( Arrays.asList( "custom" ), Arrays.<String> asList() );
+    m_ann1 = new MulticastServiceAnnouncer( new MulticastConfig().setWireDictionary( dictionary ) );
+
+    ServiceInfo service1 = new ServiceInfo( "id1", "Service1", URI.create( "http://localhost:8080/serv1" ) );
+
+    start( m_ann1 );
+    m_ann1.addService( service1 );
+
+    m_ann2.addServiceListener( new EnsureServiceListener( ensure, StepMethod.ADD ) );
+    start( m_ann2 );
+
+    ensure.waitForStep( 1, TIMEOUT );
+
+    Collection<ServiceInfo> services = m_ann2.getKnownServices();
+    assertEquals( 1, services.size() );
+    assertTrue( services.contains( service1 ) );
+  }
+
+  @Test
+  public void testOffHeapStorageOk() throws Exception
+  {
+    Ensure addEnsure = new Ensure();
+    Ensure removeEnsure = new Ensure();
+
+    m_ann2 = new MulticastServiceAnnouncer( new MulticastConfig().setOffHeapStorage( true ) );
+
+    start( m_ann1 );
+    start( m_ann2 );
+
+    m_ann2.addServiceListener( new EnsureServiceListener( addEnsure, StepMethod.ADD ) );
+    m_ann2.addServiceListener( new EnsureServiceListener( removeEnsure, StepMethod.REMOVE ) );
+
+    ServiceInfo service1 = new ServiceInfo( "id1", "Service1", URI.create( "http://localhost:8080/serv1" ) );
+
+    m_ann1.addService( service1 );
+
+    addEnsure.waitForStep( 1, TIMEOUT );
+
+    Collection<ServiceInfo> services = m_ann2.getKnownServices();
+    assertEquals( 1, services.size() );
+    assertTrue( services.contains( service1 ) );
+
+    m_ann1.removeService( service1 );
+
+    removeEnsure.waitForStep( 1, TIMEOUT );
+
+    assertEquals( 0, m_ann2.getKnownServices().size() );
+  }
+
+  @Test
+  public void testExcessRemoteServicesAreEvictedOk() throws Exception
+  {
+    Ensure addEnsure = new Ensure();
+    Ensure removeEnsure = new Ensure();
+
+    m_ann2 = new MulticastServiceAnnouncer( new MulticastConfig().setMaxRemoteServices( 2 ) );
+
+    start( m_ann1 );
+    start( m_ann2 );
+
+    ServiceInfo local = new ServiceInfo( "id0", "Service0", URI.create( "http://localhost:8080/serv0" ) );
+    m_ann2.addService( local );
+
+    m_ann2.addServiceListener( new EnsureServiceListener( addEnsure, StepMethod.ADD ) );
+    m_ann2.addServiceListener( new EnsureServiceListener( removeEnsure, StepMethod.REMOVE ) );
+
+    // Wait until the local service is replayed to our listener...
+    addEnsure.waitForStep( 1, TIMEOUT );
+
+    for ( int i = 1; i <= 3; i++ )
+    {
+      m_ann1.addService( new ServiceInfo( "id" + i, "Service" + i, URI.create( "http://localhost:8080/serv" + i ) ) );
+
+      addEnsure.waitForStep( i + 1, TIMEOUT );
+    }
+
+    // The oldest remote service should be evicted...
+    removeEnsure.waitForStep( 1, TIMEOUT );
+
+    Collection<ServiceInfo> services = m_ann2.getKnownServices();
+    assertEquals( 3, services.size() );
+    assertTrue( services.contains( local ) );
+    assertEquals( 1L, m_ann2.getEvictions() );
+  }
+
+  @Test
+  public void testIdenticalAnnouncementsAreNotDecodedOk() throws Exception
+  {
+    Ensure ensure2 = new Ensure();
+    Ensure ensure3 = new Ensure();
+
+    start( m_ann1 );
+    start( m_ann2 );
+
+    m_ann2.addServiceListener( new EnsureServiceListener( ensure2, StepMethod.ADD ) );
+    m_ann3.addServiceListener( new EnsureServiceListener( ensure3, StepMethod.ADD ) );
+
+    ServiceInfo service1 = new ServiceInfo( "id1", "Service1", URI.create( "http://localhost:8080/serv1" ) );
+
+    m_ann1.addService( service1 );
+
+    ensure2.waitForStep( 1, TIMEOUT );
+
+    // Causes the service to be announced again...
+    start( m_ann3 );
+
+    ensure3.waitForStep( 1, TIMEOUT );
+
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while ( m_ann2.getSkippedDecodes() == 0 && System.currentTimeMillis() < end )
+    {
+      TimeUnit.MILLISECONDS.sleep( 10 );
+    }
+    assertTrue( m_ann2.getSkippedDecodes() > 0 );
+    assertEquals( 1, m_ann2.getKnownServices().size() );
+  }
+
+  @Test
+  public void testChangedAnnouncementReplacesRemoteServiceOk() throws Exception
+  {
+    Ensure ensure = new Ensure();
+
+    start( m_ann1 );
+    start( m_ann2 );
+
+    m_ann2.addServiceListener( new EnsureServiceListener( ensure, StepMethod.ADD ) );
+
+    ServiceInfo service1 = new ServiceInfo( "id1", "Service1", URI.create( "http://localhost:8080/serv1" ) );
+    ServiceInfo changed = new ServiceInfo( "id1", "Service2", URI.create( "http://localhost:8080/serv2" ) );
+
+    m_ann1.addService( service1 );
+
+    ensure.waitForStep( 1, TIMEOUT );
+
+    // Leaves the service behind in the second announcer...
+    m_ann1.stop();
+
+    start( m_ann3 );
+    m_ann3.addService( changed );
+
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while ( !m_ann2.getKnownServices().contains( changed ) && System.currentTimeMillis() < end )
+    {
+      TimeUnit.MILLISECONDS.sleep( 10 );
+    }
+
+    Collection<ServiceInfo> services = m_ann2.getKnownServices();
+    assertEquals( 1, services.size() );
+    assertTrue( services.contains( changed ) );
+  }
+
+  @Test
+  public void testConflictingAnnouncementOfLocalServiceIsIgnoredOk() throws Exception
+  {
+    Ensure ensure = new Ensure();
+
+    ServiceInfo service1 = new ServiceInfo( "id1", "Service1", URI.create( "http://localhost:8080/serv1" ) );
+    final ServiceInfo conflict = new ServiceInfo( "id1", "Service2", URI.create( "http://localhost:8080/serv2" ) );
+    final CountDownLatch conflictSeen = new CountDownLatch( 1 );
+
+    // Only announced once started...
+    m_ann2.addService( conflict );
+
+    start( m_ann1 );
+    start( m_ann3 );
+
+    m_ann3.addServiceListener( new EnsureServiceListener( ensure, StepMethod.ADD ) );
+    m_ann3.addServiceListener( new ServiceListener()
+    {
+      @Override
+      public void serviceAdded( ServiceInfo info )
+      {
+        if ( conflict.equals( info ) )
+        {
+          conflictSeen.countDown();
+        }
+      }
+
+      @Override
+      public void serviceRemoved( ServiceInfo info )
+      {
+        // Not interested...
+      }
+    } );
+
+    m_ann1.addService( service1 );
+
+    ensure.waitForStep( 1, TIMEOUT );
+
+    start( m_ann2 );
+    // Its own request for the state might go out before it listens...
+    m_ann2.broadcastState();
+
+    // Multicast, so the first announcer received it as well...
+    assertTrue( conflictSeen.await( TIMEOUT, TimeUnit.MILLISECONDS ) );
+
+    Collection<ServiceInfo> services = m_ann1.getKnownServices();
+    assertEquals( 1, services.size() );
+    assertTrue( services.contains( service1 ) );
+
+    services = m_ann2.getKnownServices();
+    assertEquals( 1, services.size() );
+    assertTrue( services.contains( conflict ) );
+  }
+
+  @Test
+  public void testMetricsAreExportedOk() throws Exception
+  {
+    Ensure ensure = new Ensure();
+
+    m_ann2 = new MulticastServiceAnnouncer( new MulticastConfig().setMBeanName( "usd:type=Announcer,name=test" ) );
+
+    start( m_ann1 );
+    start( m_ann2 );
+
+    m_ann2.addServiceListener( new EnsureServiceListener( ensure, StepMethod.ADD ) );
+
+    m_ann1.addService( new ServiceInfo( "id1", "Service1", URI.create( "http://localhost:8080/serv1" ) ) );
+
+    ensure.waitForStep( 1, TIMEOUT );
+
+    AnnouncerMetrics metrics1 = m_ann1.getMetrics();
+    AnnouncerMetrics metrics2 = m_ann2.getMetrics();
+    // Metrics are updated right after the packets are sent and callbacks are done...
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while ( ( metrics1.getPacketsSent() < 2 || metrics2.getListenerCallbackTime().getCount() < 1 )
+        && System.currentTimeMillis() < end )
+    {
+      TimeUnit.MILLISECONDS.sleep( 10 );
+    }
+    assertTrue( metrics1.getPacketsSent() >= 2 );
+    assertTrue( metrics1.getSentServiceAddedMessages() >= 1 );
+    assertTrue( metrics2.getReceivedServiceAddedMessages() >= 1 );
+    assertTrue( metrics2.getBytesReceived() > 0 );
+    assertTrue( metrics2.getListenerCallbackTime().getCount() >= 1 );
+    assertEquals( 1, metrics2.getServiceCount() );
+
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    ObjectName name = new ObjectName( "usd:type=Announcer,name=test" );
+    assertEquals( Long.valueOf( 1L ), server.getAttribute( name, "ServiceCount" ) );
+
+    m_ann2 = stop( m_ann2 );
+    assertFalse( server.isRegistered( name ) );
+  }
+
+  @Test
+  public void testRejectedSendIsNotQueuedOk() throws Exception
+  {
+    // No longer accepts any messages to send...
+    m_ann1.stop();
+
+    try
+    {
+      m_ann1.addService( new ServiceInfo( "id1", "Service1", URI.create( "http://localhost:8080/serv1" ) ) );
+      fail( "RejectedExecutionException expected!" );
+    }
+    catch ( RejectedExecutionException e )
+    {
+      // Ok; expected...
+    }
+    assertEquals( 0L, m_ann1.getMetrics().getSendQueueDepth() );
+  }
+
+  @Test
+  public void testLatencyIsTracedOk() throws Exception
+  {
+    Ensure ensure = new Ensure();
+
+    m_ann1 = new MulticastServiceAnnouncer( new MulticastConfig().setTraceSampleRate( 1.0 ) );
+    m_ann2 = new MulticastServiceAnnouncer( new MulticastConfig().setTraceSampleRate( 1.0 ) );
+
+    start( m_ann1 );
+    start( m_ann2 );
+
+    // Each trace is recorded once, regardless the number of listeners...
+    m_ann2.addServiceListener( new EnsureServiceListener( new Ensure(), StepMethod.ADD_REMOVE ) );
+    m_ann2.addServiceListener( new EnsureServiceListener( ensure, StepMethod.ADD_REMOVE ) );
+
+    ServiceInfo service1 = new ServiceInfo( "id1", "Service1", URI.create( "http://localhost:8080/serv1" ) );
+    m_ann1.addService( service1 );
+    ensure.waitForStep( 1, TIMEOUT );
+    m_ann1.removeService( service1 );
+    ensure.waitForStep( 2, TIMEOUT );
+
+    AnnouncerMetrics metrics = m_ann2.getMetrics();
+    // The second trace is recorded right after its callback is done...
+    long end = System.currentTimeMillis() + TIMEOUT;
+    while ( metrics.getTraceEndToEndTime().getCount() < 2 && System.currentTimeMillis() < end )
+    {
+      TimeUnit.MILLISECONDS.sleep( 10 );
+    }
+    assertEquals( 2L, metrics.getTraceNetworkTime().getCount() );
+    assertEquals( 2L, metrics.getTraceDecodeTime().getCount() );
+    assertEquals( 2L, metrics.getTraceDispatchTime().getCount() );
+    assertEquals( 2L, metrics.getTraceEndToEndTime().getCount() );
+    // Same host, so the clocks agree...
+    assertTrue( metrics.getTraceEndToEndTime().getMax() < TimeUnit.MILLISECONDS.toMicros( TIMEOUT ) );
+  }
+
   @Test
   public void testRemoveServiceNotifiesLocalListenersOk() throws Exception
   {
@@ -305,6 +715,126 @@ public class MulticastServiceAnnouncerTest
     assertEquals( 0, services.size() );
   }
 
+  @Test
+  public void testStartCompletesOnceStateIsLearnedOk() throws Exception
+  {
+    MulticastConfig config = new MulticastConfig().setStateQuietPeriod( 100L ).setStateRequestBackoff( 50L );
+    m_ann1 = new MulticastServiceAnnouncer( config );
+
+    // Nobody to learn from; completes after a single repetition...
+    CompletableFuture<Void> ready = m_ann1.start( InetAddress.getByName( USD_DEFAULT_GROUP_IP ), m_port );
+    ready.get( TIMEOUT, TimeUnit.MILLISECONDS );
+    assertEquals( 2L, m_ann1.getMetrics().getSentBroadcastStateMessages() );
+
+    for ( int i = 0; i < 10; i++ )
+    {
+      m_ann1.addService( new ServiceInfo( "id" + i, "Service" + i, URI.create( "http://localhost:8080/serv" + i ) ) );
+    }
+
+    m_ann2 = new MulticastServiceAnnouncer( config );
+    assertFalse( m_ann2.getReadiness().isDone() );
+
+    ready = m_ann2.start( InetAddress.getByName( USD_DEFAULT_GROUP_IP ), m_port );
+    ready.get( TIMEOUT, TimeUnit.MILLISECONDS );
+
+    assertTrue( m_ann2.getReadiness().isDone() );
+    assertEquals( 10, m_ann2.getKnownServices().size() );
+    assertTrue( m_ann2.getMetrics().getStartupTime() >= 0L );
+  }
+
+  @Test
+  public void testStartCompletesWhilePeerKeepsAddingServicesOk() throws Exception
+  {
+    MulticastConfig config = new MulticastConfig().setStateQuietPeriod( 100L ).setStateRequestBackoff( 50L )
+        .setStateConvergenceTimeout( 1000L );
+    m_ann1 = new MulticastServiceAnnouncer( config );
+    m_ann1.start( InetAddress.getByName( USD_DEFAULT_GROUP_IP ), m_port ).get( TIMEOUT, TimeUnit.MILLISECONDS );
+
+    final CountDownLatch done = new CountDownLatch( 1 );
+    Thread churn = new Thread( new Runnable()
+    {
+      @Override
+      public void run()
+      {
+        try
+        {
+          // Add a new service well within every quiet period...
+          for ( int i = 0; !done.await( 20L, TimeUnit.MILLISECONDS ); i++ )
+          {
+            URI uri = URI.create( "http://localhost:8080/serv" + i );
+            m_ann1.addService( new ServiceInfo( "id" + i, "Service" + i, uri ) );
+          }
+        }
+        catch ( InterruptedException e )
+        {
+          Thread.currentThread().interrupt();
+        }
+      }
+    } );
+    churn.start();
+
+    try
+    {
+      // Make sure the new announcer keeps learning services...
+      Thread.sleep( 100L );
+
+      m_ann2 = new MulticastServiceAnnouncer( config );
+      CompletableFuture<Void> ready = m_ann2.start( InetAddress.getByName( USD_DEFAULT_GROUP_IP ), m_port );
+      ready.get( TIMEOUT, TimeUnit.MILLISECONDS );
+
+      assertTrue( m_ann2.getKnownServices().size() > 0 );
+      assertTrue( m_ann2.getMetrics().getStartupTime() >= 1000L );
+    }
+    finally
+    {
+      done.countDown();
+      churn.join();
+    }
+  }
+
+  @Test
+  public void testSnapshotRestoresServicesOk() throws Exception
+  {
+    Ensure addEnsure = new Ensure();
+    Ensure removeEnsure = new Ensure();
+
+    File file = File.createTempFile( "usd", ".snapshot" );
+    file.deleteOnExit();
+
+    MulticastConfig config = new MulticastConfig().setSnapshotFile( file ).setUnverifiedTimeout( 500L );
+    m_ann2 = new MulticastServiceAnnouncer( config );
+
+    start( m_ann1 );
+    start( m_ann2 );
+
+    m_ann2.addServiceListener( new EnsureServiceListener( addEnsure, StepMethod.ADD ) );
+
+    ServiceInfo service1 = new ServiceInfo( "id1", "Service1", URI.create( "http://localhost:8080/serv1" ) );
+
+    m_ann1.addService( service1 );
+
+    addEnsure.waitForStep( 1, TIMEOUT );
+
+    // Restart without any peer to verify the restored service...
+    m_ann1 = stop( m_ann1 );
+    m_ann2 = stop( m_ann2 );
+
+    m_ann2 = new MulticastServiceAnnouncer( config );
+    m_ann2.addServiceListener( new EnsureServiceListener( removeEnsure, StepMethod.REMOVE ) );
+
+    start( m_ann2 );
+
+    Collection<ServiceInfo> services = m_ann2.getKnownServices();
+    assertEquals( 1, services.size() );
+    assertTrue( services.contains( service1 ) );
+    assertFalse( m_ann2.isVerified( service1 ) );
+
+    // Not verified in time...
+    removeEnsure.waitForStep( 1, TIMEOUT );
+
+    assertEquals( 0, m_ann2.getKnownServices().size() );
+  }
+
   @Test
   public void testServiceBroadcastOk() throws Exception
   {
@@ -0,0 +1,107 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import usd.ServiceInfo;
+import usd.impl.MulticastServiceAnnouncer.ServiceInfoHolder;
+import usd.impl.MulticastServiceAnnouncer.ServiceLocality;
+
+
+/**
+ * Test cases for {@link OffHeapServiceMap}.
+ */
+public class OffHeapServiceMapTest
+{
+  @Test
+  public void testChurnCompactsStorage()
+  {
+    OffHeapServiceMap map = new OffHeapServiceMap( 16 * 1024 );
+
+    for ( int round = 0; round < 10; round++ )
+    {
+      for ( int i = 0; i < 1000; i++ )
+      {
+        ServiceInfoHolder holder = createHolder( i, ServiceLocality.REMOTE );
+        assertNull( map.putIfAbsent( holder.getInfo().getId(), holder ) );
+      }
+      assertEquals( 1000, map.size() );
+
+      for ( int i = 0; i < 1000; i += 2 )
+      {
+        ServiceInfoHolder holder = createHolder( i, ServiceLocality.REMOTE );
+        assertTrue( map.remove( holder.getInfo().getId(), holder ) );
+      }
+      assertEquals( 500, map.size() );
+
+      for ( int i = 1; i < 1000; i += 2 )
+      {
+        ServiceInfoHolder holder = createHolder( i, ServiceLocality.REMOTE );
+        assertEquals( holder, map.get( holder.getInfo().getId() ) );
+        assertTrue( map.remove( holder.getInfo().getId(), holder ) );
+      }
+      assertEquals( 0, map.size() );
+    }
+
+    // All garbage should have been reclaimed...
+    assertTrue( map.getUsedBytes() < 32 * 1024 );
+  }
+
+  @Test
+  public void testPutGetRemove()
+  {
+    OffHeapServiceMap map = new OffHeapServiceMap( 1024 );
+
+    ServiceInfoHolder holder1 = createHolder( 1, ServiceLocality.LOCAL );
+    ServiceInfoHolder holder2 = createHolder( 2, ServiceLocality.REMOTE );
+
+    assertNull( map.putIfAbsent( "id1", holder1 ) );
+    assertNull( map.putIfAbsent( "id2", holder2 ) );
+    assertEquals( holder1, map.putIfAbsent( "id1", holder2 ) );
+
+    assertEquals( 2, map.size() );
+    assertTrue( map.containsKey( "id1" ) );
+    assertFalse( map.containsKey( "id3" ) );
+
+    ServiceInfoHolder read = map.get( "id1" );
+    assertEquals( holder1, read );
+    assertEquals( ServiceLocality.LOCAL, read.m_locality );
+    assertEquals( holder1.getInfo(), read.getInfo() );
+
+    // Locality differs...
+    assertFalse( map.remove( "id1", createHolder( 1, ServiceLocality.REMOTE ) ) );
+
+    ServiceInfoHolder updated = new ServiceInfoHolder( ServiceLocality.REMOTE, holder2.getInfo(), 1234L );
+    assertTrue( map.replace( "id2", holder2, updated ) );
+    assertEquals( 1234L, map.get( "id2" ).m_digest );
+
+    assertEquals( 2, map.values().size() );
+    assertTrue( map.values().contains( holder1 ) );
+    assertEquals( 2, map.keySet().size() );
+    assertTrue( map.keySet().contains( "id2" ) );
+
+    assertTrue( map.remove( "id1", holder1 ) );
+    assertNull( map.get( "id1" ) );
+    assertEquals( 1, map.size() );
+  }
+
+  private static ServiceInfoHolder createHolder( int i, ServiceLocality locality )
+  {
+    Map<String, String> props = new HashMap<String, String>();
+    props.put( "key", "value" + i );
+    return new ServiceInfoHolder( locality, new ServiceInfo( "id" + i, "Service" + i,
+        URI.create( "http://localhost:8080/serv" + i ), props ) );
+  }
+}
@@ -0,0 +1,223 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+
+import org.junit.Test;
+
+import usd.ServiceAnnouncer;
+import usd.ServiceInfo;
+import usd.ServiceListener;
+
+
+/**
+ * Test cases for {@link ServiceEventPublisher}.
+ */
+public class ServiceEventPublisherTest
+{
+  /**
+   * Notifies its listeners synchronously.
+   */
+  static class DirectServiceAnnouncer implements ServiceAnnouncer
+  {
+    final List<ServiceListener> m_listeners = new CopyOnWriteArrayList<ServiceListener>();
+
+    @Override
+    public void addService( ServiceInfo info )
+    {
+      for ( ServiceListener listener : m_listeners )
+      {
+        listener.serviceAdded( info );
+      }
+    }
+
+    @Override
+    public void addServiceListener( ServiceListener listener )
+    {
+      m_listeners.add( listener );
+    }
+
+    @Override
+    public Collection<ServiceInfo> getKnownServices()
+    {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void removeService( ServiceInfo info )
+    {
+      for ( ServiceListener listener : m_listeners )
+      {
+        listener.serviceRemoved( info );
+      }
+    }
+
+    @Override
+    public void removeServiceListener( ServiceListener listener )
+    {
+      m_listeners.remove( listener );
+    }
+  }
+
+  static class RecordingSubscriber implements Flow.Subscriber<ServiceEvent>
+  {
+    final List<String> m_events = new ArrayList<String>();
+    Flow.Subscription m_subscription;
+    Throwable m_error;
+    boolean m_completed;
+
+    @Override
+    public void onComplete()
+    {
+      m_completed = true;
+    }
+
+    @Override
+    public void onError( Throwable throwable )
+    {
+      m_error = throwable;
+    }
+
+    @Override
+    public void onNext( ServiceEvent event )
+    {
+      m_events.add( event.toString() );
+    }
+
+    @Override
+    public void onSubscribe( Flow.Subscription subscription )
+    {
+      m_subscription = subscription;
+    }
+  }
+
+  @Test
+  public void testCancelUnregisters()
+  {
+    DirectServiceAnnouncer announcer = new DirectServiceAnnouncer();
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+
+    new ServiceEventPublisher( announcer ).subscribe( subscriber );
+    assertEquals( 1, announcer.m_listeners.size() );
+
+    subscriber.m_subscription.cancel();
+    assertEquals( 0, announcer.m_listeners.size() );
+  }
+
+  @Test
+  public void testCompleteDeliversPendingEventsFirst()
+  {
+    DirectServiceAnnouncer announcer = new DirectServiceAnnouncer();
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    ServiceEventPublisher publisher = new ServiceEventPublisher( announcer );
+    publisher.subscribe( subscriber );
+
+    announcer.addService( createService( 1 ) );
+    publisher.complete();
+    assertFalse( subscriber.m_completed );
+
+    subscriber.m_subscription.request( 1 );
+    assertEquals( "[added id1]", subscriber.m_events.toString() );
+    assertTrue( subscriber.m_completed );
+    assertEquals( 0, announcer.m_listeners.size() );
+
+    // Late subscribers are completed right away...
+    subscriber = new RecordingSubscriber();
+    publisher.subscribe( subscriber );
+    assertTrue( subscriber.m_completed );
+    assertEquals( 0, announcer.m_listeners.size() );
+  }
+
+  @Test
+  public void testDemandIsHonoured()
+  {
+    DirectServiceAnnouncer announcer = new DirectServiceAnnouncer();
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new ServiceEventPublisher( announcer ).subscribe( subscriber );
+
+    announcer.addService( createService( 1 ) );
+    announcer.addService( createService( 2 ) );
+    announcer.addService( createService( 3 ) );
+
+    // Nothing requested yet...
+    assertTrue( subscriber.m_events.isEmpty() );
+
+    subscriber.m_subscription.request( 2 );
+    assertEquals( "[added id1, added id2]", subscriber.m_events.toString() );
+
+    subscriber.m_subscription.request( 10 );
+    assertEquals( "[added id1, added id2, added id3]", subscriber.m_events.toString() );
+
+    // Outstanding demand is used for new events...
+    announcer.removeService( createService( 1 ) );
+    assertEquals( 4, subscriber.m_events.size() );
+    assertEquals( "removed id1", subscriber.m_events.get( 3 ) );
+  }
+
+  @Test
+  public void testLaggingSubscriberGetsCoalescedEvents()
+  {
+    DirectServiceAnnouncer announcer = new DirectServiceAnnouncer();
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new ServiceEventPublisher( announcer ).subscribe( subscriber );
+
+    for ( int i = 0; i < 1000; i++ )
+    {
+      announcer.addService( createService( i ) );
+      if ( i > 0 )
+      {
+        announcer.removeService( createService( i ) );
+      }
+    }
+
+    subscriber.m_subscription.request( Long.MAX_VALUE );
+    assertEquals( "[added id0]", subscriber.m_events.toString() );
+
+    subscriber.m_events.clear();
+    subscriber.m_subscription.cancel();
+
+    subscriber = new RecordingSubscriber();
+    new ServiceEventPublisher( announcer ).subscribe( subscriber );
+
+    // Removed and re-added unchanged while lagging...
+    announcer.removeService( createService( 0 ) );
+    announcer.addService( createService( 0 ) );
+    // Removed and re-added changed while lagging...
+    announcer.removeService( createService( 1 ) );
+    announcer.addService( new ServiceInfo( "id1", "Other", URI.create( "http://localhost:8080/other" ) ) );
+
+    subscriber.m_subscription.request( 1 );
+    assertEquals( "[removed id1]", subscriber.m_events.toString() );
+    subscriber.m_subscription.request( 1 );
+    assertEquals( "[removed id1, added id1]", subscriber.m_events.toString() );
+  }
+
+  @Test
+  public void testNonPositiveRequestIsAnError()
+  {
+    DirectServiceAnnouncer announcer = new DirectServiceAnnouncer();
+    RecordingSubscriber subscriber = new RecordingSubscriber();
+    new ServiceEventPublisher( announcer ).subscribe( subscriber );
+
+    subscriber.m_subscription.request( 0 );
+    assertTrue( subscriber.m_error instanceof IllegalArgumentException );
+    assertEquals( 0, announcer.m_listeners.size() );
+  }
+
+  private static ServiceInfo createService( int i )
+  {
+    return new ServiceInfo( "id" + i, "Service" + i, URI.create( "http://localhost:8080/serv" + i ) );
+  }
+}
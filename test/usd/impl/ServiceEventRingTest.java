@@ -0,0 +1,204 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import usd.ServiceInfo;
+import usd.ServiceListener;
+
+
+/**
+ * Test cases for {@link ServiceEventRing}.
+ */
+public class ServiceEventRingTest
+{
+  static class RecordingListener implements ServiceListener
+  {
+    final List<String> m_events = new ArrayList<String>();
+
+    @Override
+    public void serviceAdded( ServiceInfo info )
+    {
+      m_events.add( "+" + info.getId() );
+    }
+
+    @Override
+    public void serviceRemoved( ServiceInfo info )
+    {
+      m_events.add( "-" + info.getId() );
+    }
+  }
+
+  private final Map<String, ServiceInfo> m_state = new HashMap<String, ServiceInfo>();
+
+  @Test
+  public void testFailingConsumerDoesNotStallCursor()
+  {
+    ServiceEventRing ring = createRing( 16 );
+    RecordingListener listener = new RecordingListener()
+    {
+      @Override
+      public void serviceAdded( ServiceInfo info )
+      {
+        super.serviceAdded( info );
+        if ( "id1".equals( info.getId() ) )
+        {
+          throw new RuntimeException( "Failing consumer!" );
+        }
+      }
+    };
+    ServiceEventRing.Cursor cursor = ring.createCursor( listener );
+
+    add( ring, 1 );
+    add( ring, 2 );
+    remove( ring, 1 );
+
+    assertEquals( 3, cursor.poll() );
+    assertEquals( "[+id1, +id2, -id1]", listener.m_events.toString() );
+  }
+
+  @Test
+  public void testLappedCursorIsResynchronized()
+  {
+    ServiceEventRing ring = createRing( 4 );
+    RecordingListener listener = new RecordingListener();
+    ServiceEventRing.Cursor cursor = ring.createCursor( listener );
+
+    add( ring, 1 );
+    add( ring, 2 );
+    cursor.poll();
+    assertEquals( "[+id1, +id2]", listener.m_events.toString() );
+    listener.m_events.clear();
+
+    // Overflow the ring...
+    remove( ring, 1 );
+    for ( int i = 3; i < 10; i++ )
+    {
+      add( ring, i );
+    }
+    remove( ring, 9 );
+
+    // Only the net changes are reported...
+    assertEquals( 7, cursor.poll() );
+    Collections.sort( listener.m_events );
+    assertEquals( "[+id3, +id4, +id5, +id6, +id7, +id8, -id1]", listener.m_events.toString() );
+  }
+
+  @Test
+  public void testLappedCursorReportsRemovalsUntilClosed()
+  {
+    ServiceEventRing ring = createRing( 4 );
+    RecordingListener listener = new RecordingListener();
+    ServiceEventRing.Cursor cursor = ring.createCursor( listener );
+
+    for ( int i = 1; i <= 6; i++ )
+    {
+      add( ring, i );
+    }
+    cursor.poll();
+    listener.m_events.clear();
+
+    // Removal events are kept as long as the cursor needs them...
+    for ( int i = 1; i <= 6; i++ )
+    {
+      remove( ring, i );
+    }
+    assertEquals( 6, ring.getRemovalCount() );
+
+    assertEquals( 6, cursor.poll() );
+    Collections.sort( listener.m_events );
+    assertEquals( "[-id1, -id2, -id3, -id4, -id5, -id6]", listener.m_events.toString() );
+
+    // ...and forgotten once no cursor needs them anymore...
+    cursor.close();
+    for ( int i = 7; i <= 12; i++ )
+    {
+      add( ring, i );
+      remove( ring, i );
+    }
+    assertTrue( ring.getRemovalCount() < 6 );
+  }
+
+  @Test
+  public void testLateCursorGetsSnapshotThenTail()
+  {
+    ServiceEventRing ring = createRing( 16 );
+
+    add( ring, 1 );
+    add( ring, 2 );
+
+    RecordingListener listener = new RecordingListener();
+    ServiceEventRing.Cursor cursor = ring.createCursor( listener );
+
+    add( ring, 3 );
+    remove( ring, 1 );
+
+    assertEquals( 4, cursor.poll() );
+    // Snapshot, in no particular order...
+    Collections.sort( listener.m_events.subList( 0, 2 ) );
+    assertEquals( "[+id1, +id2, +id3, -id1]", listener.m_events.toString() );
+
+    // Nothing new...
+    assertEquals( 0, cursor.poll() );
+  }
+
+  @Test
+  public void testOverlappingEventsAreReportedOnce()
+  {
+    ServiceEventRing ring = createRing( 16 );
+
+    // State already reflects the change, but its event is not yet published...
+    m_state.put( "id1", createService( 1 ) );
+
+    RecordingListener listener = new RecordingListener();
+    ServiceEventRing.Cursor cursor = ring.createCursor( listener );
+
+    ring.publish( true, createService( 1 ) );
+
+    cursor.poll();
+    assertEquals( "[+id1]", listener.m_events.toString() );
+  }
+
+  private void add( ServiceEventRing ring, int i )
+  {
+    ServiceInfo info = createService( i );
+    m_state.put( info.getId(), info );
+    ring.publish( true, info );
+  }
+
+  private ServiceEventRing createRing( int capacity )
+  {
+    return new ServiceEventRing( capacity, new ServiceEventRing.StateProvider()
+    {
+      @Override
+      public Map<String, ServiceInfo> getState()
+      {
+        return new HashMap<String, ServiceInfo>( m_state );
+      }
+    } );
+  }
+
+  private static ServiceInfo createService( int i )
+  {
+    return new ServiceInfo( "id" + i, "Service" + i, URI.create( "http://localhost:8080/serv" + i ) );
+  }
+
+  private void remove( ServiceEventRing ring, int i )
+  {
+    ServiceInfo info = m_state.remove( "id" + i );
+    ring.publish( false, info );
+  }
+}
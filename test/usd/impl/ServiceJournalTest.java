@@ -0,0 +1,119 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.List;
+
+import org.junit.Test;
+
+import usd.ServiceInfo;
+import usd.impl.MulticastServiceAnnouncer.ServiceLocality;
+import usd.impl.ServiceJournal.Entry;
+import usd.impl.ServiceJournal.EventType;
+
+
+/**
+ * Test cases for {@link ServiceJournal}.
+ */
+public class ServiceJournalTest
+{
+  @Test
+  public void testReplayAndTail() throws IOException
+  {
+    File dir = createTempDir();
+    ServiceJournal journal = new ServiceJournal( dir, 64 * 1024, 0 );
+    ServiceJournal.Reader reader = new ServiceJournal.Reader( dir );
+
+    ServiceInfo service1 = createService( 1 );
+    InetAddress source = InetAddress.getByName( "127.0.0.1" );
+
+    journal.append( EventType.ADDED, ServiceLocality.LOCAL, null, service1 );
+    journal.append( EventType.ADDED, ServiceLocality.REMOTE, source, createService( 2 ) );
+
+    // Nothing is written until flushed...
+    assertTrue( reader.poll().isEmpty() );
+
+    journal.flush();
+
+    List<Entry> entries = reader.poll();
+    assertEquals( 2, entries.size() );
+
+    Entry entry = entries.get( 0 );
+    assertEquals( EventType.ADDED, entry.getType() );
+    assertTrue( entry.isLocal() );
+    assertNull( entry.getSource() );
+    assertEquals( service1, entry.getServiceInfo() );
+    assertTrue( entry.getTimestamp() > 0L );
+
+    entry = entries.get( 1 );
+    assertFalse( entry.isLocal() );
+    assertEquals( "127.0.0.1", entry.getSource() );
+
+    // Tail...
+    journal.append( EventType.EXPIRED, ServiceLocality.REMOTE, null, createService( 2 ) );
+    journal.close();
+
+    entries = reader.poll();
+    assertEquals( 1, entries.size() );
+    assertEquals( EventType.EXPIRED, entries.get( 0 ).getType() );
+
+    // Replay...
+    assertEquals( 3, new ServiceJournal.Reader( dir ).poll().size() );
+  }
+
+  @Test
+  public void testSegmentsAreRolledAndRetained() throws IOException
+  {
+    File dir = createTempDir();
+    ServiceJournal journal = new ServiceJournal( dir, 1024, 3 );
+    ServiceJournal.Reader reader = new ServiceJournal.Reader( dir );
+
+    int count = 0;
+    for ( int i = 0; i < 100; i++ )
+    {
+      journal.append( EventType.ADDED, ServiceLocality.LOCAL, null, createService( i ) );
+      journal.flush();
+
+      count += reader.poll().size();
+    }
+    journal.close();
+
+    // The reader kept up with all segments...
+    assertEquals( 100, count );
+    assertEquals( 3, dir.listFiles().length );
+
+    // Reopening continues after the existing segments...
+    journal = new ServiceJournal( dir, 1024, 3 );
+    journal.append( EventType.REMOVED, ServiceLocality.LOCAL, null, createService( 1 ) );
+    journal.close();
+
+    List<Entry> entries = reader.poll();
+    assertEquals( 1, entries.size() );
+    assertEquals( EventType.REMOVED, entries.get( 0 ).getType() );
+  }
+
+  private static File createTempDir() throws IOException
+  {
+    File dir = File.createTempFile( "usd", ".journal" );
+    dir.delete();
+    dir.mkdirs();
+    dir.deleteOnExit();
+    return dir;
+  }
+
+  private static ServiceInfo createService( int i )
+  {
+    return new ServiceInfo( "id" + i, "Service" + i, URI.create( "http://localhost:8080/serv" + i ) );
+  }
+}
@@ -0,0 +1,131 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import usd.ServiceInfo;
+import usd.impl.ServiceEventPublisherTest.DirectServiceAnnouncer;
+
+
+/**
+ * Test cases for {@link ServiceResolver}.
+ */
+public class ServiceResolverTest
+{
+  private static ServiceInfo createService( String id, String name, String weight )
+  {
+    Map<String, String> props = Collections.emptyMap();
+    if ( weight != null )
+    {
+      props = Collections.singletonMap( ServiceResolver.DEFAULT_WEIGHT_PROPERTY, weight );
+    }
+    return new ServiceInfo( id, name, URI.create( "http://localhost:8080/" + id ), props );
+  }
+
+  @Test
+  public void testEndpointsFollowServiceChanges()
+  {
+    DirectServiceAnnouncer announcer = new DirectServiceAnnouncer();
+    ServiceResolver resolver = new ServiceResolver( announcer );
+
+    assertEquals( 0, resolver.getEndpointCount( "Service" ) );
+    assertNull( resolver.selectRandom( "Service" ) );
+    assertNull( resolver.selectRoundRobin( "Service" ) );
+    assertNull( resolver.selectWeighted( "Service" ) );
+
+    ServiceInfo service1 = createService( "id1", "Service", null );
+    ServiceInfo service2 = createService( "id2", "Service", null );
+    announcer.addService( service1 );
+    announcer.addService( service2 );
+    announcer.addService( createService( "id3", "Other", null ) );
+
+    assertEquals( 2, resolver.getEndpointCount( "Service" ) );
+    assertEquals( 1, resolver.getEndpointCount( "Other" ) );
+
+    announcer.removeService( service1 );
+    assertEquals( 1, resolver.getEndpointCount( "Service" ) );
+    assertEquals( service2.getURI(), resolver.selectRandom( "Service" ) );
+
+    announcer.removeService( service2 );
+    assertEquals( 0, resolver.getEndpointCount( "Service" ) );
+    assertNull( resolver.selectRoundRobin( "Service" ) );
+
+    resolver.close();
+    announcer.addService( service1 );
+    assertEquals( 0, resolver.getEndpointCount( "Service" ) );
+  }
+
+  @Test
+  public void testInvalidWeightsDefaultToOne()
+  {
+    ServiceResolver resolver = new ServiceResolver( new DirectServiceAnnouncer() );
+
+    assertEquals( 1, resolver.getWeight( createService( "id1", "Service", null ) ) );
+    assertEquals( 1, resolver.getWeight( createService( "id1", "Service", "heavy" ) ) );
+    assertEquals( 0, resolver.getWeight( createService( "id1", "Service", "-5" ) ) );
+    assertEquals( 7, resolver.getWeight( createService( "id1", "Service", " 7 " ) ) );
+  }
+
+  @Test
+  public void testRoundRobinVisitsAllEndpoints()
+  {
+    DirectServiceAnnouncer announcer = new DirectServiceAnnouncer();
+    ServiceResolver resolver = new ServiceResolver( announcer );
+    for ( int i = 0; i < 3; i++ )
+    {
+      announcer.addService( createService( "id" + i, "Service", null ) );
+    }
+
+    Set<URI> seen = new HashSet<URI>();
+    for ( int i = 0; i < 3; i++ )
+    {
+      seen.add( resolver.selectRoundRobin( "Service" ) );
+    }
+    assertEquals( 3, seen.size() );
+  }
+
+  @Test
+  public void testWeightedSelectionFollowsWeights()
+  {
+    DirectServiceAnnouncer announcer = new DirectServiceAnnouncer();
+    ServiceResolver resolver = new ServiceResolver( announcer );
+
+    ServiceInfo light = createService( "id1", "Service", "1" );
+    ServiceInfo heavy = createService( "id2", "Service", "9" );
+    ServiceInfo unused = createService( "id3", "Service", "0" );
+    announcer.addService( light );
+    announcer.addService( unused );
+    announcer.addService( heavy );
+
+    Map<URI, Integer> counts = new HashMap<URI, Integer>();
+    for ( int i = 0; i < 10000; i++ )
+    {
+      URI uri = resolver.selectWeighted( "Service" );
+      Integer count = counts.get( uri );
+      counts.put( uri, Integer.valueOf( ( count == null ) ? 1 : count.intValue() + 1 ) );
+    }
+
+    assertEquals( 2, counts.size() );
+    int heavyCount = counts.get( heavy.getURI() ).intValue();
+    assertTrue( "" + heavyCount, heavyCount > 8500 && heavyCount < 9500 );
+
+    announcer.removeService( light );
+    announcer.removeService( heavy );
+    assertEquals( 1, resolver.getEndpointCount( "Service" ) );
+    assertNull( resolver.selectWeighted( "Service" ) );
+  }
+}
@@ -0,0 +1,124 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import usd.ServiceInfo;
+import usd.impl.MulticastServiceAnnouncer.ServiceInfoHolder;
+
+
+/**
+ * Test cases for {@link ServiceSnapshot}.
+ */
+public class ServiceSnapshotTest
+{
+  @Test
+  public void testCorruptSnapshotIsIgnored() throws IOException
+  {
+    File file = createTempFile();
+
+    ServiceSnapshot.write( file, createServices( 10 ) );
+
+    RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+    try
+    {
+      raf.seek( raf.length() - 1 );
+      raf.write( 0xff );
+    }
+    finally
+    {
+      raf.close();
+    }
+
+    assertTrue( ServiceSnapshot.read( file ).isEmpty() );
+  }
+
+  @Test
+  public void testMissingSnapshotIsEmpty() throws IOException
+  {
+    File file = createTempFile();
+    file.delete();
+
+    assertTrue( ServiceSnapshot.read( file ).isEmpty() );
+  }
+
+  @Test
+  public void testTruncatedSnapshotIsIgnored() throws IOException
+  {
+    File file = createTempFile();
+
+    ServiceSnapshot.write( file, createServices( 10 ) );
+
+    RandomAccessFile raf = new RandomAccessFile( file, "rw" );
+    try
+    {
+      raf.setLength( raf.length() - 10 );
+    }
+    finally
+    {
+      raf.close();
+    }
+
+    assertTrue( ServiceSnapshot.read( file ).isEmpty() );
+  }
+
+  @Test
+  public void testWriteAndRead() throws IOException
+  {
+    File file = createTempFile();
+
+    List<ServiceInfo> services = createServices( 100 );
+    ServiceSnapshot.write( file, services );
+
+    List<ServiceInfoHolder> result = ServiceSnapshot.read( file );
+    assertEquals( services.size(), result.size() );
+    for ( int i = 0; i < services.size(); i++ )
+    {
+      ServiceInfoHolder holder = result.get( i );
+      assertEquals( services.get( i ), holder.getInfo() );
+      assertTrue( !holder.m_locality.isLocal() );
+
+      // Digest matches that of the original announcement...
+      byte[] data = CborCodec.encode( MulticastMessage.createServiceAddedMessage( services.get( i ) ) );
+      assertEquals( CborCodec.digest( data, 0, data.length ), holder.m_digest );
+    }
+
+    // Overwrite an existing snapshot...
+    ServiceSnapshot.write( file, services.subList( 0, 10 ) );
+    assertEquals( 10, ServiceSnapshot.read( file ).size() );
+  }
+
+  private static File createTempFile() throws IOException
+  {
+    File file = File.createTempFile( "usd", ".snapshot" );
+    file.deleteOnExit();
+    return file;
+  }
+
+  private static List<ServiceInfo> createServices( int count )
+  {
+    List<ServiceInfo> result = new ArrayList<ServiceInfo>();
+    for ( int i = 0; i < count; i++ )
+    {
+      Map<String, String> props = new HashMap<String, String>();
+      props.put( "key", "value" + i );
+      result.add( new ServiceInfo( "id" + i, "Service" + i, URI.create( "http://localhost:8080/serv" + i ), props ) );
+    }
+    return result;
+  }
+}
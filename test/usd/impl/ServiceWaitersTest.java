@@ -0,0 +1,122 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Predicate;
+
+import org.junit.Test;
+
+import usd.ServiceInfo;
+
+
+/**
+ * Test cases for {@link ServiceWaiters}.
+ */
+public class ServiceWaitersTest
+{
+  private static ServiceInfo createService( String id, String name )
+  {
+    return new ServiceInfo( id, name, URI.create( "http://localhost:8080/" + id ) );
+  }
+
+  @Test
+  public void testCancelledWaitersAreRemoved()
+  {
+    ServiceWaiters waiters = new ServiceWaiters();
+
+    CompletableFuture<ServiceInfo> future = waiters.register( "Service1" );
+    assertEquals( 1, waiters.getCount() );
+
+    future.cancel( false );
+    assertEquals( 0, waiters.getCount() );
+
+    waiters.serviceAdded( createService( "id1", "Service1" ) );
+    assertTrue( future.isCancelled() );
+  }
+
+  @Test
+  public void testCancelAllCompletesAllWaiters()
+  {
+    ServiceWaiters waiters = new ServiceWaiters();
+
+    CompletableFuture<ServiceInfo> future1 = waiters.register( "Service1" );
+    CompletableFuture<ServiceInfo> future2 = waiters.register( new Predicate<ServiceInfo>()
+    {
+      @Override
+      public boolean test( ServiceInfo info )
+      {
+        return true;
+      }
+    } );
+
+    waiters.cancelAll( new CancellationException() );
+
+    assertTrue( future1.isCompletedExceptionally() );
+    assertTrue( future2.isCompletedExceptionally() );
+    assertEquals( 0, waiters.getCount() );
+  }
+
+  @Test
+  public void testFailingFilterCompletesExceptionally()
+  {
+    ServiceWaiters waiters = new ServiceWaiters();
+
+    CompletableFuture<ServiceInfo> future = waiters.register( new Predicate<ServiceInfo>()
+    {
+      @Override
+      public boolean test( ServiceInfo info )
+      {
+        throw new IllegalStateException();
+      }
+    } );
+
+    waiters.serviceAdded( createService( "id1", "Service1" ) );
+    assertTrue( future.isCompletedExceptionally() );
+    assertEquals( 0, waiters.getCount() );
+  }
+
+  @Test
+  public void testOnlyMatchingWaitersAreCompleted() throws Exception
+  {
+    ServiceWaiters waiters = new ServiceWaiters();
+
+    CompletableFuture<ServiceInfo> future1 = waiters.register( "Service1" );
+    CompletableFuture<ServiceInfo> future2 = waiters.register( "Service1" );
+    CompletableFuture<ServiceInfo> future3 = waiters.register( "Service2" );
+    CompletableFuture<ServiceInfo> future4 = waiters.register( new Predicate<ServiceInfo>()
+    {
+      @Override
+      public boolean test( ServiceInfo info )
+      {
+        return "id3".equals( info.getId() );
+      }
+    } );
+    assertEquals( 4, waiters.getCount() );
+
+    ServiceInfo service = createService( "id1", "Service1" );
+    waiters.serviceAdded( service );
+
+    assertSame( service, future1.get() );
+    assertSame( service, future2.get() );
+    assertFalse( future3.isDone() );
+    assertFalse( future4.isDone() );
+    assertEquals( 2, waiters.getCount() );
+
+    service = createService( "id3", "Service3" );
+    waiters.serviceAdded( service );
+
+    assertSame( service, future4.get() );
+    assertFalse( future3.isDone() );
+    assertEquals( 1, waiters.getCount() );
+  }
+}
@@ -0,0 +1,94 @@
+/**
+ * 
+ */
+package usd.impl;
+
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+
+/**
+ * Test cases for {@link SourceRateLimiter}.
+ */
+public class SourceRateLimiterTest
+{
+  @Test
+  public void testChattySourceIsQuarantined()
+  {
+    SourceRateLimiter limiter = new SourceRateLimiter( 10, 5, 3, 1000L );
+
+    for ( int i = 0; i < 5; i++ )
+    {
+      assertTrue( limiter.accept( "source1", 0L ) );
+    }
+    // Packets over the limit are dropped, but the source is not quarantined...
+    assertFalse( limiter.accept( "source1", 0L ) );
+    assertFalse( limiter.accept( "source1", 0L ) );
+    assertEquals( 0, limiter.getQuarantinedCount( 0L ) );
+
+    // Until it keeps exceeding its rate...
+    assertFalse( limiter.accept( "source1", 0L ) );
+    assertEquals( 1, limiter.getQuarantinedCount( 0L ) );
+
+    // Other sources are not affected...
+    assertTrue( limiter.accept( "source2", 0L ) );
+
+    // Still quarantined, even though the bucket would have been refilled...
+    assertFalse( limiter.accept( "source1", 500L ) );
+
+    // Quarantine is over...
+    assertTrue( limiter.accept( "source1", 1000L ) );
+    assertEquals( 0, limiter.getQuarantinedCount( 1000L ) );
+  }
+
+  @Test
+  public void testOccasionalBurstIsNotQuarantined()
+  {
+    SourceRateLimiter limiter = new SourceRateLimiter( 10, 5, 3, 1000L );
+
+    for ( long now = 0L; now < 10000L; now += 1000L )
+    {
+      // One packet too many per second, only that one is dropped...
+      for ( int i = 0; i < 5; i++ )
+      {
+        assertTrue( limiter.accept( "source1", now ) );
+      }
+      assertFalse( limiter.accept( "source1", now ) );
+    }
+    assertEquals( 0, limiter.getQuarantinedCount( 10000L ) );
+  }
+
+  @Test
+  public void testInvalidSourceIsQuarantined()
+  {
+    SourceRateLimiter limiter = new SourceRateLimiter( 0, 1, 3, 1000L );
+
+    limiter.invalid( "source1", 0L );
+    limiter.invalid( "source1", 0L );
+    // A valid packet resets the count...
+    limiter.valid( "source1" );
+    limiter.invalid( "source1", 0L );
+    limiter.invalid( "source1", 0L );
+    assertTrue( limiter.accept( "source1", 0L ) );
+
+    limiter.invalid( "source1", 0L );
+    assertFalse( limiter.accept( "source1", 0L ) );
+    assertTrue( limiter.accept( "source1", 1000L ) );
+  }
+
+  @Test
+  public void testSteadySourceIsAccepted()
+  {
+    SourceRateLimiter limiter = new SourceRateLimiter( 10, 1, 0, 1000L );
+
+    for ( long now = 0L; now < 10000L; now += 100L )
+    {
+      assertTrue( limiter.accept( "source1", now ) );
+    }
+    assertEquals( 0, limiter.getQuarantinedCount( 10000L ) );
+  }
+}